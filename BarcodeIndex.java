@@ -0,0 +1,472 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// Maps every code a product can be scanned or typed by - its product ID and any number
+// of barcodes (EAN, UPC, internal, supplier codes) - to its product ID.
+//
+// Codes are normalized once, when they are added. A product ID is only trimmed and
+// upper-cased, so matching ignores case but "A-1" and "A1", or a 12- and a 13-digit ID,
+// stay different products. A barcode from barcodes.txt is canonicalized further: inner
+// spaces and dashes are dropped and a 12-digit UPC-A gets the leading 0 that makes it the
+// equivalent EAN-13. A lookup tries the code as an ID first, then as a barcode; the
+// barcode form only matches barcodes, never another product's ID.
+//
+// The bulk of the codes live in an immutable table built with a minimal perfect hash
+// (CHD, "compress, hash and displace"): the codes are hashed into buckets of about
+// BUCKET_SIZE, and each bucket, largest first, gets a displacement that sends all of its
+// codes to free slots; single-code buckets store their slot directly. The table then
+// has exactly one slot per code, in two flat arrays (codes and product IDs) plus an int
+// per bucket, and a lookup is one hash, one displacement read and one string compare.
+// Codes added since the table was built go to a small concurrent map that is checked
+// first; once it holds more than an eighth of the table, a new table is built in the
+// background and swapped in.
+//
+// Lookups take no lock. A product that is removed keeps its codes until the next build,
+// so callers must check that the returned product still exists (Catalog.findByCode does).
+class BarcodeIndex {
+    private static final int BUCKET_SIZE = 2;
+    private static final int MAX_DISPLACEMENT = 1 << 20;
+    private static final int MIN_REBUILD = 1024;
+
+    // One built table; never changed after construction
+    private static final class Table {
+        static final Table EMPTY = new Table(new String[0], new String[0], new int[0], new HashMap<>());
+
+        final String[] codes;
+        final String[] productIds;
+        // Per bucket: displacement d >= 0, or -(slot + 1) for a bucket with a single code
+        final int[] displacements;
+        // Codes that could not be placed (two codes with the same 64-bit hash); normally empty
+        final Map<String, String> overflow;
+
+        Table(String[] codes, String[] productIds, int[] displacements, Map<String, String> overflow) {
+            this.codes = codes;
+            this.productIds = productIds;
+            this.displacements = displacements;
+            this.overflow = overflow;
+        }
+
+        String get(String code, long hash) {
+            if (codes.length > 0) {
+                int slot = slotOf(hash, displacements[bucketOf(hash, displacements.length)], codes.length);
+                if (code.equals(codes[slot])) {
+                    return productIds[slot];
+                }
+            }
+            return overflow.isEmpty() ? null : overflow.get(code);
+        }
+
+        int size() {
+            return codes.length + overflow.size();
+        }
+    }
+
+    private volatile Table table = Table.EMPTY;
+    private final Map<String, String> recent = new ConcurrentHashMap<>();
+    private final AtomicBoolean rebuildScheduled = new AtomicBoolean();
+    private ExecutorService rebuilder;
+    private final String metricPrefix;
+
+    // Builds the index of the given product IDs; metricPrefix goes in front of its metric names
+    public BarcodeIndex(Collection<String> productIds, String metricPrefix) {
+        this.metricPrefix = metricPrefix;
+        Map<String, String> codes = new HashMap<>();
+        for (String productId : productIds) {
+            String previous = codes.putIfAbsent(idCode(productId), productId);
+            if (previous != null) {
+                System.err.println("Product IDs " + previous + " and " + productId
+                        + " differ only in case; " + productId + " is only found by its exact ID");
+            }
+        }
+        table = build(codes);
+        Metrics.gauge(metricPrefix + "barcodes.codes", this::size);
+        MemoryFootprint.register(metricPrefix + "barcodes", this::estimateBytes);
+    }
+
+    // The normalized form of a product ID: trimmed and upper-cased
+    public static String idCode(String productId) {
+        String normalized = productId.trim();
+        for (int i = 0; i < normalized.length(); i++) {
+            if (Character.isLowerCase(normalized.charAt(i))) {
+                return normalized.toUpperCase(Locale.ROOT);
+            }
+        }
+        return normalized;
+    }
+
+    // The normalized form of a barcode; the same string if it is already normalized
+    public static String normalize(String code) {
+        String normalized = code.trim();
+        for (int i = 0; i < normalized.length(); i++) {
+            char c = normalized.charAt(i);
+            if (c == ' ' || c == '-' || Character.isLowerCase(c)) {
+                normalized = normalized.replace(" ", "").replace("-", "").toUpperCase(Locale.ROOT);
+                break;
+            }
+        }
+        if (normalized.length() == 12 && isDigits(normalized)) {
+            normalized = "0" + normalized;
+        }
+        return normalized;
+    }
+
+    // The product ID a code belongs to, or null if the code is unknown
+    public String lookup(String code) {
+        String asId = idCode(code);
+        String productId = get(asId);
+        if (productId != null) {
+            return productId;
+        }
+        String asBarcode = normalize(asId);
+        if (asBarcode.equals(asId)) {
+            return null;
+        }
+        productId = get(asBarcode);
+        // An ID entry reached through barcode canonicalization is a different product's ID
+        return productId == null || asBarcode.equals(idCode(productId)) ? null : productId;
+    }
+
+    // The product ID a code is taken by as it stands, as a product ID or as a barcode, or
+    // null; for checking a new product ID, which may not shadow another product's barcode
+    public String owner(String productId) {
+        return get(idCode(productId));
+    }
+
+    private String get(String normalized) {
+        if (!recent.isEmpty()) {
+            String productId = recent.get(normalized);
+            if (productId != null) {
+                return productId;
+            }
+        }
+        return table.get(normalized, hash(normalized));
+    }
+
+    // Adds a product's own ID; an ID that was already known now belongs to this product
+    public void addId(String productId) {
+        put(idCode(productId), productId);
+    }
+
+    // Adds a barcode for a product; a code that was already known now belongs to this product
+    public void add(String code, String productId) {
+        put(normalize(code), productId);
+    }
+
+    private void put(String normalized, String productId) {
+        Table current = table;
+        if (productId.equals(current.get(normalized, hash(normalized)))) {
+            return;
+        }
+        recent.put(normalized, productId);
+        if (recent.size() > Math.max(MIN_REBUILD, current.size() / 8) && rebuildScheduled.compareAndSet(false, true)) {
+            scheduleRebuild();
+        }
+    }
+
+    // Moves the barcodes of a product to its new ID and adds the new ID; the old ID itself
+    // is left behind, since it no longer names a product
+    public void rename(String oldId, String newId) {
+        String oldCode = idCode(oldId);
+        Table current = table;
+        for (int i = 0; i < current.codes.length; i++) {
+            if (oldId.equals(current.productIds[i]) && !oldCode.equals(current.codes[i])) {
+                put(current.codes[i], newId);
+            }
+        }
+        for (Map.Entry<String, String> entry : current.overflow.entrySet()) {
+            if (oldId.equals(entry.getValue()) && !oldCode.equals(entry.getKey())) {
+                put(entry.getKey(), newId);
+            }
+        }
+        for (Map.Entry<String, String> entry : recent.entrySet()) {
+            if (oldId.equals(entry.getValue()) && !oldCode.equals(entry.getKey())) {
+                recent.replace(entry.getKey(), oldId, newId);
+            }
+        }
+        addId(newId);
+    }
+
+    // Reads aliases, one product per line: "productId, code, code, ..." (blank lines and
+    // lines starting with # are skipped), and rebuilds the table with them. A code that
+    // already belongs to another product is skipped with a warning, so product IDs
+    // always win over barcodes. Returns the number of codes added.
+    public int loadAliases(Path file) throws IOException {
+        Map<String, String> aliases = new HashMap<>();
+        int conflicts = 0;
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                String[] parts = line.split(",");
+                String productId = parts[0].trim();
+                for (int i = 1; i < parts.length; i++) {
+                    String code = normalize(parts[i]);
+                    if (code.isEmpty()) {
+                        continue;
+                    }
+                    String owner = aliases.get(code);
+                    if (owner == null) {
+                        owner = recent.isEmpty() ? null : recent.get(code);
+                    }
+                    if (owner == null) {
+                        owner = table.get(code, hash(code));
+                    }
+                    if (owner == null) {
+                        aliases.put(code, productId);
+                    } else if (!owner.equals(productId) && conflicts++ < 10) {
+                        System.err.println("Barcode " + parts[i].trim() + " for " + productId
+                                + " already belongs to " + owner + "; skipped");
+                    }
+                }
+            }
+        }
+        if (conflicts > 10) {
+            System.err.println((conflicts - 10) + " more conflicting barcode(s) in " + file + " skipped");
+        }
+        rebuild(aliases);
+        return aliases.size();
+    }
+
+    // Folds the recently added codes into a new table
+    public void rebuild() {
+        rebuild(new HashMap<>());
+    }
+
+    private synchronized void rebuild(Map<String, String> extra) {
+        long started = System.nanoTime();
+        Table current = table;
+        Map<String, String> folded = new HashMap<>(recent);
+        Map<String, String> codes = new HashMap<>(current.size() + folded.size() + extra.size());
+        for (int i = 0; i < current.codes.length; i++) {
+            codes.put(current.codes[i], current.productIds[i]);
+        }
+        codes.putAll(current.overflow);
+        codes.putAll(extra);
+        codes.putAll(folded);
+        table = build(codes);
+        // Codes added while building stay in recent; so do codes re-pointed meanwhile
+        for (Map.Entry<String, String> entry : folded.entrySet()) {
+            recent.remove(entry.getKey(), entry.getValue());
+        }
+        Metrics.histogram(metricPrefix + "barcodes.rebuild").recordNanos(System.nanoTime() - started);
+    }
+
+    public int size() {
+        return table.size() + recent.size();
+    }
+
+    // Estimated heap held by the table and the recent codes; product IDs are the catalog's
+    public long estimateBytes() {
+        Table current = table;
+        long bytes = MemoryFootprint.object(4, 0) + 2 * MemoryFootprint.referenceArray(current.codes.length)
+                + MemoryFootprint.array(current.displacements.length, 4);
+        for (int i = 0; i < current.codes.length; i++) {
+            if (current.codes[i] != current.productIds[i]) {
+                bytes += MemoryFootprint.string(current.codes[i]);
+            }
+        }
+        bytes += MemoryFootprint.hashMap(current.overflow.size() + recent.size());
+        for (String code : recent.keySet()) {
+            bytes += MemoryFootprint.string(code);
+        }
+        return bytes;
+    }
+
+    private void scheduleRebuild() {
+        synchronized (this) {
+            if (rebuilder == null) {
+                rebuilder = Executors.newSingleThreadExecutor(r -> {
+                    Thread thread = new Thread(r, "barcode-index-rebuild");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+            }
+        }
+        rebuilder.execute(() -> {
+            rebuildScheduled.set(false);
+            rebuild();
+        });
+    }
+
+    // Builds a minimal perfect hash table of the given codes
+    private static Table build(Map<String, String> entries) {
+        int n = entries.size();
+        String[] keys = new String[n];
+        String[] values = new String[n];
+        long[] hashes = new long[n];
+        int k = 0;
+        for (Map.Entry<String, String> entry : entries.entrySet()) {
+            keys[k] = entry.getKey();
+            values[k] = entry.getValue();
+            hashes[k] = hash(keys[k]);
+            k++;
+        }
+        int bucketCount = Math.max(1, n / BUCKET_SIZE);
+
+        // Group the codes by bucket, then order the buckets largest first (both counting sorts)
+        int[] bucketStart = new int[bucketCount + 1];
+        for (int i = 0; i < n; i++) {
+            bucketStart[bucketOf(hashes[i], bucketCount) + 1]++;
+        }
+        int largest = 0;
+        for (int b = 0; b < bucketCount; b++) {
+            largest = Math.max(largest, bucketStart[b + 1]);
+            bucketStart[b + 1] += bucketStart[b];
+        }
+        int[] members = new int[n];
+        int[] fill = bucketStart.clone();
+        for (int i = 0; i < n; i++) {
+            members[fill[bucketOf(hashes[i], bucketCount)]++] = i;
+        }
+        int[] sizeStart = new int[largest + 2];
+        for (int b = 0; b < bucketCount; b++) {
+            sizeStart[largest - (bucketStart[b + 1] - bucketStart[b]) + 1]++;
+        }
+        for (int s = 0; s <= largest; s++) {
+            sizeStart[s + 1] += sizeStart[s];
+        }
+        int[] bySize = new int[bucketCount];
+        for (int b = 0; b < bucketCount; b++) {
+            bySize[sizeStart[largest - (bucketStart[b + 1] - bucketStart[b])]++] = b;
+        }
+
+        String[] codes = new String[n];
+        String[] productIds = new String[n];
+        int[] displacements = new int[bucketCount];
+        boolean[] taken = new boolean[n];
+        Map<String, String> overflow = new HashMap<>();
+        int[] slots = new int[largest];
+        int nextFree = 0;
+        for (int b : bySize) {
+            int first = bucketStart[b];
+            int size = bucketStart[b + 1] - first;
+            if (size == 0) {
+                break;
+            }
+            if (size == 1) {
+                while (taken[nextFree]) {
+                    nextFree++;
+                }
+                place(members[first], nextFree, keys, values, codes, productIds, taken);
+                displacements[b] = -(nextFree + 1);
+                continue;
+            }
+            int d = findDisplacement(members, first, size, hashes, taken, slots, n);
+            if (d < 0) {
+                for (int j = 0; j < size; j++) {
+                    overflow.put(keys[members[first + j]], values[members[first + j]]);
+                }
+                continue;
+            }
+            displacements[b] = d;
+            for (int j = 0; j < size; j++) {
+                place(members[first + j], slots[j], keys, values, codes, productIds, taken);
+            }
+        }
+        if (!overflow.isEmpty()) {
+            // Compact away the slots the overflowing codes would have used
+            return build(withoutOverflow(keys, values, overflow), overflow);
+        }
+        return new Table(codes, productIds, displacements, overflow);
+    }
+
+    private static Map<String, String> withoutOverflow(String[] keys, String[] values, Map<String, String> overflow) {
+        Map<String, String> rest = new HashMap<>();
+        for (int i = 0; i < keys.length; i++) {
+            if (!overflow.containsKey(keys[i])) {
+                rest.put(keys[i], values[i]);
+            }
+        }
+        return rest;
+    }
+
+    private static Table build(Map<String, String> entries, Map<String, String> overflow) {
+        Table table = build(entries);
+        Map<String, String> allOverflow = new HashMap<>(table.overflow);
+        allOverflow.putAll(overflow);
+        return new Table(table.codes, table.productIds, table.displacements, allOverflow);
+    }
+
+    // The smallest displacement sending every code of the bucket to a distinct free
+    // slot (left in slots), or -1 if there is none below MAX_DISPLACEMENT
+    private static int findDisplacement(int[] members, int first, int size, long[] hashes, boolean[] taken,
+                                        int[] slots, int n) {
+        for (int d = 0; d < MAX_DISPLACEMENT; d++) {
+            boolean fits = true;
+            for (int j = 0; j < size && fits; j++) {
+                int slot = slotOf(hashes[members[first + j]], d, n);
+                fits = !taken[slot];
+                for (int i = 0; i < j && fits; i++) {
+                    fits = slots[i] != slot;
+                }
+                slots[j] = slot;
+            }
+            if (fits) {
+                return d;
+            }
+        }
+        return -1;
+    }
+
+    private static void place(int member, int slot, String[] keys, String[] values, String[] codes,
+                              String[] productIds, boolean[] taken) {
+        codes[slot] = keys[member];
+        productIds[slot] = values[member];
+        taken[slot] = true;
+    }
+
+    // Buckets come from the hash's high 32 bits and slots from a remix of the whole hash,
+    // both scaled to the range by a multiply and shift rather than a division
+    private static int bucketOf(long hash, int bucketCount) {
+        return (int) (((hash >>> 32) * bucketCount) >>> 32);
+    }
+
+    private static int slotOf(long hash, int displacement, int n) {
+        if (displacement < 0) {
+            return -displacement - 1;
+        }
+        return (int) (((mix(hash + displacement * 0x9E3779B97F4A7C15L) >>> 32) * n) >>> 32);
+    }
+
+    private static boolean isDigits(String value) {
+        for (int i = 0; i < value.length(); i++) {
+            if (value.charAt(i) < '0' || value.charAt(i) > '9') {
+                return false;
+            }
+        }
+        return !value.isEmpty();
+    }
+
+    // 64-bit FNV-1a of the code, finished with a mix so the low bits are well spread
+    private static long hash(String code) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < code.length(); i++) {
+            hash ^= code.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return mix(hash);
+    }
+
+    private static long mix(long value) {
+        value ^= value >>> 33;
+        value *= 0xff51afd7ed558ccdL;
+        value ^= value >>> 33;
+        value *= 0xc4ceb9fe1a85ec53L;
+        value ^= value >>> 33;
+        return value;
+    }
+}
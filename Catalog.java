@@ -0,0 +1,450 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.BooleanSupplier;
+
+// The product catalog shared by the Inventory and Sales screens: an in-memory view of
+// every product, sorted by ID, backed by a CatalogStore for reads and writes.
+//
+// Sales are rung up against the in-memory view straight away but reach the store later
+// through the sale outbox. Until then the store still holds the old stock, so for every
+// product this class tracks the units sold but not yet written ("pending"), and writes
+// stock + pending whenever it stores a product for any other reason. That way an edit
+// made between a sale and its replay does not cause the sale to be subtracted twice.
+public class Catalog {
+    private final CatalogStore store;
+    private final TreeMap<String, Product> products = new TreeMap<>();
+    private final Map<String, Integer> pendingUnits = new HashMap<>();
+    private final SalesVelocity velocity = new SalesVelocity();
+    private final BarcodeIndex barcodes;
+    private final String metricPrefix;
+    private final List<CatalogListener> listeners = new CopyOnWriteArrayList<>();
+
+    public Catalog(CatalogStore store) throws IOException {
+        this(store, "");
+    }
+
+    // metricPrefix goes in front of the catalog's metric and footprint names (see
+    // StoreChain.metricPrefix)
+    public Catalog(CatalogStore store, String metricPrefix) throws IOException {
+        this.store = store;
+        this.metricPrefix = metricPrefix;
+        for (Product product : store.loadAll()) {
+            products.put(product.getProductId(), product);
+        }
+        barcodes = new BarcodeIndex(products.keySet(), metricPrefix);
+        MemoryFootprint.register(metricPrefix + "catalog", this::estimateBytes);
+        MemoryFootprint.register(metricPrefix + "catalog.velocity", velocity::estimateBytes);
+        Metrics.gauge("memory." + metricPrefix + "catalog.bytesPerSku", () -> size() == 0 ? 0 : estimateBytes() / size());
+    }
+
+    // Opens this till's catalog: the partition of the store named by the "pos.storeId"
+    // system property, or the working directory when no store is set
+    public static Catalog open() throws IOException {
+        return open(StoreChain.tillDirectory());
+    }
+
+    // Opens the catalog kept in the given directory. The "pos.store" system property selects
+    // the backend: "text" (default) uses products.txt directly, "lsm" uses the embedded store
+    // in catalog-db and "sharded" the shard files in catalog-shards; both of those import
+    // products.txt the first time they are opened.
+    // Barcodes and other codes for the products are read from barcodes.txt if there is one.
+    public static Catalog open(String directory) throws IOException {
+        return open(directory, false);
+    }
+
+    // Opens the catalog kept in the given directory for a tool that may run next to a till:
+    // the store is opened read-only (no lock, nothing created, imported, cut off or
+    // flushed, every write fails), and a missing or empty lsm or sharded store is read
+    // from products.txt instead
+    public static Catalog openReadOnly(String directory) throws IOException {
+        return open(directory, true);
+    }
+
+    private static Catalog open(String directory, boolean readOnly) throws IOException {
+        Catalog catalog = new Catalog(openStore(directory, readOnly), StoreChain.metricPrefix(Paths.get(directory)));
+        Path barcodesFile = Paths.get(directory, "barcodes.txt");
+        if (Files.exists(barcodesFile)) {
+            catalog.barcodes.loadAliases(barcodesFile);
+        }
+        return catalog;
+    }
+
+    // Opens the store kept in the given directory, without loading it into a catalog
+    public static CatalogStore openStore(String directory) throws IOException {
+        return openStore(directory, false);
+    }
+
+    private static CatalogStore openStore(String directory, boolean readOnly) throws IOException {
+        String productsFile = Paths.get(directory, "products.txt").toString();
+        String kind = System.getProperty("pos.store", "text");
+        if ("lsm".equalsIgnoreCase(kind)) {
+            return openImporting(Paths.get(directory, "catalog-db"), productsFile, readOnly,
+                    readOnly ? LsmCatalogStore::openReadOnly : LsmCatalogStore::new);
+        }
+        if ("sharded".equalsIgnoreCase(kind)) {
+            return openImporting(Paths.get(directory, "catalog-shards"), productsFile, readOnly,
+                    readOnly ? ShardedCatalogStore::openReadOnly : ShardedCatalogStore::new);
+        }
+        return readOnly ? TextFileCatalogStore.openReadOnly(productsFile) : new TextFileCatalogStore(productsFile);
+    }
+
+    private interface StoreOpener {
+        CatalogStore open(String directory) throws IOException;
+    }
+
+    // Opens the store in storeDirectory and fills it from productsFile if it is empty.
+    // Read-only, a missing or empty store is left alone and productsFile is read in its place.
+    private static CatalogStore openImporting(Path storeDirectory, String productsFile, boolean readOnly,
+                                              StoreOpener opener) throws IOException {
+        if (readOnly && !Files.isDirectory(storeDirectory)) {
+            return TextFileCatalogStore.openReadOnly(productsFile);
+        }
+        CatalogStore store = opener.open(storeDirectory.toString());
+        if (store.isEmpty() && Files.exists(Paths.get(productsFile))) {
+            if (readOnly) {
+                store.close();
+                return TextFileCatalogStore.openReadOnly(productsFile);
+            }
+            TextFileCatalogStore legacy = new TextFileCatalogStore(productsFile);
+            store.writeBatch(legacy.loadAll(), Collections.emptyList(), legacy.getAppliedSequence());
+        }
+        return store;
+    }
+
+    // Prefix of this catalog's metric and footprint names; "" outside a store partition
+    public String getMetricPrefix() {
+        return metricPrefix;
+    }
+
+    public CatalogStore getStore() {
+        return store;
+    }
+
+    // Rolling sales rates fed by every sale rung up against this catalog
+    public SalesVelocity getVelocity() {
+        return velocity;
+    }
+
+    // Every code the products can be scanned or typed by, their IDs included
+    public BarcodeIndex getBarcodes() {
+        return barcodes;
+    }
+
+    // The product with the given ID or barcode, matched ignoring case; null if there is none.
+    // An exact ID wins, so two IDs that differ only in case are both found.
+    public Product findByCode(String code) {
+        Product exact = get(code.trim());
+        if (exact != null) {
+            return exact;
+        }
+        String productId = barcodes.lookup(code);
+        return productId == null ? null : get(productId);
+    }
+
+    public void addListener(CatalogListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(CatalogListener listener) {
+        listeners.remove(listener);
+    }
+
+    // Returns a copy of the products in ID order
+    public synchronized ArrayList<Product> getProducts() {
+        return new ArrayList<>(products.values());
+    }
+
+    public synchronized Product get(String productId) {
+        return products.get(productId);
+    }
+
+    public synchronized int size() {
+        return products.size();
+    }
+
+    // Estimated heap held by the products, the map sorting them and the pending sales
+    public synchronized long estimateBytes() {
+        return MemoryFootprint.treeMap(products.size()) + MemoryFootprint.products(products.values())
+                + MemoryFootprint.hashMap(pendingUnits.size()) + pendingUnits.size() * MemoryFootprint.object(0, 4);
+    }
+
+    // Adds or replaces a product and writes it to the store
+    public synchronized void put(Product product) throws IOException {
+        store.put(forStore(product));
+        products.put(product.getProductId(), product);
+        barcodes.addId(product.getProductId());
+        fireChanged(product);
+    }
+
+    // Replaces the product stored under oldId, which may differ from the new product's ID
+    public synchronized void replace(String oldId, Product product) throws IOException {
+        List<String> deletes = new ArrayList<>();
+        if (!oldId.equals(product.getProductId())) {
+            deletes.add(oldId);
+            Integer pending = pendingUnits.remove(oldId);
+            if (pending != null) {
+                pendingUnits.merge(product.getProductId(), pending, Integer::sum);
+            }
+        }
+        store.writeBatch(Collections.singletonList(forStore(product)), deletes, store.getAppliedSequence());
+        products.remove(oldId);
+        products.put(product.getProductId(), product);
+        if (!oldId.equals(product.getProductId())) {
+            barcodes.rename(oldId, product.getProductId());
+            velocity.rename(oldId, product.getProductId());
+            fireRemoved(oldId);
+        }
+        fireChanged(product);
+    }
+
+    // Applies an edit made on a copy of a product that showed stockBefore units. Sales and
+    // refills since then are kept: only the change the user made to the stock field is
+    // applied to the current stock. Returns the stored product, or null if the product
+    // has been removed in the meantime.
+    public synchronized Product edit(String oldId, Product edited, int stockBefore) throws IOException {
+        Product current = products.get(oldId);
+        if (current == null) {
+            return null;
+        }
+        int stock = Math.max(0, current.getProductStock() + edited.getProductStock() - stockBefore);
+        Product product = edited.withStock(stock);
+        replace(oldId, product);
+        return product;
+    }
+
+    public synchronized void remove(String productId) throws IOException {
+        store.delete(productId);
+        products.remove(productId);
+        pendingUnits.remove(productId);
+        fireRemoved(productId);
+    }
+
+    // Sets a product's stock and writes it to the store
+    public synchronized void setStock(Product product, int newStock) throws IOException {
+        product.setProductStock(newStock);
+        store.put(forStore(product));
+        fireChanged(product);
+    }
+
+    // Refills a product up to the given level; returns the units added
+    public synchronized int replenishTo(String productId, int level) throws IOException {
+        Product product = products.get(productId);
+        if (product == null || product.getProductStock() >= level) {
+            return 0;
+        }
+        int units = level - product.getProductStock();
+        setStock(product, level);
+        return units;
+    }
+
+    // Takes units off the in-memory stock for a sale about to be recorded, as one step, so
+    // two tills can never sell the same last unit. Lines for unknown products or with too
+    // little stock are left out; returns the lines that were taken. Taken units count as
+    // pending straight away, so a store write before the sale reaches the outbox still
+    // writes the stock without them.
+    public synchronized Map<String, Integer> reserve(Map<String, Integer> lines) {
+        Map<String, Integer> taken = new LinkedHashMap<>();
+        for (Map.Entry<String, Integer> line : lines.entrySet()) {
+            Product product = products.get(line.getKey());
+            if (product != null && line.getValue() > 0 && product.getProductStock() >= line.getValue()) {
+                product.adjustStock(-line.getValue());
+                pendingUnits.merge(line.getKey(), line.getValue(), Integer::sum);
+                taken.put(line.getKey(), line.getValue());
+                fireChanged(product);
+            }
+        }
+        return taken;
+    }
+
+    // Gives back units taken by reserve for a sale that could not be recorded
+    public synchronized void release(Map<String, Integer> lines) {
+        for (Map.Entry<String, Integer> line : lines.entrySet()) {
+            pendingUnits.computeIfPresent(line.getKey(), (id, units) -> units > line.getValue() ? units - line.getValue() : null);
+            Product product = products.get(line.getKey());
+            if (product != null) {
+                product.adjustStock(line.getValue());
+                fireChanged(product);
+            }
+        }
+    }
+
+    // Applies a sale that is recorded in the outbox but not yet in the store, without
+    // checking stock: used for sales left over from a previous run, which already happened
+    public synchronized void markPending(Sale sale) {
+        for (Map.Entry<String, Integer> line : sale.getLines().entrySet()) {
+            Product product = products.get(line.getKey());
+            if (product != null) {
+                product.adjustStock(-line.getValue());
+                fireChanged(product);
+            }
+            pendingUnits.merge(line.getKey(), line.getValue(), Integer::sum);
+        }
+        velocity.record(sale);
+    }
+
+    // Writes pending sales to the store in one batch, together with the highest sale ID,
+    // reading the stored stock rather than the in-memory one
+    public synchronized void applySales(List<Sale> sales) throws IOException {
+        long sequence = store.getAppliedSequence();
+        Map<String, Integer> sold = new HashMap<>();
+        for (Sale sale : sales) {
+            if (sale.getSaleId() <= sequence) {
+                continue;
+            }
+            for (Map.Entry<String, Integer> line : sale.getLines().entrySet()) {
+                sold.merge(line.getKey(), line.getValue(), Integer::sum);
+            }
+        }
+        long newSequence = sequence;
+        for (Sale sale : sales) {
+            newSequence = Math.max(newSequence, sale.getSaleId());
+        }
+        if (newSequence == sequence) {
+            return;
+        }
+
+        // One read of the store for the whole batch
+        Map<String, Product> storedProducts = store.getAll(sold.keySet());
+        List<Product> puts = new ArrayList<>();
+        for (Map.Entry<String, Integer> entry : sold.entrySet()) {
+            Product stored = storedProducts.get(entry.getKey());
+            if (stored == null) {
+                continue;
+            }
+            int newStock = stored.getProductStock() - entry.getValue();
+            if (newStock < 0) {
+                System.err.println("Stock for " + entry.getKey() + " would go below zero, clamping to 0");
+                newStock = 0;
+            }
+            puts.add(stored.withStock(newStock));
+        }
+        store.writeBatch(puts, Collections.emptyList(), newSequence);
+
+        for (Map.Entry<String, Integer> entry : sold.entrySet()) {
+            pendingUnits.computeIfPresent(entry.getKey(), (id, units) -> units > entry.getValue() ? units - entry.getValue() : null);
+        }
+    }
+
+    // Every product's ID and stock as of one instant, in ID order, for a stock-take. Only
+    // the IDs and counts are copied, so the catalog is locked for as short a time as possible.
+    public synchronized StockTake.Snapshot snapshotStock() {
+        String[] ids = new String[products.size()];
+        int[] stock = new int[ids.length];
+        int i = 0;
+        for (Product product : products.values()) {
+            ids[i] = product.getProductId();
+            stock[i] = product.getProductStock();
+            i++;
+        }
+        return new StockTake.Snapshot(ids, stock, System.currentTimeMillis());
+    }
+
+    // Adds a (possibly negative) number of units to each product's stock, clamped at 0,
+    // and writes all of them to the store as one batch; nothing changes if that fails.
+    // Unknown IDs are skipped. Returns the new stock of every product that was adjusted.
+    public synchronized Map<String, Integer> adjustStock(Map<String, Integer> deltas) throws IOException {
+        Map<String, Integer> newStock = new LinkedHashMap<>();
+        List<Product> puts = new ArrayList<>();
+        for (Map.Entry<String, Integer> delta : deltas.entrySet()) {
+            Product product = products.get(delta.getKey());
+            if (product == null) {
+                continue;
+            }
+            int stock = Math.max(0, product.getProductStock() + delta.getValue());
+            newStock.put(delta.getKey(), stock);
+            puts.add(forStore(product.withStock(stock)));
+        }
+        if (puts.isEmpty()) {
+            return newStock;
+        }
+        store.writeBatch(puts, Collections.emptyList(), store.getAppliedSequence());
+        for (Map.Entry<String, Integer> entry : newStock.entrySet()) {
+            Product product = products.get(entry.getKey());
+            product.setProductStock(entry.getValue());
+            fireChanged(product);
+        }
+        return newStock;
+    }
+
+    // What the store should hold for every product: the in-memory products with their
+    // pending sales added back
+    public synchronized List<Product> getStoredProducts() {
+        List<Product> stored = new ArrayList<>(products.size());
+        for (Product product : products.values()) {
+            stored.add(forStore(product));
+        }
+        return stored;
+    }
+
+    // Merges records that were changed or removed in the store by another program. Fields
+    // of an externally changed record win; sales not yet written to the store are
+    // subtracted from its stock again, so they are not lost. A changed record that matches
+    // what this catalog would store is its own write and is skipped. Nothing is merged if
+    // storeUnchanged reports that the store changed again since the records were read
+    // (the caller then reads it again); returns -1 in that case, else the number of
+    // products changed in memory.
+    public synchronized int mergeExternal(Collection<Product> changed, Collection<String> removed,
+                                          BooleanSupplier storeUnchanged) {
+        if (!storeUnchanged.getAsBoolean()) {
+            return -1;
+        }
+        ProductEncoder encoder = new ProductEncoder(new SimpleDateFormat("dd-MMM-yyyy"));
+        int merged = 0;
+        for (Product record : changed) {
+            String id = record.getProductId();
+            Product current = products.get(id);
+            if (current != null && encoder.encode(forStore(current)).equals(encoder.encode(record))) {
+                continue;
+            }
+            Integer pending = pendingUnits.get(id);
+            Product product = pending == null ? record : record.withStock(record.getProductStock() - pending);
+            if (products.put(id, product) == null) {
+                barcodes.addId(id);
+            }
+            fireChanged(product);
+            merged++;
+        }
+        for (String id : removed) {
+            if (products.remove(id) != null) {
+                pendingUnits.remove(id);
+                fireRemoved(id);
+                merged++;
+            }
+        }
+        return merged;
+    }
+
+    private void fireChanged(Product product) {
+        if (listeners.isEmpty()) {
+            return;
+        }
+        Product copy = product.withStock(product.getProductStock());
+        for (CatalogListener listener : listeners) {
+            listener.productChanged(copy);
+        }
+    }
+
+    private void fireRemoved(String productId) {
+        for (CatalogListener listener : listeners) {
+            listener.productRemoved(productId);
+        }
+    }
+
+    // The copy of a product to hand to the store: its stock still includes pending sales
+    private Product forStore(Product product) {
+        Integer pending = pendingUnits.get(product.getProductId());
+        return pending == null ? product : product.withStock(product.getProductStock() + pending);
+    }
+}
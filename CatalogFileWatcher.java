@@ -0,0 +1,173 @@
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+// Watches a text catalog's products.txt for edits made by other programs (the back office)
+// and merges them into the running catalog.
+//
+// The watcher remembers a 64-bit hash of every record as it last saw it. When the file
+// changes it waits for the writes to settle, reads and parses the whole file on its own
+// thread, and hands the catalog only the records whose hash changed plus the IDs that
+// disappeared; the catalog then takes its lock just long enough to merge those few
+// records (see Catalog.mergeExternal for the merge policy). The catalog's own writes also
+// change the file; their records equal what the catalog would store and are skipped.
+class CatalogFileWatcher implements Closeable {
+    private static final long SETTLE_MILLIS = 200;
+
+    private final Catalog catalog;
+    private final Path file;
+    private final WatchService watchService;
+    private final Thread thread;
+    private Map<String, Long> lastSeen = new HashMap<>();
+
+    public CatalogFileWatcher(Catalog catalog, Path file) throws IOException {
+        this.catalog = catalog;
+        this.file = file.toAbsolutePath();
+        this.watchService = FileSystems.getDefault().newWatchService();
+        this.file.getParent().register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+
+        ProductEncoder encoder = new ProductEncoder(new SimpleDateFormat("dd-MMM-yyyy"));
+        for (Product product : catalog.getStoredProducts()) {
+            lastSeen.put(product.getProductId(), hash(encoder.encode(product)));
+        }
+
+        this.thread = new Thread(this::run, "catalog-watcher");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    // Starts watching if the catalog is backed by a text file; returns null otherwise
+    public static CatalogFileWatcher startIfTextFile(Catalog catalog) throws IOException {
+        if (!(catalog.getStore() instanceof TextFileCatalogStore)) {
+            return null;
+        }
+        return new CatalogFileWatcher(catalog, ((TextFileCatalogStore) catalog.getStore()).getFile());
+    }
+
+    @Override
+    public void close() throws IOException {
+        watchService.close();
+    }
+
+    private void run() {
+        // Catch anything edited between loading the catalog and starting to watch
+        reload();
+        try {
+            while (true) {
+                WatchKey key = watchService.take();
+                boolean changed = concernsFile(key);
+                // Editors often write a file in several steps; wait until it has been quiet for a while
+                WatchKey more;
+                while ((more = watchService.poll(SETTLE_MILLIS, TimeUnit.MILLISECONDS)) != null) {
+                    changed |= concernsFile(more);
+                }
+                if (changed) {
+                    reload();
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // Stopped
+        }
+    }
+
+    private boolean concernsFile(WatchKey key) {
+        boolean concerns = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+            Object context = event.context();
+            concerns |= event.kind() == StandardWatchEventKinds.OVERFLOW
+                    || (context instanceof Path && ((Path) context).equals(file.getFileName()));
+        }
+        key.reset();
+        return concerns;
+    }
+
+    // Reads the file and merges the changed records, reading again if it changes meanwhile
+    private void reload() {
+        long started = System.nanoTime();
+        while (true) {
+            try {
+                String version = version();
+                if (version == null) {
+                    return; // Mid-rename, or deleted; the next event brings it back
+                }
+                Map<String, Long> seen = new HashMap<>();
+                List<Product> changed = new ArrayList<>();
+                ProductEncoder encoder = new ProductEncoder(new SimpleDateFormat("dd-MMM-yyyy"));
+                try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        Product product;
+                        try {
+                            product = Product.fromString(line);
+                        } catch (ParseException e) {
+                            continue;
+                        }
+                        long hash = hash(encoder.encode(product));
+                        seen.put(product.getProductId(), hash);
+                        Long previous = lastSeen.get(product.getProductId());
+                        if (previous == null || previous != hash) {
+                            changed.add(product);
+                        }
+                    }
+                }
+                Set<String> removed = new HashSet<>(lastSeen.keySet());
+                removed.removeAll(seen.keySet());
+
+                int merged = changed.isEmpty() && removed.isEmpty() ? 0
+                        : catalog.mergeExternal(changed, removed, () -> version.equals(version()));
+                if (merged < 0) {
+                    continue;
+                }
+                lastSeen = seen;
+                if (merged > 0) {
+                    Metrics.histogram(catalog.getMetricPrefix() + "catalog.reload").recordNanos(System.nanoTime() - started);
+                    System.out.println("Reloaded " + file.getFileName() + ": " + merged + " product(s) changed by another program");
+                }
+                return;
+            } catch (IOException e) {
+                e.printStackTrace();
+                return;
+            }
+        }
+    }
+
+    // Modification time and size of the file, or null if it cannot be read right now
+    private String version() {
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+            return attributes.lastModifiedTime() + "/" + attributes.size() + "/" + attributes.fileKey();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    // 64-bit FNV-1a of a record's canonical text
+    private static long hash(String record) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < record.length(); i++) {
+            hash ^= record.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+}
@@ -0,0 +1,9 @@
+// Notified after every change to a Catalog's in-memory products, while the catalog's lock
+// is held. Implementations must return quickly and must not call back into the catalog.
+interface CatalogListener {
+
+    // A product was added or changed; the argument is a private copy of its new state
+    void productChanged(Product product);
+
+    void productRemoved(String productId);
+}
@@ -0,0 +1,436 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.Predicate;
+import java.util.stream.DoubleStream;
+import java.util.stream.IntStream;
+
+// Filter / sort / project / group-by queries over a snapshot of the catalog, e.g.
+//
+//   CatalogQuery.of(catalog.getProducts())
+//           .active()
+//           .where(Column.STOCK, Op.LT, 20)
+//           .whereEquals(Column.CATEGORY, "Dry Food")
+//           .orderBy(Column.VALUE, true)
+//           .rows();
+//
+// The snapshot is laid out by column: numeric fields in double arrays, category and
+// status as codes into a small dictionary. Every condition is turned into a predicate on
+// one row index that reads a single array slot, so a string match against a category is
+// resolved against the dictionary once, not compared per row. Catalogs of at least
+// PARALLEL_THRESHOLD products are filtered, sorted and aggregated in parallel on the
+// common fork-join pool; smaller ones run sequentially, where the fork-join overhead
+// would cost more than it saves.
+class CatalogQuery {
+    static final int PARALLEL_THRESHOLD = 20000;
+
+    enum Column {
+        ID, NAME, CATEGORY, STATUS, STOCK, USUAL_PRICE, SELLING_PRICE, DISCOUNT,
+        // Stock times selling price
+        VALUE;
+
+        boolean isNumeric() {
+            return ordinal() >= STOCK.ordinal();
+        }
+    }
+
+    enum Op { LT, LE, GT, GE, EQ, NE }
+
+    enum Aggregate { COUNT, SUM, MIN, MAX, AVG }
+
+    // A condition on one row of the snapshot
+    interface RowPredicate {
+        boolean test(int row);
+    }
+
+    private final Product[] products;
+    private final String[] ids;
+    private final String[] names;
+    private final int[] categoryCodes;
+    private final String[] categories;
+    private final int[] statusCodes;
+    private final String[] statuses;
+    private final double[][] numeric;
+
+    private final List<RowPredicate> predicates = new ArrayList<>();
+    private Column orderBy;
+    private boolean descending;
+    private int limit = -1;
+
+    private CatalogQuery(List<Product> source) {
+        int size = source.size();
+        products = source.toArray(new Product[0]);
+        ids = new String[size];
+        names = new String[size];
+        categoryCodes = new int[size];
+        statusCodes = new int[size];
+        numeric = new double[Column.values().length - Column.STOCK.ordinal()][size];
+
+        Map<String, Integer> categoryDictionary = new TreeMap<>();
+        Map<String, Integer> statusDictionary = new TreeMap<>();
+        for (int row = 0; row < size; row++) {
+            Product product = products[row];
+            ids[row] = product.getProductId();
+            names[row] = product.getProductName();
+            categoryCodes[row] = code(categoryDictionary, product.getProductCategory());
+            statusCodes[row] = code(statusDictionary, product.getProductStatus());
+            numeric(Column.STOCK)[row] = product.getProductStock();
+            numeric(Column.USUAL_PRICE)[row] = product.getProductUsualPrice();
+            numeric(Column.SELLING_PRICE)[row] = product.getProductSellingPrice();
+            numeric(Column.DISCOUNT)[row] = product.getProductDiscount();
+            numeric(Column.VALUE)[row] = product.getProductStock() * product.getProductSellingPrice();
+        }
+        categories = dictionary(categoryDictionary);
+        statuses = dictionary(statusDictionary);
+    }
+
+    // Starts a query over the given products, e.g. catalog.getProducts()
+    public static CatalogQuery of(List<Product> products) {
+        return new CatalogQuery(products);
+    }
+
+    public int size() {
+        return products.length;
+    }
+
+    // Keeps rows whose numeric column compares to the value as given
+    public CatalogQuery where(Column column, Op op, double value) {
+        double[] values = numeric(column);
+        switch (op) {
+            case LT:
+                return where(row -> values[row] < value);
+            case LE:
+                return where(row -> values[row] <= value);
+            case GT:
+                return where(row -> values[row] > value);
+            case GE:
+                return where(row -> values[row] >= value);
+            case EQ:
+                return where(row -> values[row] == value);
+            default:
+                return where(row -> values[row] != value);
+        }
+    }
+
+    // Keeps rows whose text column equals the value, ignoring case
+    public CatalogQuery whereEquals(Column column, String value) {
+        return whereText(column, text -> text.equalsIgnoreCase(value));
+    }
+
+    // Keeps rows whose text column contains the value, ignoring case
+    public CatalogQuery whereContains(Column column, String value) {
+        String lower = value.toLowerCase(Locale.ROOT);
+        return whereText(column, text -> text.toLowerCase(Locale.ROOT).contains(lower));
+    }
+
+    // Keeps rows whose ID, name or category contains the text, ignoring case
+    public CatalogQuery search(String text) {
+        String lower = text.toLowerCase(Locale.ROOT);
+        boolean[] categoryMatches = matchingCodes(categories, category -> category.toLowerCase(Locale.ROOT).contains(lower));
+        return where(row -> categoryMatches[categoryCodes[row]]
+                || ids[row].toLowerCase(Locale.ROOT).contains(lower)
+                || names[row].toLowerCase(Locale.ROOT).contains(lower));
+    }
+
+    // Keeps active products
+    public CatalogQuery active() {
+        return whereEquals(Column.STATUS, "Active");
+    }
+
+    // Applies a filter typed by the user: whitespace-separated terms that must all hold.
+    // A term like "stock<20" or "selling_price>=5" compares a numeric column (operators
+    // <, <=, >, >=, =, !=); any other term is searched for in ID, name and category.
+    public CatalogQuery filter(String text) {
+        for (String term : text.trim().split("\\s+")) {
+            if (term.isEmpty()) {
+                continue;
+            }
+            if (!numericTerm(term)) {
+                search(term);
+            }
+        }
+        return this;
+    }
+
+    public CatalogQuery where(RowPredicate predicate) {
+        predicates.add(predicate);
+        return this;
+    }
+
+    public CatalogQuery orderBy(Column column, boolean descending) {
+        this.orderBy = column;
+        this.descending = descending;
+        return this;
+    }
+
+    public CatalogQuery limit(int limit) {
+        this.limit = limit;
+        return this;
+    }
+
+    // The matching products
+    public ArrayList<Product> rows() {
+        ArrayList<Product> result = new ArrayList<>();
+        for (int row : matchingRows()) {
+            result.add(products[row]);
+        }
+        return result;
+    }
+
+    // The given columns of the matching products
+    public List<Object[]> select(Column... columns) {
+        List<Object[]> result = new ArrayList<>();
+        for (int row : matchingRows()) {
+            Object[] values = new Object[columns.length];
+            for (int i = 0; i < columns.length; i++) {
+                values[i] = value(columns[i], row);
+            }
+            result.add(values);
+        }
+        return result;
+    }
+
+    // One aggregate over the matching products; the column is ignored for COUNT
+    public double aggregate(Aggregate aggregate, Column column) {
+        int[] rows = matchingRows();
+        if (aggregate == Aggregate.COUNT) {
+            return rows.length;
+        }
+        double[] values = numeric(column);
+        DoubleStream stream = stream(rows).mapToDouble(row -> values[row]);
+        switch (aggregate) {
+            case SUM:
+                return stream.sum();
+            case MIN:
+                return stream.min().orElse(Double.NaN);
+            case MAX:
+                return stream.max().orElse(Double.NaN);
+            default:
+                return stream.average().orElse(Double.NaN);
+        }
+    }
+
+    // An aggregate of the matching products per category or status, in key order
+    public Map<String, Double> groupBy(Column key, Aggregate aggregate, Column column) {
+        int[] codes;
+        String[] keys;
+        if (key == Column.CATEGORY) {
+            codes = categoryCodes;
+            keys = categories;
+        } else if (key == Column.STATUS) {
+            codes = statusCodes;
+            keys = statuses;
+        } else {
+            throw new IllegalArgumentException("Cannot group by " + key);
+        }
+        double[] values = aggregate == Aggregate.COUNT ? null : numeric(column);
+
+        // Per group: count, sum, min, max
+        double[][] groups = stream(matchingRows()).collect(() -> newGroups(keys.length), (acc, row) -> {
+            double[] group = acc[codes[row]];
+            double value = values == null ? 0 : values[row];
+            group[0]++;
+            group[1] += value;
+            group[2] = Math.min(group[2], value);
+            group[3] = Math.max(group[3], value);
+        }, (left, right) -> {
+            for (int g = 0; g < left.length; g++) {
+                left[g][0] += right[g][0];
+                left[g][1] += right[g][1];
+                left[g][2] = Math.min(left[g][2], right[g][2]);
+                left[g][3] = Math.max(left[g][3], right[g][3]);
+            }
+        });
+
+        Map<String, Double> result = new TreeMap<>();
+        for (int g = 0; g < keys.length; g++) {
+            double[] group = groups[g];
+            if (group[0] == 0) {
+                continue;
+            }
+            switch (aggregate) {
+                case COUNT:
+                    result.put(keys[g], group[0]);
+                    break;
+                case SUM:
+                    result.put(keys[g], group[1]);
+                    break;
+                case MIN:
+                    result.put(keys[g], group[2]);
+                    break;
+                case MAX:
+                    result.put(keys[g], group[3]);
+                    break;
+                default:
+                    result.put(keys[g], group[1] / group[0]);
+            }
+        }
+        return result;
+    }
+
+    private int[] matchingRows() {
+        RowPredicate[] all = predicates.toArray(new RowPredicate[0]);
+        IntStream rows = IntStream.range(0, products.length);
+        if (isParallel(products.length)) {
+            rows = rows.parallel();
+        }
+        int[] result = rows.filter(row -> {
+            for (RowPredicate predicate : all) {
+                if (!predicate.test(row)) {
+                    return false;
+                }
+            }
+            return true;
+        }).toArray();
+
+        if (orderBy != null) {
+            result = sorted(result);
+        }
+        if (limit >= 0 && result.length > limit) {
+            result = Arrays.copyOf(result, limit);
+        }
+        return result;
+    }
+
+    private int[] sorted(int[] rows) {
+        Comparator<Integer> comparator;
+        if (orderBy.isNumeric()) {
+            double[] values = numeric(orderBy);
+            comparator = (a, b) -> Double.compare(values[a], values[b]);
+        } else {
+            comparator = Comparator.comparing(row -> (String) value(orderBy, row));
+        }
+        if (descending) {
+            comparator = comparator.reversed();
+        }
+        Integer[] boxed = new Integer[rows.length];
+        for (int i = 0; i < rows.length; i++) {
+            boxed[i] = rows[i];
+        }
+        if (isParallel(rows.length)) {
+            Arrays.parallelSort(boxed, comparator);
+        } else {
+            Arrays.sort(boxed, comparator);
+        }
+        int[] result = new int[boxed.length];
+        for (int i = 0; i < boxed.length; i++) {
+            result[i] = boxed[i];
+        }
+        return result;
+    }
+
+    private IntStream stream(int[] rows) {
+        IntStream stream = IntStream.of(rows);
+        return isParallel(rows.length) ? stream.parallel() : stream;
+    }
+
+    private static boolean isParallel(int rows) {
+        return rows >= PARALLEL_THRESHOLD;
+    }
+
+    private CatalogQuery whereText(Column column, Predicate<String> test) {
+        switch (column) {
+            case CATEGORY: {
+                boolean[] matches = matchingCodes(categories, test);
+                return where(row -> matches[categoryCodes[row]]);
+            }
+            case STATUS: {
+                boolean[] matches = matchingCodes(statuses, test);
+                return where(row -> matches[statusCodes[row]]);
+            }
+            case ID:
+                return where(row -> test.test(ids[row]));
+            case NAME:
+                return where(row -> test.test(names[row]));
+            default:
+                throw new IllegalArgumentException(column + " is not a text column");
+        }
+    }
+
+    // Parses a term like "stock<20"; returns false if it is not a numeric comparison
+    private boolean numericTerm(String term) {
+        String[] symbols = {"<=", ">=", "!=", "<", ">", "="};
+        Op[] ops = {Op.LE, Op.GE, Op.NE, Op.LT, Op.GT, Op.EQ};
+        for (int i = 0; i < symbols.length; i++) {
+            int at = term.indexOf(symbols[i]);
+            if (at <= 0) {
+                continue;
+            }
+            try {
+                Column column = Column.valueOf(term.substring(0, at).toUpperCase(Locale.ROOT));
+                double value = Double.parseDouble(term.substring(at + symbols[i].length()));
+                if (!column.isNumeric()) {
+                    return false;
+                }
+                where(column, ops[i], value);
+                return true;
+            } catch (IllegalArgumentException e) {
+                // Not a column name or not a number; NumberFormatException is one of these
+                return false;
+            }
+        }
+        return false;
+    }
+
+    private Object value(Column column, int row) {
+        switch (column) {
+            case ID:
+                return ids[row];
+            case NAME:
+                return names[row];
+            case CATEGORY:
+                return categories[categoryCodes[row]];
+            case STATUS:
+                return statuses[statusCodes[row]];
+            case STOCK:
+            case DISCOUNT:
+                return (int) numeric(column)[row];
+            default:
+                return numeric(column)[row];
+        }
+    }
+
+    private double[] numeric(Column column) {
+        if (!column.isNumeric()) {
+            throw new IllegalArgumentException(column + " is not a numeric column");
+        }
+        return numeric[column.ordinal() - Column.STOCK.ordinal()];
+    }
+
+    private static int code(Map<String, Integer> dictionary, String value) {
+        Integer code = dictionary.get(value);
+        if (code == null) {
+            code = dictionary.size();
+            dictionary.put(value, code);
+        }
+        return code;
+    }
+
+    private static String[] dictionary(Map<String, Integer> codes) {
+        String[] values = new String[codes.size()];
+        for (Map.Entry<String, Integer> entry : codes.entrySet()) {
+            values[entry.getValue()] = entry.getKey();
+        }
+        return values;
+    }
+
+    private static boolean[] matchingCodes(String[] dictionary, Predicate<String> test) {
+        boolean[] matches = new boolean[dictionary.length];
+        for (int code = 0; code < dictionary.length; code++) {
+            matches[code] = test.test(dictionary[code]);
+        }
+        return matches;
+    }
+
+    private static double[][] newGroups(int count) {
+        double[][] groups = new double[count][];
+        for (int g = 0; g < count; g++) {
+            groups[g] = new double[]{0, 0, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY};
+        }
+        return groups;
+    }
+}
@@ -0,0 +1,56 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Persistent storage for the product catalog, keyed by product ID. Besides the products
+// themselves a store keeps an "applied sequence": the highest sale ID whose stock change
+// has been written. writeBatch updates products and the sequence atomically, which is
+// what lets the sale outbox replay without ever applying a sale twice.
+interface CatalogStore extends Closeable {
+
+    // Returns the product with the given ID, or null if there is none
+    Product get(String productId) throws IOException;
+
+    // Returns the products with the given IDs that exist, keyed by ID; a store that has to
+    // read everything for one lookup reads it once for all of them
+    default Map<String, Product> getAll(Collection<String> productIds) throws IOException {
+        Map<String, Product> found = new HashMap<>();
+        for (String productId : productIds) {
+            Product product = get(productId);
+            if (product != null) {
+                found.put(productId, product);
+            }
+        }
+        return found;
+    }
+
+    // Returns the products with fromId <= ID < toId in ID order; null leaves that end open
+    List<Product> scan(String fromId, String toId) throws IOException;
+
+    // Returns every product in ID order
+    default List<Product> loadAll() throws IOException {
+        return scan(null, null);
+    }
+
+    // True if the store holds no products and has never recorded a sale
+    default boolean isEmpty() throws IOException {
+        return getAppliedSequence() == 0 && loadAll().isEmpty();
+    }
+
+    // Inserts or replaces a single product
+    void put(Product product) throws IOException;
+
+    // Removes a single product; removing an unknown ID is not an error
+    void delete(String productId) throws IOException;
+
+    // Applies all puts and deletes and records the applied sequence as one atomic change
+    void writeBatch(List<Product> puts, List<String> deletes, long appliedSequence) throws IOException;
+
+    long getAppliedSequence() throws IOException;
+
+    // Human-readable description used in logs and reports
+    String describe();
+}
@@ -0,0 +1,381 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Checkout as a pipeline of stages, each on its own thread, connected by bounded queues:
+//   validate  drop empty lines and products that are gone or no longer active
+//   price     price each line the cart did not come priced with, using the promotion engine
+//   reserve   take the units off the catalog (Catalog.reserve)
+//   commit    append the sales to the outbox; everything waiting is written with one force
+//   receipt   hand the receipt to the caller: the sale is durable from here on
+//   persist   write the outbox to the catalog store and sales history, once per batch
+// so one sale can be reserved while the previous one is being forced to disk and an
+// earlier one written to the store. Each queue holds QUEUE_CAPACITY orders; when a stage
+// falls behind (a slow store, a slow disk) its queue fills, the stage before it blocks on
+// it, and so on back to submit, rather than orders piling up in memory.
+//
+// Stages run on virtual threads when the runtime has them (Java 21+), else on daemon
+// platform threads. The depth of every queue is a gauge ("checkout.<stage>.queue"), the
+// time spent in every stage a histogram ("checkout.<stage>"), and "checkout.total" is the
+// time from submit to receipt.
+//
+// A stage that throws fails the orders of that batch that have no sale yet: their
+// reservations are released, their receipts carry the error, and the stage goes on with
+// the next batch. "checkout.errors" counts such batches.
+class CheckoutPipeline implements Closeable {
+    private static final int QUEUE_CAPACITY = 64;
+    private static final int MAX_BATCH = 32;
+
+    // Receives the outcome of a submitted cart, on a pipeline thread
+    public interface ReceiptListener {
+        void receiptReady(Receipt receipt);
+    }
+
+    // The outcome of a checkout. If nothing could be sold, or the sale could not be saved
+    // (getFailure() is then set), getSale() is null and nothing was taken off the stock.
+    public static final class Receipt {
+        private final Sale sale;
+        private final double total;
+        private final List<String> problems;
+        private final IOException failure;
+
+        Receipt(Sale sale, double total, List<String> problems, IOException failure) {
+            this.sale = sale;
+            this.total = total;
+            this.problems = Collections.unmodifiableList(problems);
+            this.failure = failure;
+        }
+
+        public Sale getSale() {
+            return sale;
+        }
+
+        // Grand total of the lines actually sold, after promotions
+        public double getTotal() {
+            return total;
+        }
+
+        // Lines that were left out, one message each
+        public List<String> getProblems() {
+            return problems;
+        }
+
+        public IOException getFailure() {
+            return failure;
+        }
+    }
+
+    // A cart on its way through the stages; each stage fills in its part
+    private static final class Order {
+        final Map<Product, Integer> cart;
+        final ReceiptListener listener;
+        final long submittedAt = System.nanoTime();
+        final Map<String, Integer> lines = new LinkedHashMap<>();
+        final Map<String, Double> lineTotals = new HashMap<>();
+        final Map<String, String> names = new HashMap<>();
+        final List<String> problems = new ArrayList<>();
+        Map<String, Integer> taken = Collections.emptyMap();
+        Sale sale;
+        IOException failure;
+
+        Order(Map<Product, Integer> cart, Map<String, Double> lineTotals, ReceiptListener listener) {
+            this.cart = cart;
+            this.lineTotals.putAll(lineTotals);
+            this.listener = listener;
+        }
+
+        // True once there is nothing left for the remaining stages to do but report
+        boolean done() {
+            return failure != null || lines.isEmpty();
+        }
+    }
+
+    // Passed through every stage by close(); each stage exits after forwarding it
+    private static final Order END = new Order(Collections.emptyMap(), Collections.emptyMap(), null);
+
+    private interface Step {
+        void process(List<Order> batch);
+    }
+
+    // One stage: a thread taking batches of up to maxBatch orders off its queue
+    private final class Stage {
+        final String name;
+        final BlockingQueue<Order> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+        final int maxBatch;
+        final Step step;
+        final LatencyHistogram latency;
+        Stage next;
+        Thread thread;
+
+        Stage(String name, int maxBatch, Step step) {
+            this.name = name;
+            this.maxBatch = maxBatch;
+            this.step = step;
+            this.latency = Metrics.histogram("checkout." + name);
+            Metrics.gauge("checkout." + name + ".queue", queue::size);
+        }
+
+        void run() {
+            List<Order> batch = new ArrayList<>(maxBatch);
+            try {
+                while (true) {
+                    batch.add(queue.take());
+                    queue.drainTo(batch, maxBatch - 1);
+                    boolean ending = batch.remove(END);
+                    if (!batch.isEmpty()) {
+                        long started = System.nanoTime();
+                        try {
+                            step.process(batch);
+                        } catch (RuntimeException e) {
+                            fail(name, batch, e);
+                        }
+                        long elapsed = System.nanoTime() - started;
+                        for (Order order : batch) {
+                            latency.recordNanos(elapsed);
+                            if (next != null) {
+                                next.queue.put(order);
+                            }
+                        }
+                    }
+                    batch.clear();
+                    if (ending) {
+                        if (next != null) {
+                            next.queue.put(END);
+                        }
+                        return;
+                    }
+                }
+            } catch (InterruptedException e) {
+                // Abandoned
+            }
+        }
+    }
+
+    private final Catalog catalog;
+    private final SaleOutbox outbox;
+    private final PromotionEngine engine;
+    private final List<Stage> stages = new ArrayList<>();
+    private final LatencyHistogram total = Metrics.histogram("checkout.total");
+    private final AtomicLong errors = new AtomicLong();
+    private volatile boolean closed;
+
+    public CheckoutPipeline(Catalog catalog, SaleOutbox outbox, PromotionEngine engine) {
+        this.catalog = catalog;
+        this.outbox = outbox;
+        this.engine = engine;
+
+        Metrics.gauge("checkout.errors", errors::get);
+        stages.add(new Stage("validate", MAX_BATCH, this::validate));
+        stages.add(new Stage("price", MAX_BATCH, this::price));
+        stages.add(new Stage("reserve", MAX_BATCH, this::reserve));
+        stages.add(new Stage("commit", MAX_BATCH, this::commit));
+        stages.add(new Stage("receipt", MAX_BATCH, this::emitReceipts));
+        stages.add(new Stage("persist", QUEUE_CAPACITY, this::persist));
+        ThreadFactory threads = stageThreadFactory();
+        for (int i = 0; i < stages.size(); i++) {
+            Stage stage = stages.get(i);
+            stage.next = i + 1 < stages.size() ? stages.get(i + 1) : null;
+            stage.thread = threads.newThread(stage::run);
+            stage.thread.setName("checkout-" + stage.name);
+            stage.thread.start();
+        }
+    }
+
+    // Queues a cart for checkout, waiting while the pipeline is full. The cart is copied.
+    public void submit(Map<Product, Integer> cart, ReceiptListener listener) throws InterruptedException {
+        if (closed) {
+            throw new IllegalStateException("Checkout pipeline is closed");
+        }
+        stages.get(0).queue.put(new Order(new LinkedHashMap<>(cart), Collections.emptyMap(), listener));
+    }
+
+    // Queues a cart for checkout if the pipeline has room right now, without waiting;
+    // returns false if it is full. Safe to call from the event thread. The cart is copied.
+    // lineTotals holds the cart's own prices by product ID (PricedCart.lineTotalsById), so
+    // the customer pays what the cart showed; lines missing from it are priced here.
+    public boolean offer(Map<Product, Integer> cart, Map<String, Double> lineTotals, ReceiptListener listener) {
+        if (closed) {
+            throw new IllegalStateException("Checkout pipeline is closed");
+        }
+        return stages.get(0).queue.offer(new Order(new LinkedHashMap<>(cart), lineTotals, listener));
+    }
+
+    // Finishes every order already submitted, then stops the stages
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            stages.get(0).queue.put(END);
+            stages.get(stages.size() - 1).thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Fails every order of the batch that has no sale yet and gives back what it reserved;
+    // orders already committed to the outbox are sold and go on as they are
+    private void fail(String stage, List<Order> batch, RuntimeException e) {
+        e.printStackTrace();
+        errors.incrementAndGet();
+        IOException failure = new IOException("Checkout failed in the " + stage + " stage: " + e, e);
+        for (Order order : batch) {
+            if (order.sale != null || order.failure != null) {
+                continue;
+            }
+            order.failure = failure;
+            if (!order.taken.isEmpty()) {
+                try {
+                    catalog.release(order.taken);
+                } catch (RuntimeException releaseFailed) {
+                    releaseFailed.printStackTrace();
+                }
+                order.taken = Collections.emptyMap();
+            }
+        }
+    }
+
+    private void validate(List<Order> batch) {
+        for (Order order : batch) {
+            for (Map.Entry<Product, Integer> entry : order.cart.entrySet()) {
+                Product product = entry.getKey();
+                order.names.put(product.getProductId(), product.getProductName());
+                if (entry.getValue() <= 0) {
+                    continue;
+                }
+                Product current = catalog.get(product.getProductId());
+                if (current == null || !current.isActive()) {
+                    order.problems.add(product.getProductName() + " is no longer for sale");
+                    continue;
+                }
+                order.lines.merge(product.getProductId(), entry.getValue(), Integer::sum);
+            }
+        }
+    }
+
+    private void price(List<Order> batch) {
+        for (Order order : batch) {
+            if (order.done()) {
+                continue;
+            }
+            for (Map.Entry<String, Integer> line : order.lines.entrySet()) {
+                if (order.lineTotals.containsKey(line.getKey())) {
+                    continue;
+                }
+                Product product = catalog.get(line.getKey());
+                if (product != null) {
+                    order.lineTotals.put(line.getKey(), engine.priceLine(product, line.getValue()));
+                }
+            }
+        }
+    }
+
+    private void reserve(List<Order> batch) {
+        for (Order order : batch) {
+            if (order.done()) {
+                continue;
+            }
+            order.taken = catalog.reserve(order.lines);
+            for (String productId : order.lines.keySet()) {
+                if (!order.taken.containsKey(productId)) {
+                    order.problems.add("Insufficient stock for product " + order.names.get(productId));
+                }
+            }
+        }
+    }
+
+    // Commits every reserved order of the batch with one outbox write
+    private void commit(List<Order> batch) {
+        List<Order> committing = new ArrayList<>();
+        List<Map<String, Integer>> reserved = new ArrayList<>();
+        for (Order order : batch) {
+            if (!order.done() && !order.taken.isEmpty()) {
+                committing.add(order);
+                reserved.add(order.taken);
+            }
+        }
+        if (committing.isEmpty()) {
+            return;
+        }
+        try {
+            List<Sale> sales = outbox.commit(reserved);
+            for (int i = 0; i < committing.size(); i++) {
+                committing.get(i).sale = sales.get(i);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            for (Order order : committing) {
+                order.failure = e;
+            }
+        }
+    }
+
+    private void emitReceipts(List<Order> batch) {
+        for (Order order : batch) {
+            double subtotal = 0;
+            if (order.sale != null) {
+                for (String productId : order.sale.getLines().keySet()) {
+                    subtotal += order.lineTotals.getOrDefault(productId, 0.0);
+                }
+            }
+            double grandTotal = subtotal;
+            try {
+                grandTotal = subtotal - subtotal * engine.basketPercentFor(subtotal) / 100;
+            } catch (RuntimeException e) {
+                // The sale stands; its receipt just lacks the basket discount
+                e.printStackTrace();
+            }
+            Receipt receipt = new Receipt(order.sale, grandTotal, order.problems, order.failure);
+            total.recordNanos(System.nanoTime() - order.submittedAt);
+            try {
+                order.listener.receiptReady(receipt);
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    // One store write for however many sales committed since the last one
+    private void persist(List<Order> batch) {
+        for (Order order : batch) {
+            if (order.sale != null) {
+                try {
+                    outbox.replay();
+                } catch (IOException e) {
+                    // Store locked or unavailable; the outbox keeps retrying on its own
+                    System.err.println("Outbox replay deferred: " + e.getMessage());
+                    outbox.replayAsync();
+                }
+                return;
+            }
+        }
+    }
+
+    // Virtual threads if this runtime has them, looked up reflectively so this still
+    // compiles and runs on Java 17; daemon platform threads otherwise
+    private static ThreadFactory stageThreadFactory() {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Method factory = Class.forName("java.lang.Thread$Builder").getMethod("factory");
+            return (ThreadFactory) factory.invoke(builder);
+        } catch (ReflectiveOperationException e) {
+            return r -> {
+                Thread thread = new Thread(r);
+                thread.setDaemon(true);
+                return thread;
+            };
+        }
+    }
+}
@@ -0,0 +1,184 @@
+import javax.swing.*;
+import java.awt.*;
+import java.awt.event.ActionListener;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Watchdog for the Swing event dispatch thread. It replaces the system event queue
+// with one that timestamps every stretch of EDT work, records those stretches in the
+// "edt.busy" histogram and, from a daemon thread, captures the EDT stack whenever a
+// single stretch runs longer than the stall threshold. Time the EDT spends blocked
+// waiting for the next event (including inside modal dialogs) is not counted as busy.
+//
+// It also keeps, per dispatch depth, the time spent inside nested event loops (modal
+// dialogs) opened at that depth, so timed() can leave out the time a dialog waits for
+// the user.
+final class EdtMonitor extends EventQueue {
+    private static final String STALL_LOG = "edt-stalls.log";
+    private static EdtMonitor installed;
+
+    private final long thresholdNanos;
+    private final LatencyHistogram busyHistogram = Metrics.histogram("edt.busy");
+    private final AtomicLong stallCount = new AtomicLong();
+    private volatile long busySince;
+    private volatile long lastReportedStall;
+    private volatile Thread edtThread;
+    private int depth;
+    // EDT only: nestedNanos[d] is the time spent in nested event loops opened by a handler
+    // running at dispatch depth d, waiting in them and dispatching from them
+    private long[] nestedNanos = new long[8];
+
+    private EdtMonitor(long thresholdMillis) {
+        this.thresholdNanos = thresholdMillis * 1_000_000L;
+        Metrics.gauge("edt.stalls", stallCount::get);
+    }
+
+    // Installs the monitor once per JVM; later calls are ignored
+    public static synchronized void install(long thresholdMillis) {
+        if (installed != null) {
+            return;
+        }
+        installed = new EdtMonitor(thresholdMillis);
+        Toolkit.getDefaultToolkit().getSystemEventQueue().push(installed);
+
+        Thread watchdog = new Thread(installed::watch, "edt-watchdog");
+        watchdog.setDaemon(true);
+        watchdog.start();
+    }
+
+    // Wraps an action listener so the time from the input event to the first paint
+    // after the handler ran is recorded in the "ui.<action>" histogram. Time spent in
+    // modal dialogs the handler opens (waiting for the user to click OK) is left out,
+    // when the monitor is installed.
+    public static ActionListener timed(String action, ActionListener listener) {
+        LatencyHistogram histogram = Metrics.histogram("ui." + action);
+        return e -> {
+            long inputTime = e.getWhen() > 0 ? e.getWhen() : System.currentTimeMillis();
+            long nestedBefore = nestedLoopNanos();
+            try {
+                listener.actionPerformed(e);
+            } finally {
+                long nested = nestedLoopNanos() - nestedBefore;
+                // Repaints requested by the handler are already queued, so this runs after they paint
+                SwingUtilities.invokeLater(() -> histogram.recordMicros(
+                        Math.max(0, (System.currentTimeMillis() - inputTime) * 1000 - nested / 1000)));
+            }
+        };
+    }
+
+    // Time spent so far in nested event loops opened at the current dispatch depth; only
+    // meaningful on the EDT, 0 if the monitor is not installed
+    private static long nestedLoopNanos() {
+        EdtMonitor monitor;
+        synchronized (EdtMonitor.class) {
+            monitor = installed;
+        }
+        if (monitor == null || !SwingUtilities.isEventDispatchThread()) {
+            return 0;
+        }
+        return monitor.depth < monitor.nestedNanos.length ? monitor.nestedNanos[monitor.depth] : 0;
+    }
+
+    @Override
+    public AWTEvent getNextEvent() throws InterruptedException {
+        markIdle();
+        if (depth == 0) {
+            return super.getNextEvent();
+        }
+        // A nested loop (modal dialog) waiting for input
+        int openedAt = depth;
+        long start = System.nanoTime();
+        try {
+            return super.getNextEvent();
+        } finally {
+            addNested(openedAt, System.nanoTime() - start);
+        }
+    }
+
+    @Override
+    protected void dispatchEvent(AWTEvent event) {
+        edtThread = Thread.currentThread();
+        markIdle();
+        int openedAt = depth;
+        long start = System.nanoTime();
+        depth++;
+        markBusy();
+        try {
+            super.dispatchEvent(event);
+        } finally {
+            markIdle();
+            depth--;
+            if (openedAt > 0) {
+                // Dispatched from a nested loop opened by the handler at openedAt
+                addNested(openedAt, System.nanoTime() - start);
+            }
+            if (depth > 0) {
+                // Back in the handler that opened a nested event loop
+                markBusy();
+            }
+        }
+    }
+
+    private void addNested(int openedAt, long nanos) {
+        if (openedAt >= nestedNanos.length) {
+            nestedNanos = Arrays.copyOf(nestedNanos, openedAt * 2);
+        }
+        nestedNanos[openedAt] += nanos;
+    }
+
+    private void markBusy() {
+        busySince = System.nanoTime();
+    }
+
+    private void markIdle() {
+        long start = busySince;
+        if (start != 0) {
+            busySince = 0;
+            busyHistogram.recordNanos(System.nanoTime() - start);
+        }
+    }
+
+    private void watch() {
+        long pollMillis = Math.max(10, thresholdNanos / 2_000_000L);
+        while (true) {
+            try {
+                Thread.sleep(pollMillis);
+            } catch (InterruptedException e) {
+                return;
+            }
+            long start = busySince;
+            Thread thread = edtThread;
+            if (start == 0 || thread == null || start == lastReportedStall) {
+                continue;
+            }
+            long elapsed = System.nanoTime() - start;
+            if (elapsed > thresholdNanos) {
+                lastReportedStall = start;
+                stallCount.incrementAndGet();
+                reportStall(thread, elapsed);
+            }
+        }
+    }
+
+    private void reportStall(Thread thread, long elapsedNanos) {
+        StackTraceElement[] stack = thread.getStackTrace();
+        String header = new SimpleDateFormat("dd-MMM-yyyy HH:mm:ss.SSS").format(new Date())
+                + " EDT busy for " + (elapsedNanos / 1_000_000L) + " ms";
+
+        try (PrintWriter writer = new PrintWriter(new FileWriter(STALL_LOG, true))) {
+            writer.println(header);
+            for (StackTraceElement element : stack) {
+                writer.println("\tat " + element);
+            }
+            writer.println();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        System.err.println(header + " (stack written to " + STALL_LOG + ")");
+    }
+}
@@ -0,0 +1,77 @@
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+// Stand-in for a shared remote catalog, running in this process on top of an ordinary
+// Catalog: a fetch costs a simulated round trip, and the catalog's changes reach
+// subscribers through a feed delivered on its own thread after a simulated delay, as
+// they would over the network. Changes that only touch the stock are not published.
+class InProcessRemoteCatalog implements RemoteCatalog, CatalogListener {
+    private final Catalog catalog;
+    private final long roundTripMicros;
+    private final long feedDelayMillis;
+    private final List<ChangeFeed> feeds = new CopyOnWriteArrayList<>();
+    private final ScheduledExecutorService feedThread;
+    // Every product as last published, without its stock
+    private final Map<String, String> published = new HashMap<>();
+    private final ProductEncoder encoder = new ProductEncoder(new SimpleDateFormat("dd-MMM-yyyy"));
+
+    public InProcessRemoteCatalog(Catalog catalog, long roundTripMicros, long feedDelayMillis) {
+        this.catalog = catalog;
+        this.roundTripMicros = roundTripMicros;
+        this.feedDelayMillis = feedDelayMillis;
+        this.feedThread = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "remote-catalog-feed");
+            thread.setDaemon(true);
+            return thread;
+        });
+        catalog.addListener(this);
+        for (Product product : catalog.getProducts()) {
+            productChanged(product);
+        }
+    }
+
+    @Override
+    public Product fetch(String productId) throws IOException {
+        LockSupport.parkNanos(roundTripMicros * 1000);
+        Product product = catalog.get(productId);
+        // A copy, as if it had come over the wire
+        return product == null ? null : product.withStock(product.getProductStock());
+    }
+
+    @Override
+    public void subscribe(ChangeFeed feed) {
+        feeds.add(feed);
+    }
+
+    @Override
+    public synchronized void productChanged(Product product) {
+        String record = encoder.encode(product.withStock(0));
+        String previous = published.put(product.getProductId(), record);
+        if (previous != null && !previous.equals(record)) {
+            publish(product.getProductId());
+        }
+    }
+
+    @Override
+    public synchronized void productRemoved(String productId) {
+        published.remove(productId);
+        publish(productId);
+    }
+
+    private void publish(String productId) {
+        long changedAt = System.currentTimeMillis();
+        feedThread.schedule(() -> {
+            for (ChangeFeed feed : feeds) {
+                feed.productChanged(productId, changedAt);
+            }
+        }, feedDelayMillis, TimeUnit.MILLISECONDS);
+    }
+}
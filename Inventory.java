@@ -1,26 +1,91 @@
 import javax.swing.*;
 import javax.swing.border.*;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
 import javax.swing.table.DefaultTableModel;
 import javax.swing.table.TableRowSorter;
 import java.awt.*;
 import java.io.*;
+import java.nio.file.Paths;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
-import java.util.Comparator;
+import java.util.Calendar;
 import java.util.Date;
 
 import javax.swing.table.DefaultTableCellRenderer;
 
-public class Inventory {
+// The inventory screen. It listens to the catalog and reloads its table from it at most
+// every REFRESH_MILLIS, on the event thread, so sales and products merged from the shared
+// store (which replace the Product objects) show up without reopening it.
+public class Inventory implements CatalogListener {
+    private static final int REFRESH_MILLIS = 250;
+
     private JFrame inventoryFrame;
     private JTable inventoryTable;
+    private JTextField filterField;
     private DefaultTableModel tableModel;
     private ArrayList<Product> inventory = new ArrayList<>();
     private SimpleDateFormat appDateFormat;
     private Integer numProducts = 0;
+    private final Catalog catalog;
+    private final ReportExporter exporter;
+    private final PriceHistory prices;
+    private StockTake stockTake;
+    private JButton stockTakeButton;
+    private final Timer refreshTimer = new Timer(REFRESH_MILLIS, e -> refreshInventory());
+
+    public Inventory(Catalog catalog) {
+        this(catalog, null, null);
+    }
+
+    // The sales history feeds the sales report; without it only catalog reports are offered.
+    // Without a price history the Prices button is disabled.
+    public Inventory(Catalog catalog, SalesHistory history, PriceHistory prices) {
+        this.catalog = catalog;
+        this.exporter = new ReportExporter(catalog, history);
+        this.prices = prices;
+        MemoryFootprint.register("inventory.list", () -> MemoryFootprint.arrayList(inventory.size()));
+        MemoryFootprint.register("inventory.table", () -> tableModel == null ? 0 : MemoryFootprint.tableModel(tableModel));
+        refreshTimer.setRepeats(false);
+        catalog.addListener(this);
+    }
+
+    // Called under the catalog's lock: only schedules a refresh; while one is pending
+    // further changes are picked up by it
+    @Override
+    public void productChanged(Product product) {
+        refreshTimer.start();
+    }
+
+    @Override
+    public void productRemoved(String productId) {
+        refreshTimer.start();
+    }
+
+    // Reloads the table from the catalog once the frame is open, keeping the selected
+    // product selected
+    private void refreshInventory() {
+        if (tableModel == null) {
+            return;
+        }
+        int selectedRow = inventoryTable.getSelectedRow();
+        String selectedId = selectedRow == -1 ? null
+                : (String) tableModel.getValueAt(inventoryTable.convertRowIndexToModel(selectedRow), 0);
+        loadInventoryData();
+        for (int row = 0; selectedId != null && row < tableModel.getRowCount(); row++) {
+            if (selectedId.equals(tableModel.getValueAt(row, 0))) {
+                int viewRow = inventoryTable.convertRowIndexToView(row);
+                inventoryTable.setRowSelectionInterval(viewRow, viewRow);
+                break;
+            }
+        }
+    }
 
         public static void main(String[] args) {
+            EdtMonitor.install(200);
+            Metrics.exportOnExit();
+
             SwingUtilities.invokeLater(() -> {
                 try {
                     UIManager.setLookAndFeel(UIManager.getSystemLookAndFeelClassName());
@@ -32,7 +97,11 @@ public class Inventory {
                 JFrame frame = new JFrame("Inventory");
                 frame.setDefaultCloseOperation(JFrame.HIDE_ON_CLOSE);
 
-                new Inventory().openInventoryFrame(frame);
+                try {
+                    new Inventory(Catalog.open()).openInventoryFrame(frame);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
             });
         }
 
@@ -93,19 +162,53 @@ public class Inventory {
         JButton editButton = coloredButton("Edit", new Color(220, 200, 100));
         JButton deleteButton = coloredButton("Delete", new Color(200, 100, 100));
         JButton saveButton = coloredButton("Save", new Color(200, 200, 200));
+        JButton exportButton = coloredButton("Export", new Color(160, 180, 220));
+        JButton pricesButton = coloredButton("Prices", new Color(200, 170, 220));
+        pricesButton.setEnabled(prices != null);
+        stockTakeButton = coloredButton(stockTake == null ? "Stock Take" : "Enter Counts", new Color(180, 220, 180));
 
         // Add action listeners for CRUD operations
-        addButton.addActionListener(e -> addProductDialog());
-        editButton.addActionListener(e -> editProductDialog());
-        deleteButton.addActionListener(e -> deleteProduct());
-        saveButton.addActionListener(e -> saveDialog());
+        addButton.addActionListener(EdtMonitor.timed("addProduct", e -> addProductDialog()));
+        editButton.addActionListener(EdtMonitor.timed("editProduct", e -> editProductDialog()));
+        deleteButton.addActionListener(EdtMonitor.timed("deleteProduct", e -> deleteProduct()));
+        saveButton.addActionListener(EdtMonitor.timed("save", e -> saveDialog()));
+        exportButton.addActionListener(EdtMonitor.timed("export", e -> exportDialog()));
+        pricesButton.addActionListener(EdtMonitor.timed("priceHistory", e -> priceHistoryDialog()));
+        stockTakeButton.addActionListener(EdtMonitor.timed("stockTake", e -> stockTakeAction()));
 
         crudPanel.add(addButton);
         crudPanel.add(editButton);
         crudPanel.add(deleteButton);
         crudPanel.add(saveButton);
+        crudPanel.add(exportButton);
+        crudPanel.add(pricesButton);
+        crudPanel.add(stockTakeButton);
+
+        // Filter field: search text and terms like "stock<20", applied as the user types
+        JPanel filterPanel = new JPanel(new BorderLayout(5, 0));
+        filterField = new JTextField();
+        filterField.setToolTipText("Text to search for, and/or terms like stock<20 or selling_price>=5");
+        filterField.getDocument().addDocumentListener(new DocumentListener() {
+            @Override
+            public void insertUpdate(DocumentEvent e) {
+                loadInventoryData();
+            }
+
+            @Override
+            public void removeUpdate(DocumentEvent e) {
+                loadInventoryData();
+            }
+
+            @Override
+            public void changedUpdate(DocumentEvent e) {
+                loadInventoryData();
+            }
+        });
+        filterPanel.add(new JLabel("Filter:"), BorderLayout.WEST);
+        filterPanel.add(filterField, BorderLayout.CENTER);
 
         // Add components to the inventory panel and frame
+        inventoryPanel.add(filterPanel, BorderLayout.NORTH);
         inventoryPanel.add(tableScrollPane, BorderLayout.CENTER);
         inventoryPanel.add(crudPanel, BorderLayout.SOUTH);
         inventoryFrame.add(inventoryPanel, BorderLayout.CENTER);
@@ -180,7 +283,7 @@ public class Inventory {
 
                 // Check if the product ID already exists
                 if (isProductIdExists(productId)) {
-                    JOptionPane.showMessageDialog(inventoryFrame, "Product with the same ID already exists.",
+                    JOptionPane.showMessageDialog(inventoryFrame, "A product with the same ID or barcode already exists.",
                             "Error", JOptionPane.ERROR_MESSAGE);
                     return;
                 }
@@ -188,10 +291,12 @@ public class Inventory {
                 Product newProduct = new Product(productId, productName, productCategory,
                         productStock, productUsualPrice, discountEndDate, productDiscount, productStatus);
 
+                catalog.put(newProduct);
                 inventory.add(newProduct);
                 numProducts++;
-                updateTable(); // Update the table and save to file
-                saveInventoryToFile("products.txt");
+                updateTable(); // Update the table
+            } catch (IOException e) {
+                showStoreError(e);
             } catch (NumberFormatException | ParseException e) {
                 e.printStackTrace();
                 JOptionPane.showMessageDialog(inventoryFrame, "Invalid input. Please check your inputs and try again.",
@@ -219,14 +324,230 @@ public class Inventory {
         }
     }
 
-    // Checks if a product with the given ID already exists in the inventory
-    private boolean isProductIdExists(String productId) {
-        for (Product product : inventory) {
-            if (product.getProductId().equalsIgnoreCase(productId)) {
-                return true;
+    // Asks for a report, format and file, then writes the report in the background
+    private void exportDialog() {
+        JComboBox<ReportExporter.Report> reportBox = new JComboBox<>();
+        for (ReportExporter.Report report : ReportExporter.Report.values()) {
+            if (report != ReportExporter.Report.SALES || exporter.hasSalesHistory()) {
+                reportBox.addItem(report);
+            }
+        }
+        JComboBox<ReportWriter.Format> formatBox = new JComboBox<>(ReportWriter.Format.values());
+        JTextField fileField = new JTextField("report.csv");
+        JTextField fromField = new JTextField(appDateFormat.format(new Date(System.currentTimeMillis() - 30L * 24 * 60 * 60 * 1000)));
+        JTextField toField = new JTextField(appDateFormat.format(new Date()));
+
+        JPanel panel = new JPanel(new GridLayout(5, 2));
+        panel.add(new JLabel("Report:"));
+        panel.add(reportBox);
+        panel.add(new JLabel("Format:"));
+        panel.add(formatBox);
+        panel.add(new JLabel("Filename:"));
+        panel.add(fileField);
+        panel.add(new JLabel("Sales from (dd-MMM-yyyy):"));
+        panel.add(fromField);
+        panel.add(new JLabel("Sales to, inclusive (dd-MMM-yyyy):"));
+        panel.add(toField);
+
+        int result = JOptionPane.showConfirmDialog(inventoryFrame, panel, "Export",
+                JOptionPane.OK_CANCEL_OPTION, JOptionPane.PLAIN_MESSAGE);
+        if (result != JOptionPane.OK_OPTION) {
+            return;
+        }
+
+        ReportExporter.Report report = (ReportExporter.Report) reportBox.getSelectedItem();
+        ReportWriter.Format format = (ReportWriter.Format) formatBox.getSelectedItem();
+        String fileName = fileField.getText();
+        long from;
+        long to;
+        try {
+            from = appDateFormat.parse(fromField.getText()).getTime();
+            // The end date is inclusive, so the range runs to the start of the next day (which
+            // is not always 24 hours later)
+            Calendar end = Calendar.getInstance();
+            end.setTime(appDateFormat.parse(toField.getText()));
+            end.add(Calendar.DAY_OF_MONTH, 1);
+            to = end.getTimeInMillis();
+        } catch (ParseException e) {
+            JOptionPane.showMessageDialog(inventoryFrame, "Invalid date. Please use dd-MMM-yyyy.",
+                    "Error", JOptionPane.ERROR_MESSAGE);
+            return;
+        }
+
+        new SwingWorker<Long, Void>() {
+            @Override
+            protected Long doInBackground() throws IOException {
+                return exporter.export(report, format, Paths.get(fileName), from, to);
+            }
+
+            @Override
+            protected void done() {
+                try {
+                    JOptionPane.showMessageDialog(inventoryFrame, "Exported " + get() + " rows to " + fileName,
+                            "Export", JOptionPane.INFORMATION_MESSAGE);
+                } catch (Exception e) {
+                    e.printStackTrace();
+                    JOptionPane.showMessageDialog(inventoryFrame, "Could not export: " + e.getMessage(),
+                            "Error", JOptionPane.ERROR_MESSAGE);
+                }
+            }
+        }.execute();
+    }
+
+    // Shows every recorded price of the selected product, and the price on a given date
+    private void priceHistoryDialog() {
+        int selectedRow = inventoryTable.getSelectedRow();
+        if (selectedRow == -1) {
+            JOptionPane.showMessageDialog(inventoryFrame, "Please select a product.",
+                    "Error", JOptionPane.ERROR_MESSAGE);
+            return;
+        }
+        String productId = inventory.get(selectedRow).getProductId();
+        SimpleDateFormat timeFormat = new SimpleDateFormat("dd-MMM-yyyy HH:mm");
+        DefaultTableModel model = new DefaultTableModel(
+                new String[]{"Effective From", "Usual Price", "Discount (%)", "Discount End Date", "Selling Price"}, 0);
+        for (PriceHistory.Version version : prices.versionsOf(productId)) {
+            model.addRow(new Object[]{
+                    version.effectiveFrom == 0 ? "(initial)" : timeFormat.format(new Date(version.effectiveFrom)),
+                    String.format("%.2f", version.usualPrice),
+                    version.discount,
+                    appDateFormat.format(version.discountEndDate),
+                    String.format("%.2f", version.sellingPrice())});
+        }
+        JTable table = new JTable(model);
+        table.setEnabled(false);
+
+        JTextField dateField = new JTextField(appDateFormat.format(new Date()));
+        JLabel priceLabel = new JLabel(" ");
+        JButton lookupButton = new JButton("Price on date");
+        lookupButton.addActionListener(e -> {
+            try {
+                PriceHistory.Version version = prices.at(productId, appDateFormat.parse(dateField.getText()).getTime());
+                priceLabel.setText(version == null ? "No price recorded on that date"
+                        : String.format("Selling price at the start of that day: %.2f", version.sellingPrice()));
+            } catch (ParseException ex) {
+                priceLabel.setText("Invalid date. Please use dd-MMM-yyyy.");
             }
+        });
+        JPanel lookupPanel = new JPanel(new FlowLayout(FlowLayout.LEFT));
+        lookupPanel.add(dateField);
+        lookupPanel.add(lookupButton);
+        lookupPanel.add(priceLabel);
+
+        JPanel panel = new JPanel(new BorderLayout(0, 5));
+        JScrollPane scrollPane = new JScrollPane(table);
+        scrollPane.setPreferredSize(new Dimension(600, 200));
+        panel.add(scrollPane, BorderLayout.CENTER);
+        panel.add(lookupPanel, BorderLayout.SOUTH);
+        JOptionPane.showMessageDialog(inventoryFrame, panel, "Price History of " + productId, JOptionPane.PLAIN_MESSAGE);
+    }
+
+    // Starts a stock-take, or enters the counts of the one in progress. Sales go on
+    // throughout; the snapshot and the reconciliation both run off the event thread.
+    private void stockTakeAction() {
+        if (stockTake == null) {
+            stockTakeButton.setEnabled(false);
+            new SwingWorker<StockTake, Void>() {
+                @Override
+                protected StockTake doInBackground() {
+                    return StockTake.begin(catalog);
+                }
+
+                @Override
+                protected void done() {
+                    stockTakeButton.setEnabled(true);
+                    try {
+                        stockTake = get();
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                        return;
+                    }
+                    stockTakeButton.setText("Enter Counts");
+                    SimpleDateFormat timeFormat = new SimpleDateFormat("dd-MMM-yyyy HH:mm:ss");
+                    JOptionPane.showMessageDialog(inventoryFrame, "Stock of " + stockTake.getSnapshot().size()
+                                    + " products recorded at " + timeFormat.format(new Date(stockTake.getSnapshot().takenAt))
+                                    + ".\nSales can continue; the ones made while you count are allowed for."
+                                    + "\nCount the shelves, then press Enter Counts.",
+                            "Stock Take", JOptionPane.INFORMATION_MESSAGE);
+                }
+            }.execute();
+            return;
+        }
+
+        JTextArea countsArea = new JTextArea(12, 30);
+        JTextField countsFileField = new JTextField();
+        JTextField reportFileField = new JTextField("stocktake.csv");
+        JPanel filePanel = new JPanel(new GridLayout(4, 1));
+        filePanel.add(new JLabel("...or read them from file:"));
+        filePanel.add(countsFileField);
+        filePanel.add(new JLabel("Write the reconciliation to (blank for none):"));
+        filePanel.add(reportFileField);
+        JPanel panel = new JPanel(new BorderLayout(0, 5));
+        panel.add(new JLabel("Counted quantities, one \"productId, quantity\" per line:"), BorderLayout.NORTH);
+        panel.add(new JScrollPane(countsArea), BorderLayout.CENTER);
+        panel.add(filePanel, BorderLayout.SOUTH);
+
+        Object[] options = {"Apply", "Cancel Stock Take", "Later"};
+        int choice = JOptionPane.showOptionDialog(inventoryFrame, panel, "Enter Counts",
+                JOptionPane.DEFAULT_OPTION, JOptionPane.PLAIN_MESSAGE, null, options, options[0]);
+        if (choice == 1) {
+            stockTake.cancel();
+            stockTake = null;
+            stockTakeButton.setText("Stock Take");
+            return;
+        }
+        if (choice != 0) {
+            return;
         }
-        return false;
+
+        StockTake running = stockTake;
+        String countsText = countsArea.getText();
+        String countsFile = countsFileField.getText().trim();
+        String reportFile = reportFileField.getText().trim();
+        stockTakeButton.setEnabled(false);
+        new SwingWorker<StockTake.Result, Void>() {
+            @Override
+            protected StockTake.Result doInBackground() throws IOException {
+                try (Reader counts = countsFile.isEmpty() ? new StringReader(countsText)
+                        : new FileReader(countsFile);
+                     ReportWriter report = reportFile.isEmpty() ? null
+                             : ReportWriter.open(Paths.get(reportFile), ReportWriter.Format.CSV)) {
+                    return running.reconcile(counts, report);
+                }
+            }
+
+            @Override
+            protected void done() {
+                stockTakeButton.setEnabled(true);
+                try {
+                    StockTake.Result result = get();
+                    stockTake = null;
+                    stockTakeButton.setText("Stock Take");
+                    loadInventoryData();
+                    JOptionPane.showMessageDialog(inventoryFrame, result.toString(),
+                            "Stock Take", JOptionPane.INFORMATION_MESSAGE);
+                } catch (Exception e) {
+                    e.printStackTrace();
+                    if (running.isFinished()) {
+                        stockTake = null;
+                        stockTakeButton.setText("Stock Take");
+                        loadInventoryData();
+                        JOptionPane.showMessageDialog(inventoryFrame, "The counts were applied, but the reconciliation could not be written: "
+                                + e.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+                    } else {
+                        JOptionPane.showMessageDialog(inventoryFrame, "Could not apply the counts: " + e.getMessage()
+                                + "\nThe stock-take is still open; nothing was changed.", "Error", JOptionPane.ERROR_MESSAGE);
+                    }
+                }
+            }
+        }.execute();
+    }
+
+    // True if any product in the catalog has this ID, ignoring case, or has it as a barcode.
+    // Barcode canonicalization is not applied: "A-1" is free even if "A1" is taken.
+    private boolean isProductIdExists(String productId) {
+        String owner = catalog.getBarcodes().owner(productId);
+        return catalog.get(productId) != null || (owner != null && catalog.get(owner) != null);
     }
 
 
@@ -238,14 +559,15 @@ public class Inventory {
                     "Error", JOptionPane.ERROR_MESSAGE);
             return;
         }
-        // Get the selected product
+        // Get the selected product; sales may change its stock while the dialog is open
         Product selectedProduct = inventory.get(selectedRow);
+        int shownStock = selectedProduct.getProductStock();
 
         // Create text fields with the values of the selected product
         JTextField productIdField = new JTextField(selectedProduct.getProductId());
         JTextField productNameField = new JTextField(selectedProduct.getProductName());
         JTextField productCategoryField = new JTextField(selectedProduct.getProductCategory());
-        JTextField productStockField = new JTextField(String.valueOf(selectedProduct.getProductStock()));
+        JTextField productStockField = new JTextField(String.valueOf(shownStock));
         JTextField productUsualPriceField = new JTextField(String.valueOf(selectedProduct.getProductUsualPrice()));
         JTextField productDiscountField = new JTextField(String.valueOf(selectedProduct.getProductDiscount()));
         JTextField discountEndDateField = new JTextField(appDateFormat.format(selectedProduct.getDiscountEndDate()));
@@ -289,9 +611,18 @@ public class Inventory {
                 Product editedProduct = new Product(productId, productName, productCategory,
                         productStock, productUsualPrice, discountEndDate, productDiscount, productStatus);
 
-                inventory.set(selectedRow, editedProduct);
-                updateTable();
-                saveInventoryToFile("products.txt");
+                // Only the change made in the stock field is applied on top of the current stock
+                Product savedProduct = catalog.edit(selectedProduct.getProductId(), editedProduct, shownStock);
+                if (savedProduct == null) {
+                    JOptionPane.showMessageDialog(inventoryFrame, "This product has been deleted in the meantime.",
+                            "Error", JOptionPane.ERROR_MESSAGE);
+                    loadInventoryData();
+                    return;
+                }
+                // The table may have been reloaded while the dialog was open, so reload rather than patch a row
+                loadInventoryData();
+            } catch (IOException e) {
+                showStoreError(e);
             } catch (NumberFormatException | ParseException e) {
                 e.printStackTrace();
                 JOptionPane.showMessageDialog(inventoryFrame, "Invalid input. Please check your inputs and try again.",
@@ -310,35 +641,28 @@ public class Inventory {
             return;
         }
 
+        // Taken before the dialog: the table may be reloaded while it is open
+        String productId = inventory.get(selectedRow).getProductId();
         int confirm = JOptionPane.showConfirmDialog(inventoryFrame, "Are you sure you want to delete this product?",
                 "Confirm Deletion", JOptionPane.YES_NO_OPTION);
         if (confirm == JOptionPane.YES_OPTION) {
-            inventory.remove(selectedRow);
-            numProducts--;
-            updateTable();
-            saveInventoryToFile("products.txt");
+            try {
+                catalog.remove(productId);
+            } catch (IOException e) {
+                showStoreError(e);
+                return;
+            }
+            loadInventoryData();
         }
     }
 
         private void loadInventoryData() {
-            // Clear the inventory before loading data
-            inventory = new ArrayList<>();
-
-            try (BufferedReader reader = new BufferedReader(new FileReader("products.txt"))) {
-                String line;
-                while ((line = reader.readLine()) != null) {
-                    Product product = Product.fromString(line);
-                    inventory.add(product);
-                    numProducts++;
-                }
-
-                // Sort the inventory based on product IDs in ascending order
-                inventory.sort(Comparator.comparing(Product::getProductId));
-
-                updateTable();
-            } catch (IOException | ParseException e) {
-                e.printStackTrace(System.out);
-            }
+            // Take a fresh copy of the catalog, already sorted by product ID, keeping what matches the filter
+            String filter = filterField == null ? "" : filterField.getText();
+            inventory = filter.trim().isEmpty() ? catalog.getProducts()
+                    : CatalogQuery.of(catalog.getProducts()).filter(filter).rows();
+            numProducts = inventory.size();
+            updateTable();
         }
 
 
@@ -361,15 +685,19 @@ public class Inventory {
             tableModel.addRow(rowData);
         }
     }
+        // Reorder points and refill levels come from each product's recent sales rate
         private void checkStockAndReplenish() {
+            SalesVelocity velocity = catalog.getVelocity();
+            velocity.recomputeAll(System.currentTimeMillis());
             for (Product product : inventory) {
-                if (product.getProductStock() <= 10) {
+                if (product.getProductStock() <= velocity.reorderPoint(product.getProductId())) {
                     informAndReplenish(product);
                 }
             }
         }
         private void informAndReplenish(Product product) {
-            if (product.getProductStock() <= 10) {
+            SalesVelocity velocity = catalog.getVelocity();
+            if (product.getProductStock() <= velocity.reorderPoint(product.getProductId())) {
                 // Display a message about low stock
                 JOptionPane.showMessageDialog(inventoryFrame,
                         "Low stock for product: " + product.getProductName() +
@@ -380,10 +708,13 @@ public class Inventory {
                 // Notify suppliers
                 notifySuppliers(product);
 
-                // Replenish the stock count to 100
-                product.setProductStock(100);
+                // Replenish the stock up to the level that covers lead time plus the review period
+                try {
+                    catalog.replenishTo(product.getProductId(), velocity.orderUpTo(product.getProductId()));
+                } catch (IOException e) {
+                    showStoreError(e);
+                }
                 updateTable();
-                saveInventoryToFile("products.txt");
 
 
             }
@@ -396,10 +727,18 @@ public class Inventory {
         }
 
 
+        private void showStoreError(IOException e) {
+            e.printStackTrace();
+            JOptionPane.showMessageDialog(inventoryFrame, "Could not save to the catalog: " + e.getMessage(),
+                    "Error", JOptionPane.ERROR_MESSAGE);
+        }
+
+        // Writes the products shown on screen to a file of the user's choice
         private void saveInventoryToFile(String fileName) {
+        ProductEncoder encoder = new ProductEncoder(appDateFormat);
         try (PrintWriter writer = new PrintWriter(fileName)) {
             for (Product product : inventory) {
-                writer.println(product.toFileString(appDateFormat));
+                writer.println(encoder.encode(product));
             }
         } catch (FileNotFoundException e) {
             e.printStackTrace();
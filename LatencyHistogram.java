@@ -0,0 +1,99 @@
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Fixed-size log-linear latency histogram. Values are recorded in microseconds into
+// power-of-two ranges that are each split into SUB_BUCKETS linear buckets, so the
+// relative error stays under 1/SUB_BUCKETS whatever the magnitude. Recording is
+// lock-free and safe to call from any thread, including the EDT.
+class LatencyHistogram {
+    private static final int SUB_BUCKETS = 8;
+    private static final int RANGES = 40;
+
+    private final String name;
+    private final AtomicLongArray buckets = new AtomicLongArray(RANGES * SUB_BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong totalMicros = new AtomicLong();
+    private final AtomicLong maxMicros = new AtomicLong();
+
+    public LatencyHistogram(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void recordNanos(long nanos) {
+        recordMicros(nanos / 1000);
+    }
+
+    public void recordMicros(long micros) {
+        if (micros < 0) {
+            micros = 0;
+        }
+        buckets.incrementAndGet(bucketIndex(micros));
+        count.incrementAndGet();
+        totalMicros.addAndGet(micros);
+        maxMicros.accumulateAndGet(micros, Math::max);
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public long getMaxMicros() {
+        return maxMicros.get();
+    }
+
+    public double getMeanMicros() {
+        long n = count.get();
+        return n == 0 ? 0.0 : (double) totalMicros.get() / n;
+    }
+
+    // Returns the upper bound of the bucket holding the given percentile (0-100)
+    public long percentileMicros(double percentile) {
+        long n = count.get();
+        if (n == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(n * percentile / 100.0);
+        long seen = 0;
+        for (int i = 0; i < buckets.length(); i++) {
+            seen += buckets.get(i);
+            if (seen >= rank) {
+                return Math.min(bucketUpperBound(i), maxMicros.get());
+            }
+        }
+        return maxMicros.get();
+    }
+
+    public void writeTo(PrintWriter writer) {
+        writer.printf("%s count=%d mean=%.1fus p50=%dus p90=%dus p99=%dus max=%dus%n",
+                name, getCount(), getMeanMicros(), percentileMicros(50), percentileMicros(90),
+                percentileMicros(99), getMaxMicros());
+    }
+
+    // Values below SUB_BUCKETS get one bucket each; above that, range r covers
+    // [SUB_BUCKETS << (r - 1), SUB_BUCKETS << r) split into SUB_BUCKETS equal parts
+    private static int bucketIndex(long micros) {
+        if (micros < SUB_BUCKETS) {
+            return (int) micros;
+        }
+        int range = 64 - Long.numberOfLeadingZeros(micros) - 3;
+        if (range >= RANGES) {
+            return RANGES * SUB_BUCKETS - 1;
+        }
+        int sub = (int) ((micros >> (range - 1)) - SUB_BUCKETS);
+        return range * SUB_BUCKETS + sub;
+    }
+
+    private static long bucketUpperBound(int index) {
+        int range = index / SUB_BUCKETS;
+        int sub = index % SUB_BUCKETS;
+        if (range == 0) {
+            return sub;
+        }
+        return ((long) (SUB_BUCKETS + sub + 1) << (range - 1)) - 1;
+    }
+}
@@ -0,0 +1,287 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+// Ships a catalog's mutations to a standby through a shared directory. Catalog changes
+// are put on a bounded queue by the thread making them (an offer, never a wait), and a
+// background thread writes them out in batches, so checkout never waits on the standby.
+//
+// The log is state-based: each record is the full new state of a product ("P <product
+// line>") or a removal ("D <id>"), so applying a record twice is harmless and only the
+// last change to a product within a batch is written. Every batch is one file,
+// batch-<seq>.log, written atomically with a "# <seq> <time>" header line. When the
+// shipper starts, or when the queue overflows because the standby directory is slow, it
+// writes the whole catalog as snapshot-<seq>.log instead, which supersedes older batches.
+// A batch is written at least every FLUSH_MILLIS, which bounds the standby's lag.
+//
+// Every snapshot deletes the files before it, which the standby would skip anyway. While
+// the standby is down nothing else removes them, so once MAX_UNAPPLIED_FILES have been
+// shipped past what it applied (or past the last such snapshot) a snapshot is written,
+// which bounds the directory to that many batches and one snapshot.
+//
+// Once the standby has been promoted (it leaves StandbyReplica.PROMOTED_FILE in the
+// directory) this primary must not write there again. The marker is checked before every
+// batch and snapshot; when it appears the shipper stops for good, drops what is queued
+// and reports it, rather than writing files that would fork the catalog.
+class LogShipper implements CatalogListener, Closeable {
+    private static final int QUEUE_CAPACITY = 65536;
+    private static final int MAX_BATCH = 4096;
+    private static final long FLUSH_MILLIS = 200;
+    private static final int MAX_UNAPPLIED_FILES = 1000;
+
+    // One queued mutation: a changed product, or the ID of a removed one
+    private static class Mutation {
+        final Product product;
+        final String removedId;
+
+        Mutation(Product product, String removedId) {
+            this.product = product;
+            this.removedId = removedId;
+        }
+
+        String productId() {
+            return product != null ? product.getProductId() : removedId;
+        }
+    }
+
+    // Thrown by publish() when the standby has taken over
+    private static class FencedException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        FencedException(String message) {
+            super(message);
+        }
+    }
+
+    private final Catalog catalog;
+    private final Path directory;
+    private final Path sequenceFile;
+    private final BlockingQueue<Mutation> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private final Thread shipper;
+    // Used by the shipper thread only
+    private final ProductEncoder encoder = new ProductEncoder(new SimpleDateFormat("dd-MMM-yyyy"));
+    private volatile boolean resyncNeeded = true;
+    private volatile boolean running = true;
+    private volatile long sequence;
+    private volatile boolean fenced;
+    // Sequence of the last snapshot, written by the shipper thread only
+    private long lastSnapshot;
+
+    public LogShipper(Catalog catalog, String directoryName) throws IOException {
+        this.catalog = catalog;
+        this.directory = Paths.get(directoryName);
+        this.sequenceFile = directory.resolve("primary.seq");
+        Files.createDirectories(directory);
+        if (Files.exists(directory.resolve(StandbyReplica.PROMOTED_FILE))) {
+            throw new IOException("The standby in " + directory + " has taken over; not shipping to it");
+        }
+        this.sequence = Math.max(AtomicFiles.readLong(sequenceFile), highestShipped(directory));
+
+        this.shipper = new Thread(this::run, "log-shipper");
+        this.shipper.setDaemon(true);
+        catalog.addListener(this);
+        this.shipper.start();
+
+        String prefix = catalog.getMetricPrefix();
+        Metrics.gauge(prefix + "replica.queue", queue::size);
+        Metrics.gauge(prefix + "replica.shipped", () -> sequence);
+        Metrics.gauge(prefix + "replica.unapplied", () -> sequence - appliedByStandby());
+        Metrics.gauge(prefix + "replica.fenced", () -> fenced ? 1 : 0);
+    }
+
+    // Starts shipping to the directory named by the "pos.replica.dir" system property,
+    // if it is set; returns null otherwise
+    public static LogShipper startIfConfigured(Catalog catalog) throws IOException {
+        String directory = System.getProperty("pos.replica.dir");
+        if (directory == null || directory.isEmpty()) {
+            return null;
+        }
+        LogShipper shipper = new LogShipper(catalog, directory);
+        Runtime.getRuntime().addShutdownHook(new Thread(shipper::close, "log-shipper-flush"));
+        return shipper;
+    }
+
+    @Override
+    public void productChanged(Product product) {
+        enqueue(new Mutation(product, null));
+    }
+
+    @Override
+    public void productRemoved(String productId) {
+        enqueue(new Mutation(null, productId));
+    }
+
+    private void enqueue(Mutation mutation) {
+        if (!queue.offer(mutation)) {
+            // The next write is a full snapshot, which covers everything dropped here
+            resyncNeeded = true;
+        }
+    }
+
+    // True once shipping stopped because the standby took over
+    public boolean isFenced() {
+        return fenced;
+    }
+
+    // Stops shipping once whatever is still queued has been written
+    @Override
+    public void close() {
+        if (!running) {
+            return;
+        }
+        catalog.removeListener(this);
+        running = false;
+        try {
+            shipper.join(5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void run() {
+        List<Mutation> drained = new ArrayList<>();
+        while (true) {
+            try {
+                if (resyncNeeded) {
+                    resyncNeeded = false;
+                    queue.clear();
+                    writeSnapshot();
+                }
+                drained.clear();
+                Mutation first = running ? queue.poll(FLUSH_MILLIS, TimeUnit.MILLISECONDS) : queue.poll();
+                if (first != null) {
+                    drained.add(first);
+                    queue.drainTo(drained, MAX_BATCH - 1);
+                    writeBatch(drained);
+                } else if (!running) {
+                    return;
+                }
+            } catch (InterruptedException e) {
+                return;
+            } catch (FencedException e) {
+                fenced = true;
+                running = false;
+                catalog.removeListener(this);
+                queue.clear();
+                System.err.println("Log shipping stopped: " + e.getMessage());
+                return;
+            } catch (IOException e) {
+                // The records in hand are lost; resend everything once the directory works again
+                System.err.println("Log shipping failed, resyncing: " + e.getMessage());
+                resyncNeeded = true;
+                if (!running) {
+                    return;
+                }
+                try {
+                    Thread.sleep(FLUSH_MILLIS);
+                } catch (InterruptedException ignored) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private void writeBatch(List<Mutation> mutations) throws IOException {
+        Map<String, Mutation> latest = new LinkedHashMap<>();
+        for (Mutation mutation : mutations) {
+            latest.remove(mutation.productId());
+            latest.put(mutation.productId(), mutation);
+        }
+        StringBuilder sb = header(sequence + 1);
+        for (Mutation mutation : latest.values()) {
+            if (mutation.product != null) {
+                encoder.append(sb.append("P "), mutation.product).append('\n');
+            } else {
+                sb.append("D ").append(mutation.removedId).append('\n');
+            }
+        }
+        publish("batch", sb);
+        if (sequence - Math.max(appliedByStandby(), lastSnapshot) >= MAX_UNAPPLIED_FILES) {
+            // The standby is down or far behind: replace the backlog with one snapshot
+            resyncNeeded = true;
+        }
+    }
+
+    private long appliedByStandby() {
+        return AtomicFiles.readLong(directory.resolve(StandbyReplica.APPLIED_FILE));
+    }
+
+    private void writeSnapshot() throws IOException {
+        StringBuilder sb = header(sequence + 1);
+        for (Product product : catalog.getProducts()) {
+            encoder.append(sb.append("P "), product).append('\n');
+        }
+        publish("snapshot", sb);
+        lastSnapshot = sequence;
+        deleteShippedBefore(lastSnapshot);
+    }
+
+    // Deletes the batches and snapshots a snapshot has superseded
+    private void deleteShippedBefore(long snapshotSequence) throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "{batch,snapshot}-*.log")) {
+            for (Path path : files) {
+                long shipped = sequenceOf(path);
+                if (shipped >= 0 && shipped < snapshotSequence) {
+                    try {
+                        Files.deleteIfExists(path);
+                    } catch (IOException e) {
+                        // Still open on the standby; it deletes the file itself once it has passed it
+                    }
+                }
+            }
+        }
+    }
+
+    private static StringBuilder header(long sequence) {
+        return new StringBuilder("# ").append(sequence).append(' ').append(System.currentTimeMillis()).append('\n');
+    }
+
+    private void publish(String kind, StringBuilder contents) throws IOException {
+        if (Files.exists(directory.resolve(StandbyReplica.PROMOTED_FILE))) {
+            throw new FencedException("the standby in " + directory + " has taken over; this till must not ship to it again");
+        }
+        long next = sequence + 1;
+        AtomicFiles.write(directory.resolve(fileName(kind, next)), contents.toString());
+        AtomicFiles.write(sequenceFile, Long.toString(next));
+        sequence = next;
+    }
+
+    static String fileName(String kind, long sequence) {
+        return String.format("%s-%012d.log", kind, sequence);
+    }
+
+    // Sequence number of a batch or snapshot file, or -1 for any other file
+    static long sequenceOf(Path path) {
+        String name = path.getFileName().toString();
+        int dash = name.indexOf('-');
+        if (dash < 0 || !name.endsWith(".log")) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(name.substring(dash + 1, name.length() - 4));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static long highestShipped(Path directory) throws IOException {
+        long highest = 0;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "{batch,snapshot}-*.log")) {
+            for (Path path : files) {
+                highest = Math.max(highest, sequenceOf(path));
+            }
+        }
+        return highest;
+    }
+}
@@ -0,0 +1,578 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.*;
+import java.util.zip.CRC32;
+
+// Embedded log-structured catalog store kept in its own directory:
+//   wal.log        write-ahead log; every batch is one checksummed record, forced to disk
+//   seg-NNNNNN.sst immutable segments of records sorted by product ID, newest listed first
+//   MANIFEST       applied sequence, next segment number and the live segments
+// Writes go to the log and to an in-memory sorted table. When that table fills up it is
+// written out as a new segment and the log is truncated; when there are too many segments
+// they are merged into one. Each segment keeps a sparse index (every INDEX_INTERVAL-th key)
+// in memory, so a point lookup is a binary search plus one short read per segment, and a
+// range scan only reads the blocks that overlap the range. Recovery after a crash replays
+// the log, which is bounded by the in-memory table size, and drops a torn last record.
+// A writable store holds an exclusive lock on LOCK in its directory until it is closed,
+// since its memtable must be the only writer; a second writable open fails.
+//
+// openReadOnly() reads the manifest, segments and log without changing any of them (a
+// torn last record is skipped rather than cut off, and close() flushes nothing), so a
+// tool can read the store while a till writes to it. If the manifest changes while the
+// log is read, a flush raced the read and it starts again.
+class LsmCatalogStore implements CatalogStore {
+    private static final int MEMTABLE_LIMIT = 4096;
+    private static final int INDEX_INTERVAL = 16;
+    private static final int MAX_SEGMENTS = 4;
+    private static final int SEGMENT_MAGIC = 0x504F5331;
+    private static final byte OP_PUT = 1;
+    private static final byte OP_DELETE = 2;
+    private static final int MAX_LOAD_ATTEMPTS = 10;
+
+    // Marks a deleted key in the memtable and in segment lookups; compared by identity
+    private static final String DELETED = new String("<deleted>");
+
+    private final Path directory;
+    private final Path manifestFile;
+    private final Path walFile;
+    private final FileChannel wal;
+    private final FileChannel lockChannel;
+    private final FileLock lock;
+    private final boolean readOnly;
+    private final TreeMap<String, String> memtable = new TreeMap<>();
+    private final List<Segment> segments = new ArrayList<>();
+    private final ProductEncoder encoder = new ProductEncoder(new SimpleDateFormat("dd-MMM-yyyy"));
+    private long appliedSequence;
+    private int nextSegment = 1;
+
+    public LsmCatalogStore(String directoryName) throws IOException {
+        this(directoryName, false);
+    }
+
+    private LsmCatalogStore(String directoryName, boolean readOnly) throws IOException {
+        this.directory = Paths.get(directoryName);
+        this.manifestFile = directory.resolve("MANIFEST");
+        this.walFile = directory.resolve("wal.log");
+        this.readOnly = readOnly;
+        if (readOnly) {
+            this.lockChannel = null;
+            this.lock = null;
+            this.wal = null;
+            loadReadOnly();
+        } else {
+            Files.createDirectories(directory);
+            this.lockChannel = FileChannel.open(directory.resolve("LOCK"), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            FileLock acquired;
+            try {
+                acquired = lockChannel.tryLock();
+            } catch (OverlappingFileLockException e) {
+                acquired = null;
+            }
+            if (acquired == null) {
+                lockChannel.close();
+                throw new IOException("Catalog store is in use by another process: " + directory);
+            }
+            this.lock = acquired;
+            FileChannel opened = null;
+            try {
+                readManifest(readIfExists(manifestFile));
+                opened = FileChannel.open(walFile, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                this.wal = opened;
+                recoverWal();
+            } catch (IOException e) {
+                if (opened != null) {
+                    opened.close();
+                }
+                closeSegments();
+                lock.release();
+                lockChannel.close();
+                throw e;
+            }
+        }
+        MemoryFootprint.register(StoreChain.metricPrefix(directory.toAbsolutePath().getParent()) + "store.lsm", this::estimateBytes);
+    }
+
+    // Opens the store for reading only: nothing is created, truncated or flushed, and every
+    // write fails
+    public static LsmCatalogStore openReadOnly(String directoryName) throws IOException {
+        return new LsmCatalogStore(directoryName, true);
+    }
+
+    // Estimated heap held by the memtable and the segments' sparse indexes
+    public synchronized long estimateBytes() {
+        long bytes = MemoryFootprint.treeMap(memtable.size());
+        for (Map.Entry<String, String> entry : memtable.entrySet()) {
+            bytes += MemoryFootprint.string(entry.getKey()) + MemoryFootprint.string(entry.getValue());
+        }
+        for (Segment segment : segments) {
+            bytes += MemoryFootprint.object(4, 8) + MemoryFootprint.referenceArray(segment.indexKeys.length)
+                    + MemoryFootprint.array(segment.indexOffsets.length, 8);
+            for (String key : segment.indexKeys) {
+                bytes += MemoryFootprint.string(key);
+            }
+        }
+        return bytes;
+    }
+
+    // True if nothing has ever been written to this store
+    @Override
+    public synchronized boolean isEmpty() {
+        return segments.isEmpty() && memtable.isEmpty();
+    }
+
+    @Override
+    public synchronized Product get(String productId) throws IOException {
+        String value = memtable.get(productId);
+        if (value == null) {
+            for (Segment segment : segments) {
+                value = segment.lookup(productId);
+                if (value != null) {
+                    break;
+                }
+            }
+        }
+        return value == null || value == DELETED ? null : parse(value);
+    }
+
+    @Override
+    public synchronized List<Product> scan(String fromId, String toId) throws IOException {
+        // Oldest segment first so newer versions overwrite older ones
+        TreeMap<String, String> merged = new TreeMap<>();
+        for (int i = segments.size() - 1; i >= 0; i--) {
+            segments.get(i).scan(fromId, toId, merged);
+        }
+        merged.putAll(range(memtable, fromId, toId));
+
+        List<Product> products = new ArrayList<>(merged.size());
+        for (String value : merged.values()) {
+            if (value != DELETED) {
+                products.add(parse(value));
+            }
+        }
+        return products;
+    }
+
+    @Override
+    public synchronized void put(Product product) throws IOException {
+        writeBatch(Collections.singletonList(product), Collections.emptyList(), appliedSequence);
+    }
+
+    @Override
+    public synchronized void delete(String productId) throws IOException {
+        writeBatch(Collections.emptyList(), Collections.singletonList(productId), appliedSequence);
+    }
+
+    @Override
+    public synchronized void writeBatch(List<Product> puts, List<String> deletes, long sequence) throws IOException {
+        if (readOnly) {
+            throw new IOException("Embedded store is open read-only: " + directory);
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeLong(sequence);
+        out.writeInt(puts.size() + deletes.size());
+        String[] values = new String[puts.size()];
+        for (int i = 0; i < values.length; i++) {
+            Product product = puts.get(i);
+            values[i] = encoder.encode(product);
+            out.writeByte(OP_PUT);
+            out.writeUTF(product.getProductId());
+            out.writeUTF(values[i]);
+        }
+        for (String productId : deletes) {
+            out.writeByte(OP_DELETE);
+            out.writeUTF(productId);
+        }
+        out.flush();
+        appendWal(bytes.toByteArray());
+
+        for (int i = 0; i < values.length; i++) {
+            memtable.put(puts.get(i).getProductId(), values[i]);
+        }
+        for (String productId : deletes) {
+            memtable.put(productId, DELETED);
+        }
+        appliedSequence = Math.max(appliedSequence, sequence);
+
+        if (memtable.size() >= MEMTABLE_LIMIT) {
+            flushMemtable();
+        }
+    }
+
+    @Override
+    public synchronized long getAppliedSequence() {
+        return appliedSequence;
+    }
+
+    @Override
+    public String describe() {
+        return "embedded store " + directory;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (readOnly) {
+            closeSegments();
+            return;
+        }
+        if (!memtable.isEmpty()) {
+            flushMemtable();
+        }
+        wal.close();
+        closeSegments();
+        lock.release();
+        lockChannel.close();
+    }
+
+    private void closeSegments() throws IOException {
+        for (Segment segment : segments) {
+            segment.close();
+        }
+        segments.clear();
+    }
+
+    private static SortedMap<String, String> range(TreeMap<String, String> map, String fromId, String toId) {
+        if (fromId == null && toId == null) {
+            return map;
+        } else if (fromId == null) {
+            return map.headMap(toId);
+        } else if (toId == null) {
+            return map.tailMap(fromId);
+        }
+        return fromId.compareTo(toId) >= 0 ? new TreeMap<>() : map.subMap(fromId, toId);
+    }
+
+    private Product parse(String value) throws IOException {
+        try {
+            return Product.fromString(value);
+        } catch (ParseException e) {
+            throw new IOException("Corrupt product record in " + directory + ": " + value, e);
+        }
+    }
+
+    // Log record: payload length, CRC32 of the payload, payload
+    private void appendWal(byte[] payload) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        ByteBuffer buffer = ByteBuffer.allocate(12 + payload.length);
+        buffer.putInt(payload.length).putLong(crc.getValue()).put(payload).flip();
+        wal.position(wal.size());
+        while (buffer.hasRemaining()) {
+            wal.write(buffer);
+        }
+        wal.force(false);
+    }
+
+    // Replays the log and cuts off a torn last record
+    private void recoverWal() throws IOException {
+        wal.position(0);
+        long goodEnd = replayWal(new DataInputStream(new BufferedInputStream(Channels.newInputStream(wal))), wal.size());
+        if (goodEnd < wal.size()) {
+            // Drop a record torn by a crash in the middle of an append
+            wal.truncate(goodEnd);
+            wal.force(true);
+        }
+        wal.position(goodEnd);
+    }
+
+    // Reads the manifest, segments and log as of one flush; see the class comment
+    private void loadReadOnly() throws IOException {
+        for (int attempt = 1; ; attempt++) {
+            byte[] manifest = readIfExists(manifestFile);
+            try {
+                readManifest(manifest);
+                byte[] log = readIfExists(walFile);
+                replayWal(new DataInputStream(new ByteArrayInputStream(log)), log.length);
+                if (Arrays.equals(manifest, readIfExists(manifestFile))) {
+                    return;
+                }
+            } catch (FileNotFoundException | NoSuchFileException e) {
+                // A compaction deleted a segment the manifest we read still named
+                if (attempt == MAX_LOAD_ATTEMPTS) {
+                    throw e;
+                }
+            }
+            if (attempt == MAX_LOAD_ATTEMPTS) {
+                throw new IOException("Embedded store " + directory + " kept changing while being read");
+            }
+        }
+    }
+
+    private static byte[] readIfExists(Path path) throws IOException {
+        try {
+            return Files.readAllBytes(path);
+        } catch (NoSuchFileException e) {
+            return new byte[0];
+        }
+    }
+
+    // Applies every intact log record to the memtable; returns the end of the last one
+    private long replayWal(DataInputStream in, long size) throws IOException {
+        long goodEnd = 0;
+        try {
+            while (true) {
+                int length = in.readInt();
+                long expected = in.readLong();
+                if (length < 0 || goodEnd + 12 + length > size) {
+                    break;
+                }
+                byte[] payload = new byte[length];
+                in.readFully(payload);
+                CRC32 crc = new CRC32();
+                crc.update(payload);
+                if (crc.getValue() != expected) {
+                    break;
+                }
+                applyWalRecord(payload);
+                goodEnd += 12 + length;
+            }
+        } catch (EOFException e) {
+            // End of log
+        }
+        return goodEnd;
+    }
+
+    private void applyWalRecord(byte[] payload) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        long sequence = in.readLong();
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            byte op = in.readByte();
+            String key = in.readUTF();
+            if (op == OP_PUT) {
+                memtable.put(key, in.readUTF());
+            } else {
+                memtable.put(key, DELETED);
+            }
+        }
+        appliedSequence = Math.max(appliedSequence, sequence);
+    }
+
+    private void flushMemtable() throws IOException {
+        Path path = directory.resolve(String.format("seg-%06d.sst", nextSegment++));
+        segments.add(0, Segment.write(path, memtable));
+        if (segments.size() > MAX_SEGMENTS) {
+            compactSegments();
+        }
+        writeManifest();
+        memtable.clear();
+        wal.truncate(0);
+        wal.force(true);
+    }
+
+    // Merges every segment into one; with no older data left, deletions can be dropped
+    private void compactSegments() throws IOException {
+        TreeMap<String, String> merged = new TreeMap<>();
+        for (int i = segments.size() - 1; i >= 0; i--) {
+            segments.get(i).scan(null, null, merged);
+        }
+        merged.values().removeIf(value -> value == DELETED);
+
+        Path path = directory.resolve(String.format("seg-%06d.sst", nextSegment++));
+        Segment compacted = Segment.write(path, merged);
+        List<Segment> obsolete = new ArrayList<>(segments);
+        segments.clear();
+        segments.add(compacted);
+        writeManifest();
+        for (Segment segment : obsolete) {
+            segment.close();
+            Files.deleteIfExists(segment.path);
+        }
+    }
+
+    private void writeManifest() throws IOException {
+        StringBuilder sb = new StringBuilder();
+        sb.append("sequence ").append(appliedSequence).append('\n');
+        sb.append("next-segment ").append(nextSegment).append('\n');
+        for (Segment segment : segments) {
+            sb.append("segment ").append(segment.path.getFileName()).append('\n');
+        }
+        AtomicFiles.write(manifestFile, sb.toString());
+    }
+
+    // Starts over from the given manifest contents: no memtable, the segments it names
+    private void readManifest(byte[] manifest) throws IOException {
+        closeSegments();
+        memtable.clear();
+        appliedSequence = 0;
+        nextSegment = 1;
+        for (String line : new String(manifest, StandardCharsets.UTF_8).split("\n")) {
+            String[] parts = line.trim().split(" ", 2);
+            if (parts.length != 2) {
+                continue;
+            }
+            switch (parts[0]) {
+                case "sequence":
+                    appliedSequence = Long.parseLong(parts[1]);
+                    break;
+                case "next-segment":
+                    nextSegment = Integer.parseInt(parts[1]);
+                    break;
+                case "segment":
+                    segments.add(Segment.open(directory.resolve(parts[1])));
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+
+    // An immutable sorted run of records followed by its sparse index:
+    //   records  key length, key (UTF-8), value length (-1 for a deletion), value (UTF-8)
+    //   index    entry count, then key and record offset for every INDEX_INTERVAL-th record
+    //   footer   index offset, magic number
+    private static class Segment {
+        final Path path;
+        final RandomAccessFile file;
+        final String[] indexKeys;
+        final long[] indexOffsets;
+        final long indexStart;
+
+        private Segment(Path path, RandomAccessFile file, String[] indexKeys, long[] indexOffsets, long indexStart) {
+            this.path = path;
+            this.file = file;
+            this.indexKeys = indexKeys;
+            this.indexOffsets = indexOffsets;
+            this.indexStart = indexStart;
+        }
+
+        static Segment write(Path path, SortedMap<String, String> entries) throws IOException {
+            List<String> keys = new ArrayList<>();
+            List<Long> offsets = new ArrayList<>();
+            try (FileOutputStream fileOut = new FileOutputStream(path.toFile());
+                 DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut))) {
+                long position = 0;
+                int i = 0;
+                for (Map.Entry<String, String> entry : entries.entrySet()) {
+                    if (i++ % INDEX_INTERVAL == 0) {
+                        keys.add(entry.getKey());
+                        offsets.add(position);
+                    }
+                    int before = out.size();
+                    byte[] key = entry.getKey().getBytes(StandardCharsets.UTF_8);
+                    out.writeShort(key.length);
+                    out.write(key);
+                    if (entry.getValue() == DELETED) {
+                        out.writeInt(-1);
+                    } else {
+                        byte[] value = entry.getValue().getBytes(StandardCharsets.UTF_8);
+                        out.writeInt(value.length);
+                        out.write(value);
+                    }
+                    position += out.size() - before;
+                }
+                long indexStart = position;
+                out.writeInt(keys.size());
+                for (int k = 0; k < keys.size(); k++) {
+                    out.writeUTF(keys.get(k));
+                    out.writeLong(offsets.get(k));
+                }
+                out.writeLong(indexStart);
+                out.writeInt(SEGMENT_MAGIC);
+                out.flush();
+                fileOut.getFD().sync();
+            }
+            return open(path);
+        }
+
+        static Segment open(Path path) throws IOException {
+            RandomAccessFile file = new RandomAccessFile(path.toFile(), "r");
+            file.seek(file.length() - 12);
+            long indexStart = file.readLong();
+            if (file.readInt() != SEGMENT_MAGIC) {
+                file.close();
+                throw new IOException("Not a catalog segment: " + path);
+            }
+            file.seek(indexStart);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(file.getChannel())));
+            int count = in.readInt();
+            String[] keys = new String[count];
+            long[] offsets = new long[count];
+            for (int i = 0; i < count; i++) {
+                keys[i] = in.readUTF();
+                offsets[i] = in.readLong();
+            }
+            return new Segment(path, file, keys, offsets, indexStart);
+        }
+
+        // Index of the last sparse-index key <= key, or -1 if key sorts before the segment
+        private int floorBlock(String key) {
+            int index = Arrays.binarySearch(indexKeys, key);
+            return index >= 0 ? index : -index - 2;
+        }
+
+        // Returns the stored value, DELETED, or null if the segment has no record for the key
+        String lookup(String key) throws IOException {
+            int block = floorBlock(key);
+            if (block < 0) {
+                return null;
+            }
+            long end = block + 1 < indexOffsets.length ? indexOffsets[block + 1] : indexStart;
+            file.seek(indexOffsets[block]);
+            byte[] bytes = new byte[(int) (end - indexOffsets[block])];
+            file.readFully(bytes);
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+            while (in.available() > 0) {
+                String recordKey = readString(in, in.readUnsignedShort());
+                int length = in.readInt();
+                int cmp = recordKey.compareTo(key);
+                if (cmp == 0) {
+                    return length < 0 ? DELETED : readString(in, length);
+                } else if (cmp > 0) {
+                    return null;
+                }
+                if (length > 0) {
+                    in.skipBytes(length);
+                }
+            }
+            return null;
+        }
+
+        // Adds the records with fromId <= key < toId to the given map
+        void scan(String fromId, String toId, Map<String, String> into) throws IOException {
+            int block = fromId == null ? 0 : Math.max(0, floorBlock(fromId));
+            if (indexOffsets.length == 0) {
+                return;
+            }
+            long start = indexOffsets[block];
+            FileChannel channel = file.getChannel().position(start);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+            long position = start;
+            while (position < indexStart) {
+                int keyLength = in.readUnsignedShort();
+                String key = readString(in, keyLength);
+                int length = in.readInt();
+                position += 2 + keyLength + 4 + Math.max(length, 0);
+                if (toId != null && key.compareTo(toId) >= 0) {
+                    return;
+                }
+                String value = length < 0 ? DELETED : readString(in, length);
+                if (fromId == null || key.compareTo(fromId) >= 0) {
+                    into.put(key, value);
+                }
+            }
+        }
+
+        private static String readString(DataInputStream in, int length) throws IOException {
+            byte[] bytes = new byte[length];
+            in.readFully(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        void close() throws IOException {
+            file.close();
+        }
+    }
+}
@@ -1,25 +1,35 @@
 import javax.swing.*;
 import java.awt.*;
 import java.awt.event.*;
-import java.util.ArrayList;
 import java.io.*;
-import java.text.ParseException;
+import java.util.concurrent.ExecutionException;
 
 
 public class MainApp {
     private JFrame mainFrame;
+    private JButton inventoryButton;
+    private JButton salesButton;
+
+    // Loaded in the background while the welcome screen is showing
+    private Catalog catalog;
+    private SaleOutbox outbox;
+    private PriceHistory prices;
+
+    // Built the first time their button is clicked
     private Inventory inventory;
+    private JFrame invFrame;
     private PointOfSales pos;
-    public MainApp() {
-        // Initialize the inventoryMgmt object in the constructor
-        inventory = new Inventory();
-
-        // Create an instance of POS with the initial inventory
-        ArrayList<Product> initialInventory = readProductsFromFile("products.txt");
-        pos = new PointOfSales(initialInventory);
-    }
 
     public static void main(String[] args) {
+        if (args.length > 0 && args[0].equals("--memory-report")) {
+            printMemoryReport();
+            return;
+        }
+
+        // Watch the event thread for stalls and dump the collected metrics on exit
+        EdtMonitor.install(200);
+        Metrics.exportOnExit();
+
         SwingUtilities.invokeLater(() -> {
             try {
                 // Set the look and feel to the system default
@@ -27,30 +37,44 @@ public class MainApp {
             } catch (Exception e) {
                 e.printStackTrace();
             }
-            new MainApp().createAndShowGUI();
+            MainApp app = new MainApp();
+            app.createAndShowGUI();
+            app.loadCatalogInBackground();
         });
     }
 
-    private ArrayList<Product> readProductsFromFile(String filename) {
-        ArrayList<Product> products = new ArrayList<>();
+    // Loads what the till loads at startup, without the screens, and prints the estimated
+    // footprint of every structure next to the heap the load actually took. Everything is
+    // opened read-only (no locks, nothing imported, replayed, recorded, repaired or
+    // flushed), so it can run next to a live till.
+    private static void printMemoryReport() {
+        try {
+            long before = usedHeapAfterGc();
+            String directory = StoreChain.tillDirectory();
+            Catalog catalog = Catalog.openReadOnly(directory);
+            SaleOutbox.openReadOnly(catalog, directory);
+            PriceHistory.openReadOnly(directory);
+            // The sales velocity is seeded on first use; count it as the screens will see it
+            catalog.getVelocity().size();
+            long after = usedHeapAfterGc();
 
-        try (BufferedReader reader = new BufferedReader(new FileReader(filename))) {
-            String line;
-            while ((line = reader.readLine()) != null) {
-                try {
-                    Product product = Product.fromString(line);
-                    products.add(product);
-                } catch (ParseException e) {
-                    e.printStackTrace();
-                    // Handle the parse exception as needed
-                }
-            }
+            PrintWriter writer = new PrintWriter(System.out);
+            MemoryFootprint.writeReport(writer, catalog.size());
+            writer.println(String.format("Measured heap growth while loading: %d bytes (%.1f per SKU)",
+                    after - before, catalog.size() == 0 ? 0.0 : (double) (after - before) / catalog.size()));
+            writer.flush();
+            catalog.getStore().close();
         } catch (IOException e) {
             e.printStackTrace();
-            // Handle the IO exception as needed
         }
+    }
 
-        return products;
+    private static long usedHeapAfterGc() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
     }
 
     // Creates and sets up the main GUI
@@ -60,22 +84,31 @@ public class MainApp {
         mainFrame.setSize(500, 200);
         mainFrame.setLayout(new BorderLayout());
 
-        // Set up the title label
-        MarqueePanel mp = new MarqueePanel("Welcome to the Ball POS!", 32);
+        // Set up the title label; its first paint is the first thing the user sees
+        MarqueePanel mp = new MarqueePanel("Welcome to the Ball POS!", 32) {
+            @Override
+            protected void paintComponent(Graphics g) {
+                super.paintComponent(g);
+                StartupTimer.mark("first paint");
+            }
+        };
         mainFrame.add(mp);
         mainFrame.setLocationRelativeTo(null);
         mainFrame.setVisible(true);
         mp.start();
 
         // Create and configure Inventory button
-        JButton inventoryButton = createButton("Inventory", new Color(100, 182, 224));
-        JFrame invFrame = new JFrame("Inventory");
-        inventoryButton.addActionListener(e -> openInventoryFrame(invFrame));
+        inventoryButton = createButton("Inventory", new Color(100, 182, 224));
+        inventoryButton.addActionListener(e -> openInventoryFrame());
 
         // Create and configure Sales button
-        JButton salesButton = createButton("Sales", new Color(224, 100, 100));
+        salesButton = createButton("Sales", new Color(224, 100, 100));
         salesButton.addActionListener(e -> openSalesFrame());
 
+        // Both screens need the catalog, which is still loading
+        inventoryButton.setEnabled(false);
+        salesButton.setEnabled(false);
+
         // Add mouse hover effect to the buttons
         inventoryButton.addMouseListener(new MouseAdapter() {
             @Override
@@ -116,14 +149,69 @@ public class MainApp {
         return button;
     }
 
-    // Opens the inventory management frame
-    private void openInventoryFrame(JFrame invFrame) {
-        invFrame.setDefaultCloseOperation(JFrame.HIDE_ON_CLOSE);
+    // Reads the catalog and the till's sales backlog off the event thread, then enables the
+    // buttons. If that fails the user is told why and can try again (or exit).
+    private void loadCatalogInBackground() {
+        new SwingWorker<Catalog, Void>() {
+            @Override
+            protected Catalog doInBackground() throws IOException {
+                Catalog loaded = Catalog.open();
+                try {
+                    outbox = SaleOutbox.open(loaded);
+                    prices = PriceHistory.open(loaded);
+                    LogShipper.startIfConfigured(loaded);
+                    CatalogFileWatcher.startIfTextFile(loaded);
+                } catch (IOException | RuntimeException e) {
+                    // An lsm or sharded store stays locked while open; free it for the retry
+                    try {
+                        loaded.getStore().close();
+                    } catch (IOException closeFailed) {
+                        e.addSuppressed(closeFailed);
+                    }
+                    throw e;
+                }
+                return loaded;
+            }
+
+            @Override
+            protected void done() {
+                try {
+                    catalog = get();
+                } catch (InterruptedException | ExecutionException e) {
+                    Throwable cause = e instanceof ExecutionException ? e.getCause() : e;
+                    cause.printStackTrace();
+                    Object[] options = {"Retry", "Exit"};
+                    int choice = JOptionPane.showOptionDialog(mainFrame, "Could not open the catalog: " + cause.getMessage(),
+                            "Error", JOptionPane.YES_NO_OPTION, JOptionPane.ERROR_MESSAGE, null, options, options[0]);
+                    if (choice == 0) {
+                        loadCatalogInBackground();
+                    } else {
+                        System.exit(1);
+                    }
+                    return;
+                }
+                inventoryButton.setEnabled(true);
+                salesButton.setEnabled(true);
+                StartupTimer.mark("catalog ready");
+            }
+        }.execute();
+    }
+
+    // Opens the inventory management frame, building it on first use
+    private void openInventoryFrame() {
+        if (inventory == null) {
+            inventory = new Inventory(catalog, outbox.getHistory(), prices);
+            invFrame = new JFrame("Inventory");
+            invFrame.setDefaultCloseOperation(JFrame.HIDE_ON_CLOSE);
+        }
         inventory.openInventoryFrame(invFrame);  // Call the openInventoryFrame method
     }
 
-    // Opens the sales frame
+    // Opens the sales frame, building it on first use
     private void openSalesFrame() {
+        if (pos == null) {
+            pos = new PointOfSales(catalog, outbox);
+        }
         // Call a method in POS to show the sales frame
         pos.showSalesFrame();
     }
@@ -0,0 +1,185 @@
+import java.io.PrintWriter;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Vector;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.LongSupplier;
+import javax.swing.table.DefaultTableModel;
+
+// Estimated heap retained by the POS's big structures (the catalog, its indexes, the
+// screens' product lists and table models, caches), for sizing till hardware and catching
+// footprint regressions between releases.
+//
+// The estimates follow the HotSpot object layout rather than measuring: a 12-byte object
+// header and 4-byte references with compressed oops (16 and 8 on heaps of 32 GB and
+// more), 16-byte array headers, everything padded to 8 bytes, and Latin-1 strings at one
+// byte per character. A structure counts the objects it alone keeps alive: a list of
+// products shared with the catalog counts only its own array, a table model counts its
+// rows and cell values. Strings that happen to be shared are counted by every structure
+// holding them, so the estimates lean high.
+//
+// Every registered structure is also a gauge, "memory.<name>.bytes"; the catalog adds
+// "memory.catalog.bytesPerSku". MainApp --memory-report prints the report and exits.
+final class MemoryFootprint {
+    private static final boolean COMPRESSED_OOPS = Runtime.getRuntime().maxMemory() < 32L * 1024 * 1024 * 1024;
+    static final int REFERENCE = COMPRESSED_OOPS ? 4 : 8;
+    static final int HEADER = COMPRESSED_OOPS ? 12 : 16;
+    static final int ARRAY_HEADER = 16;
+
+    private static final Map<String, LongSupplier> structures = new ConcurrentSkipListMap<>();
+
+    private MemoryFootprint() {
+    }
+
+    // Registers (or replaces) a structure whose estimated size is computed on demand
+    public static void register(String name, LongSupplier bytes) {
+        structures.put(name, bytes);
+        Metrics.gauge("memory." + name + ".bytes", bytes);
+    }
+
+    // An object with the given number of reference fields and bytes of primitive fields
+    public static long object(int references, int primitiveBytes) {
+        return align(HEADER + (long) references * REFERENCE + primitiveBytes);
+    }
+
+    public static long array(long length, int elementBytes) {
+        return align(ARRAY_HEADER + length * elementBytes);
+    }
+
+    public static long referenceArray(long length) {
+        return array(length, REFERENCE);
+    }
+
+    public static long string(String value) {
+        if (value == null) {
+            return 0;
+        }
+        // String: value array, hash, coder, hashIsZero; the array holds 1 or 2 bytes a char
+        boolean latin1 = true;
+        for (int i = 0; i < value.length() && latin1; i++) {
+            latin1 = value.charAt(i) < 256;
+        }
+        return object(1, 6) + array(value.length(), latin1 ? 1 : 2);
+    }
+
+    public static long date(Date date) {
+        return date == null ? 0 : object(1, 8);
+    }
+
+    // A product with its own strings and date
+    public static long product(Product product) {
+        return object(5, 16)
+                + string(product.getProductId())
+                + string(product.getProductName())
+                + string(product.getProductCategory())
+                + string(product.getProductStatus())
+                + date(product.getDiscountEndDate());
+    }
+
+    public static long products(Collection<Product> products) {
+        long bytes = 0;
+        for (Product product : products) {
+            bytes += product(product);
+        }
+        return bytes;
+    }
+
+    // The map's own objects, not its keys and values
+    public static long treeMap(int size) {
+        return object(7, 8) + size * object(5, 1);
+    }
+
+    public static long hashMap(int size) {
+        return object(4, 16) + (size == 0 ? 0 : referenceArray(buckets(size))) + size * object(3, 4);
+    }
+
+    // LinkedHashMap entries also link to the previous and next entry
+    public static long linkedHashMap(int size) {
+        return object(6, 17) + (size == 0 ? 0 : referenceArray(buckets(size))) + size * object(5, 4);
+    }
+
+    public static long arrayList(int size) {
+        return object(1, 8) + referenceArray(size);
+    }
+
+    // A boxed number, string or other cell value
+    public static long value(Object value) {
+        if (value == null) {
+            return 0;
+        }
+        if (value instanceof String) {
+            return string((String) value);
+        }
+        if (value instanceof Double || value instanceof Long) {
+            return object(0, 8);
+        }
+        if (value instanceof Number || value instanceof Boolean || value instanceof Character) {
+            return object(0, 4);
+        }
+        return object(0, 0);
+    }
+
+    // A table model's row vectors and every cell value in them
+    public static long tableModel(DefaultTableModel model) {
+        Vector<?> rows = model.getDataVector();
+        long bytes = object(3, 0) + vector(rows.size());
+        synchronized (rows) {
+            for (Object row : rows) {
+                Vector<?> cells = (Vector<?>) row;
+                bytes += vector(cells.size());
+                for (Object cell : cells) {
+                    bytes += value(cell);
+                }
+            }
+        }
+        return bytes;
+    }
+
+    public static long vector(int size) {
+        return object(1, 12) + referenceArray(Math.max(size, 10));
+    }
+
+    public static long align(long bytes) {
+        return (bytes + 7) & ~7L;
+    }
+
+    // Table length of a HashMap holding size entries at the default load factor
+    private static int buckets(int size) {
+        int buckets = 16;
+        while (buckets * 0.75 < size) {
+            buckets *= 2;
+        }
+        return buckets;
+    }
+
+    // Every registered structure, largest first, with the total and bytes per SKU
+    public static void writeReport(PrintWriter writer, int skus) {
+        long total = 0;
+        List<Map.Entry<String, Long>> sizes = new ArrayList<>();
+        for (Map.Entry<String, LongSupplier> entry : structures.entrySet()) {
+            long bytes;
+            try {
+                bytes = entry.getValue().getAsLong();
+            } catch (RuntimeException e) {
+                bytes = -1;
+            }
+            sizes.add(new AbstractMap.SimpleEntry<>(entry.getKey(), bytes));
+            total += Math.max(0, bytes);
+        }
+        sizes.sort((a, b) -> Long.compare(b.getValue(), a.getValue()));
+
+        writer.println(String.format("%-24s %14s %10s", "structure", "bytes", "per SKU"));
+        for (Map.Entry<String, Long> size : sizes) {
+            writer.println(String.format("%-24s %14d %10.1f", size.getKey(), size.getValue(),
+                    skus == 0 ? 0.0 : (double) size.getValue() / skus));
+        }
+        writer.println(String.format("%-24s %14d %10.1f", "total", total, skus == 0 ? 0.0 : (double) total / skus));
+        writer.println("(" + skus + " SKUs, " + (COMPRESSED_OOPS ? "compressed" : "uncompressed")
+                + " references; estimates, see MemoryFootprint)");
+        writer.flush();
+    }
+}
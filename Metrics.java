@@ -0,0 +1,61 @@
+import java.io.FileNotFoundException;
+import java.io.PrintWriter;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.LongSupplier;
+
+// Process-wide registry of latency histograms and gauges. Screens and background
+// components register what they measure here, and the whole set can be dumped as a
+// plain text report (on demand or when the JVM exits).
+final class Metrics {
+    private static final Map<String, LatencyHistogram> histograms = new ConcurrentSkipListMap<>();
+    private static final Map<String, LongSupplier> gauges = new ConcurrentSkipListMap<>();
+
+    private Metrics() {
+    }
+
+    // Returns the histogram with the given name, creating it on first use
+    public static LatencyHistogram histogram(String name) {
+        return histograms.computeIfAbsent(name, LatencyHistogram::new);
+    }
+
+    // Registers (or replaces) a gauge that is sampled every time a report is written
+    public static void gauge(String name, LongSupplier supplier) {
+        gauges.put(name, supplier);
+    }
+
+    public static void writeReport(PrintWriter writer) {
+        writer.println("# histograms");
+        for (LatencyHistogram histogram : histograms.values()) {
+            histogram.writeTo(writer);
+        }
+        writer.println("# gauges");
+        for (Map.Entry<String, LongSupplier> entry : gauges.entrySet()) {
+            long value;
+            try {
+                value = entry.getValue().getAsLong();
+            } catch (RuntimeException e) {
+                value = -1;
+            }
+            writer.println(entry.getKey() + " " + value);
+        }
+        writer.flush();
+    }
+
+    public static void exportToFile(String fileName) {
+        try (PrintWriter writer = new PrintWriter(fileName)) {
+            writeReport(writer);
+        } catch (FileNotFoundException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // Writes the report to the file named by the "pos.metrics.file" system property on exit
+    public static void exportOnExit() {
+        String fileName = System.getProperty("pos.metrics.file");
+        if (fileName == null || fileName.isEmpty()) {
+            return;
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> exportToFile(fileName), "metrics-export"));
+    }
+}
@@ -0,0 +1,288 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+// Till-side cache of products read from a RemoteCatalog, so the sales screen's lookups
+// (adding to the cart, redrawing it, the product grid) are not a round trip each. At most
+// `capacity` products are kept; the least recently used one is evicted to make room.
+// Entries are dropped when the remote catalog's change feed reports a change, so a
+// cached name or price is stale for at most the feed's delay. Stock is not cached: the
+// stock of a cached product is whatever it was when fetched, and checkout must use
+// stock(), which always asks the remote catalog.
+//
+// A fetch that overlaps an invalidation is returned but not cached, since it may have
+// read the product from before the change the invalidation is for.
+//
+// Metrics: nearcache.hits / misses / evictions / hitPercent / size, nearcache.staleReads
+// (reads served from an entry after the store had changed it, before the feed arrived)
+// and histograms nearcache.fetch (round trips) and nearcache.staleness (time from a
+// change at the store to its invalidation here).
+class NearCache implements RemoteCatalog.ChangeFeed {
+
+    private static final class Entry {
+        final Product product;
+        final long loadedAt;
+        long lastReadAt;
+
+        Entry(Product product, long loadedAt) {
+            this.product = product;
+            this.loadedAt = loadedAt;
+            this.lastReadAt = loadedAt;
+        }
+    }
+
+    private final RemoteCatalog remote;
+    private final int capacity;
+    private final Map<String, Entry> entries;
+    private final LatencyHistogram fetchLatency = Metrics.histogram("nearcache.fetch");
+    private final LatencyHistogram staleness = Metrics.histogram("nearcache.staleness");
+    private long invalidations;
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long staleReads;
+
+    public NearCache(RemoteCatalog remote, int capacity) {
+        this.remote = remote;
+        this.capacity = capacity;
+        this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                if (size() > NearCache.this.capacity) {
+                    evictions++;
+                    return true;
+                }
+                return false;
+            }
+        };
+        remote.subscribe(this);
+
+        Metrics.gauge("nearcache.hits", () -> getHits());
+        Metrics.gauge("nearcache.misses", () -> getMisses());
+        Metrics.gauge("nearcache.evictions", () -> getEvictions());
+        Metrics.gauge("nearcache.hitPercent", () -> Math.round(getHitRate() * 100));
+        Metrics.gauge("nearcache.size", () -> size());
+        Metrics.gauge("nearcache.staleReads", () -> getStaleReads());
+        MemoryFootprint.register("nearcache", this::estimateBytes);
+    }
+
+    // The product with the given ID, from the cache if possible; null if there is none.
+    // Its stock is not current: use stock() for that.
+    public Product get(String productId) throws IOException {
+        long invalidationsBefore;
+        synchronized (this) {
+            Entry entry = entries.get(productId);
+            if (entry != null) {
+                hits++;
+                entry.lastReadAt = System.currentTimeMillis();
+                return entry.product;
+            }
+            misses++;
+            invalidationsBefore = invalidations;
+        }
+        return fetchAndCache(productId, invalidationsBefore);
+    }
+
+    // The product's current stock, always read from the remote catalog; -1 if the product
+    // no longer exists. The fetched product also refreshes the cache.
+    public int stock(String productId) throws IOException {
+        long invalidationsBefore;
+        synchronized (this) {
+            invalidationsBefore = invalidations;
+        }
+        Product product = fetchAndCache(productId, invalidationsBefore);
+        return product == null ? -1 : product.getProductStock();
+    }
+
+    @Override
+    public synchronized void productChanged(String productId, long changedAt) {
+        invalidations++;
+        long now = System.currentTimeMillis();
+        staleness.recordMicros(Math.max(0, now - changedAt) * 1000);
+        Entry entry = entries.remove(productId);
+        if (entry != null && entry.loadedAt <= changedAt && entry.lastReadAt > changedAt) {
+            staleReads++;
+        }
+    }
+
+    // Estimated heap held by the cached products and the map holding them
+    public synchronized long estimateBytes() {
+        long bytes = MemoryFootprint.linkedHashMap(entries.size());
+        for (Entry entry : entries.values()) {
+            bytes += MemoryFootprint.object(1, 16) + MemoryFootprint.product(entry.product);
+        }
+        return bytes;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    public synchronized long getStaleReads() {
+        return staleReads;
+    }
+
+    // Fraction of get() calls served from the cache
+    public synchronized double getHitRate() {
+        return hits + misses == 0 ? 0 : (double) hits / (hits + misses);
+    }
+
+    private Product fetchAndCache(String productId, long invalidationsBefore) throws IOException {
+        long loadedAt = System.currentTimeMillis();
+        long started = System.nanoTime();
+        Product product = remote.fetch(productId);
+        fetchLatency.recordNanos(System.nanoTime() - started);
+        synchronized (this) {
+            if (product == null) {
+                entries.remove(productId);
+            } else if (invalidations == invalidationsBefore) {
+                entries.put(productId, new Entry(product, loadedAt));
+            }
+        }
+        return product;
+    }
+
+    // Self-check against the in-process stand-in: reader threads look products up with a
+    // skewed popularity while a writer reprices some of them and sells others. Afterwards,
+    // once the feed has caught up, every cached product must match the catalog apart from
+    // its stock, and stock() must match the catalog's stock exactly.
+    // Usage: NearCache [--products N] [--capacity N] [--lookups N] [--rtt micros] [--feed millis]
+    public static void main(String[] args) throws Exception {
+        int products = 2000;
+        int capacity = 500;
+        int lookups = 50000;
+        long roundTripMicros = 200;
+        long feedDelayMillis = 20;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--products":
+                    products = Integer.parseInt(args[++i]);
+                    break;
+                case "--capacity":
+                    capacity = Integer.parseInt(args[++i]);
+                    break;
+                case "--lookups":
+                    lookups = Integer.parseInt(args[++i]);
+                    break;
+                case "--rtt":
+                    roundTripMicros = Long.parseLong(args[++i]);
+                    break;
+                case "--feed":
+                    feedDelayMillis = Long.parseLong(args[++i]);
+                    break;
+                default:
+                    System.out.println("Usage: NearCache [--products N] [--capacity N] [--lookups N] [--rtt micros] [--feed millis]");
+                    return;
+            }
+        }
+        if (System.getProperty("pos.store") == null) {
+            System.setProperty("pos.store", "lsm");
+        }
+
+        Path directory = Files.createTempDirectory("pos-nearcache");
+        Catalog shared = Catalog.open(directory.toString());
+        Date discountEnd = new SimpleDateFormat("dd-MMM-yyyy").parse("01-Jan-2030");
+        for (int i = 0; i < products; i++) {
+            shared.put(new Product(String.format("N%05d", i), "Item " + i, "Test", 1000, 1 + i % 50,
+                    discountEnd, 0, "Active"));
+        }
+
+        InProcessRemoteCatalog remote = new InProcessRemoteCatalog(shared, roundTripMicros, feedDelayMillis);
+        NearCache cache = new NearCache(remote, capacity);
+        int productCount = products;
+        int readers = 4;
+        int lookupsPerReader = lookups / readers;
+        ExecutorService pool = Executors.newFixedThreadPool(readers + 1);
+        List<Future<?>> running = new ArrayList<>();
+        long started = System.nanoTime();
+        for (int t = 0; t < readers; t++) {
+            Random random = new Random(t);
+            running.add(pool.submit(() -> {
+                for (int i = 0; i < lookupsPerReader; i++) {
+                    cache.get(String.format("N%05d", skewed(random, productCount)));
+                }
+                return null;
+            }));
+        }
+        running.add(pool.submit(() -> {
+            Random random = new Random(99);
+            for (int i = 0; i < 300; i++) {
+                Product product = shared.get(String.format("N%05d", skewed(random, productCount)));
+                if (i % 3 == 0) {
+                    shared.edit(product.getProductId(), new Product(product.getProductId(), product.getProductName(),
+                            product.getProductCategory(), product.getProductStock(), product.getProductUsualPrice() + 1,
+                            product.getDiscountEndDate(), product.getProductDiscount(), product.getProductStatus()),
+                            product.getProductStock());
+                } else {
+                    Map<String, Integer> lines = new LinkedHashMap<>();
+                    lines.put(product.getProductId(), 1);
+                    shared.reserve(lines);
+                }
+                Thread.sleep(1);
+            }
+            return null;
+        }));
+        for (Future<?> future : running) {
+            future.get();
+        }
+        long elapsedMillis = (System.nanoTime() - started) / 1000000;
+        pool.shutdown();
+        Thread.sleep(feedDelayMillis * 5 + 100);
+
+        SimpleDateFormat dateFormat = new SimpleDateFormat("dd-MMM-yyyy");
+        int mismatches = 0;
+        for (int i = 0; i < products; i++) {
+            String id = String.format("N%05d", i);
+            Product expected = shared.get(id);
+            Entry entry;
+            synchronized (cache) {
+                entry = cache.entries.get(id);
+            }
+            if (entry != null && !entry.product.withStock(0).toFileString(dateFormat)
+                    .equals(expected.withStock(0).toFileString(dateFormat))) {
+                System.out.println("Stale cache entry for " + id + ": " + entry.product.toFileString(dateFormat));
+                mismatches++;
+            }
+            if (i % 10 == 0 && cache.stock(id) != expected.getProductStock()) {
+                System.out.println("Stock for " + id + " is not authoritative");
+                mismatches++;
+            }
+        }
+
+        System.out.println(lookups + " lookups over " + products + " products, cache of " + capacity + ", "
+                + roundTripMicros + " us round trip, " + feedDelayMillis + " ms feed delay: " + elapsedMillis + " ms");
+        System.out.println(String.format("Hit rate %.1f%%, %d evictions, %d stale reads, staleness p99 %d us",
+                cache.getHitRate() * 100, cache.getEvictions(), cache.getStaleReads(),
+                cache.staleness.percentileMicros(99)));
+        System.out.println(mismatches == 0 ? "PASSED" : "FAILED with " + mismatches + " mismatch(es)");
+        shared.getStore().close();
+        System.exit(mismatches == 0 ? 0 : 1);
+    }
+
+    // A product index where low indexes are much more popular, like a till's best sellers
+    private static int skewed(Random random, int count) {
+        return (int) Math.min(count - 1, Math.floor(Math.pow(random.nextDouble(), 3) * count));
+    }
+}
@@ -3,49 +3,49 @@ import javax.swing.border.*;
 import javax.swing.table.DefaultTableModel;
 import java.awt.*;
 import java.io.*;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
+import java.nio.file.Paths;
 import java.util.*;
 import java.util.Vector;
 
-public class PointOfSales {
+// The sales screen. It listens to the catalog, since sales on other tills, edits and
+// products merged from the shared store (which replace the Product objects) all change what
+// it shows: at most every REFRESH_MILLIS the grid is reloaded and the cart re-resolved by
+// product ID, on the event thread.
+public class PointOfSales implements CatalogListener {
+    private static final int REFRESH_MILLIS = 250;
+
     private JFrame mainFrame;
-    private ArrayList<Product> inventory;
+    private Catalog catalog;
     private ArrayList<Product> activeProducts;
     private ArrayList<Product> cartProducts = new ArrayList<>();
     private Map<Product, Integer> shoppingCart;
+    private PricedCart pricedCart;
+    private CheckoutPipeline checkoutPipeline;
     private JTable cartTable;
+    private JTable salesTable;
+    private DefaultTableModel salesTableModel;
+    private final javax.swing.Timer refreshTimer = new javax.swing.Timer(REFRESH_MILLIS, e -> refreshProducts());
 
     public void showSalesFrame() {
         mainFrame.setVisible(true); // Show the sales frame
     }
 
-    private static ArrayList<Product> readProductsFromFile(String filename) {
-        ArrayList<Product> products = new ArrayList<>();
-
-        try (BufferedReader reader = new BufferedReader(new FileReader(filename))) {
-            String line;
-            while ((line = reader.readLine()) != null) {
-                try {
-                    Product product = Product.fromString(line);
-                    products.add(product);
-                } catch (ParseException e) {
-                    e.printStackTrace();
-                    // Handle the parse exception as needed
-                }
-            }
-        } catch (IOException e) {
-            e.printStackTrace();
-            // Handle the IO exception as needed
-        }
-
-        return products;
+    public PointOfSales(Catalog catalog) throws IOException {
+        this(catalog, SaleOutbox.open(catalog));
     }
 
-    public PointOfSales(ArrayList<Product> inventory) {
-        this.inventory = inventory;
+    public PointOfSales(Catalog catalog, SaleOutbox outbox) {
+        this.catalog = catalog;
         this.shoppingCart = new HashMap<>();
-        this.activeProducts = getActiveProducts(inventory);
+        // Each store has its own promotions, next to its catalog
+        PromotionEngine engine = PromotionEngine.load(Paths.get(StoreChain.tillDirectory(), "promotions.txt").toString());
+        this.pricedCart = new PricedCart(engine);
+        this.checkoutPipeline = new CheckoutPipeline(catalog, outbox, engine);
+        this.activeProducts = getActiveProducts(catalog.getProducts());
+        MemoryFootprint.register("pos.activeProducts", () -> MemoryFootprint.arrayList(activeProducts.size()));
+        MemoryFootprint.register("pos.cart", () -> MemoryFootprint.hashMap(shoppingCart.size())
+                + shoppingCart.size() * MemoryFootprint.object(0, 4) + pricedCart.estimateBytes()
+                + MemoryFootprint.tableModel((DefaultTableModel) cartTable.getModel()));
         this.mainFrame = new JFrame("Sales");
         this.mainFrame.setSize(800, 600);
         this.mainFrame.setLayout(new BorderLayout());
@@ -69,10 +69,10 @@ public class PointOfSales {
 
         // Create a button for checkout
         JButton checkoutButton = new JButton("Checkout");
-        checkoutButton.addActionListener(e -> {
+        checkoutButton.addActionListener(EdtMonitor.timed("checkout", e -> {
             // Call the checkout method when the button is clicked
             checkout();
-        });
+        }));
 
         // Create the panel for the checkout button
         JPanel checkoutPanel = new JPanel();
@@ -84,6 +84,62 @@ public class PointOfSales {
         this.mainFrame.add(splitPane, BorderLayout.CENTER);
 
         this.mainFrame.setDefaultCloseOperation(JFrame.HIDE_ON_CLOSE);
+
+        refreshTimer.setRepeats(false);
+        catalog.addListener(this);
+    }
+
+    // Called under the catalog's lock: only schedules a refresh; while one is pending
+    // further changes are picked up by it
+    @Override
+    public void productChanged(Product product) {
+        refreshTimer.start();
+    }
+
+    @Override
+    public void productRemoved(String productId) {
+        refreshTimer.start();
+    }
+
+    // Reloads the grid from the catalog, keeping the selected product selected, and points
+    // the cart at the catalog's current products
+    private void refreshProducts() {
+        int selectedRow = salesTable.getSelectedRow();
+        String selectedId = selectedRow == -1 ? null : activeProducts.get(selectedRow).getProductId();
+        activeProducts = getActiveProducts(catalog.getProducts());
+        fillSalesTable();
+        for (int i = 0; selectedId != null && i < activeProducts.size(); i++) {
+            if (activeProducts.get(i).getProductId().equals(selectedId)) {
+                salesTable.setRowSelectionInterval(i, i);
+                break;
+            }
+        }
+        resolveCart();
+    }
+
+    // Re-keys the cart by product ID to the catalog's current objects, so stock checks and
+    // prices see the product as it is now; a product that is gone stays as it was and
+    // checkout reports it
+    private void resolveCart() {
+        Map<String, Product> current = new HashMap<>();
+        Map<Product, Integer> resolved = new HashMap<>();
+        for (Map.Entry<Product, Integer> entry : shoppingCart.entrySet()) {
+            Product product = catalog.get(entry.getKey().getProductId());
+            if (product == null || product == entry.getKey()) {
+                resolved.put(entry.getKey(), entry.getValue());
+                continue;
+            }
+            current.put(product.getProductId(), product);
+            pricedCart.setQuantity(entry.getKey(), 0);
+            pricedCart.setQuantity(product, entry.getValue());
+            resolved.put(product, entry.getValue());
+        }
+        if (current.isEmpty()) {
+            return;
+        }
+        shoppingCart = resolved;
+        cartProducts.replaceAll(product -> current.getOrDefault(product.getProductId(), product));
+        updateCartTable();
     }
 
     private JPanel createInventoryPanel() {
@@ -92,30 +148,20 @@ public class PointOfSales {
         // Create a table model and set column names
         DefaultTableModel tableModel = new DefaultTableModel();
         tableModel.setColumnIdentifiers(new Object[]{"ID", "Name", "Category", "Stock", "Price", "Discount", "Status", "Selling Price"});
+        this.salesTableModel = tableModel;
 
         // Populate the table model with active products
-        for (Product product : this.activeProducts) {
-            double discountedPrice = product.getProductSellingPrice();
-            Vector<Object> rowData = new Vector<>();
-            rowData.add(product.getProductId());
-            rowData.add(product.getProductName());
-            rowData.add(product.getProductCategory());
-            rowData.add(product.getProductStock());
-            rowData.add(product.getProductUsualPrice());
-            rowData.add(Integer.toString(product.getProductDiscount()) + '%');
-            rowData.add(product.getProductStatus());
-            rowData.add(String.format("$%.2f", discountedPrice));
+        fillSalesTable();
 
-            tableModel.addRow(rowData);
-        }
+        MemoryFootprint.register("pos.salesTable", () -> MemoryFootprint.tableModel(tableModel));
 
         // Create the table and add it to a scroll pane
-        JTable salesTable = new JTable(tableModel);
+        salesTable = new JTable(tableModel);
         JScrollPane scrollPane = new JScrollPane(salesTable);
 
         // Add a button to add items to the cart
         JButton addToCartButton = new JButton("Add Selected Item to Cart");
-        addToCartButton.addActionListener(e -> {
+        addToCartButton.addActionListener(EdtMonitor.timed("addToCart", e -> {
             // Get the selected row index
             int selectedRow = salesTable.getSelectedRow();
 
@@ -129,10 +175,29 @@ public class PointOfSales {
             } else {
                 JOptionPane.showMessageDialog(mainFrame, "Please select an item to add to the cart.");
             }
-        });
+        }));
+
+        // A field for the barcode scanner (or a typed product ID or barcode); Enter adds the item
+        JTextField scanField = new JTextField(16);
+        scanField.addActionListener(EdtMonitor.timed("scan", e -> {
+            String code = scanField.getText().trim();
+            scanField.setText("");
+            if (code.isEmpty()) {
+                return;
+            }
+            Product scanned = catalog.findByCode(code);
+            if (scanned == null || !scanned.isActive()) {
+                JOptionPane.showMessageDialog(mainFrame, "No active product with ID or barcode " + code + ".",
+                        "Error", JOptionPane.ERROR_MESSAGE);
+                return;
+            }
+            addToCart(scanned);
+        }));
 
         // Create the button panel and add the button to it
         JPanel buttonPanel = new JPanel();
+        buttonPanel.add(new JLabel("Scan:"));
+        buttonPanel.add(scanField);
         buttonPanel.add(addToCartButton);
 
         // Add components to the inventory panel
@@ -161,6 +226,24 @@ public class PointOfSales {
     }
 
 
+    private void fillSalesTable() {
+        salesTableModel.setRowCount(0);
+        for (Product product : this.activeProducts) {
+            double discountedPrice = product.getProductSellingPrice();
+            Vector<Object> rowData = new Vector<>();
+            rowData.add(product.getProductId());
+            rowData.add(product.getProductName());
+            rowData.add(product.getProductCategory());
+            rowData.add(product.getProductStock());
+            rowData.add(product.getProductUsualPrice());
+            rowData.add(Integer.toString(product.getProductDiscount()) + '%');
+            rowData.add(product.getProductStatus());
+            rowData.add(String.format("$%.2f", discountedPrice));
+
+            salesTableModel.addRow(rowData);
+        }
+    }
+
     private JPanel createCartPanel() {
         JPanel cartPanel = new JPanel(new BorderLayout());
 
@@ -194,7 +277,7 @@ public class PointOfSales {
 
         // Add a button to remove items from the cart
         JButton removeFromCartButton = new JButton("Remove Selected Item to Cart");
-        removeFromCartButton.addActionListener(e -> {
+        removeFromCartButton.addActionListener(EdtMonitor.timed("removeFromCart", e -> {
             // Get the selected row index
             int selectedRow = cartTable.getSelectedRow();
 
@@ -208,7 +291,7 @@ public class PointOfSales {
             } else {
                 JOptionPane.showMessageDialog(mainFrame, "Please select an item to remove from the cart.");
             }
-        });
+        }));
 
         // Create the button panel and add the button to it
         JPanel buttonPanel = new JPanel();
@@ -218,7 +301,14 @@ public class PointOfSales {
         return cartPanel;
     }
 
-    private void addToCart(Product product) {
+    private void addToCart(Product selected) {
+        // Check the catalog's current product: the one on screen may since have been replaced
+        Product product = catalog.get(selected.getProductId());
+        if (product == null || !product.isActive()) {
+            JOptionPane.showMessageDialog(mainFrame, "Sorry, this product is no longer for sale.");
+            return;
+        }
+
         // Check if there is sufficient stock
         int currentStock = product.getProductStock();
         if (currentStock <= 0) {
@@ -231,9 +321,13 @@ public class PointOfSales {
         if (quantityStr != null && !quantityStr.isEmpty()) {
             try {
                 int quantity = Integer.parseInt(quantityStr);
-                if (quantity > 0 && quantity <= currentStock) {
+                // Sales and merges go on while the dialog is open: check the stock as it is now
+                product = catalog.get(selected.getProductId());
+                currentStock = product == null ? 0 : product.getProductStock();
+                if (product != null && quantity > 0 && quantity <= currentStock) {
+                    resolveCart();
                     shoppingCart.put(product, quantity);
-                    JOptionPane.showMessageDialog(mainFrame, "Product added to cart: " + product.getProductName() + " (Quantity: " + quantity + ")");
+                    pricedCart.setQuantity(product, quantity);
 
                     // Update the cart table directly
                     DefaultTableModel cartTableModel = (DefaultTableModel) cartTable.getModel();
@@ -244,8 +338,9 @@ public class PointOfSales {
                     // Refresh the cart panel
                     mainFrame.revalidate();
                     mainFrame.repaint();
+                    JOptionPane.showMessageDialog(mainFrame, "Product added to cart: " + product.getProductName() + " (Quantity: " + quantity + ")");
                 } else if (quantity > currentStock) {
-                    JOptionPane.showMessageDialog(mainFrame, "Insufficient stock for " + product.getProductName() + ". Available stock: " + currentStock, "Error", JOptionPane.ERROR_MESSAGE);
+                    JOptionPane.showMessageDialog(mainFrame, "Insufficient stock for " + selected.getProductName() + ". Available stock: " + currentStock, "Error", JOptionPane.ERROR_MESSAGE);
                 } else {
                     JOptionPane.showMessageDialog(mainFrame, "Quantity must be greater than zero", "Error", JOptionPane.ERROR_MESSAGE);
                 }
@@ -260,6 +355,8 @@ public class PointOfSales {
         String quantityStr = JOptionPane.showInputDialog(mainFrame, "Enter quantity:", "Remove from Cart", JOptionPane.PLAIN_MESSAGE);
         if (quantityStr != null && !quantityStr.isEmpty()) {
             try {
+                // The cart may have been re-resolved while the dialog was open
+                product = inCart(product.getProductId());
                 System.out.println(shoppingCart);
                 System.out.println(product);
 
@@ -274,6 +371,7 @@ public class PointOfSales {
                     System.out.println(shoppingCart.get(product));
 
                     shoppingCart.put(product, cartQuantity - quantity);
+                    pricedCart.setQuantity(product, cartQuantity - quantity);
 
                     System.out.println(shoppingCart.get(product));
 
@@ -299,13 +397,23 @@ public class PointOfSales {
     }
 
 
+    // The cart's product with the given ID, or null
+    private Product inCart(String productId) {
+        for (Product product : shoppingCart.keySet()) {
+            if (product.getProductId().equals(productId)) {
+                return product;
+            }
+        }
+        return null;
+    }
+
     private void updateCartTable() {
         DefaultTableModel cartTableModel = (DefaultTableModel) cartTable.getModel();
         cartTableModel.setRowCount(0);
 
         for (Product product : shoppingCart.keySet()) {
             int quantity = shoppingCart.get(product);
-            double subtotal = product.getProductSellingPrice() * quantity;
+            double subtotal = pricedCart.getLineTotal(product);
 
             System.out.println(product.getProductId());
             System.out.println(quantity);
@@ -334,69 +442,37 @@ public class PointOfSales {
     }
 
     private void checkout() {
-        // Calculate the grand total
-        double grandTotal = calculateGrandTotal();
-
-        // Display a message with the grand total
-        JOptionPane.showMessageDialog(mainFrame, "Thank you for shopping! Grand Total: $" + String.format("%.2f", grandTotal));
-
-        // Call the function to update the stock after checkout
-        updateStockAfterCheckout();
-    }
-
-    private double calculateGrandTotal() {
-        double grandTotal = 0.0;
-
-        for (Product product : shoppingCart.keySet()) {
-            int quantity = shoppingCart.get(product);
-            double subtotal = product.getProductSellingPrice() * quantity;
-            grandTotal += subtotal;
+        // The checkout pipeline checks, prices, reserves and saves the sale off the event
+        // thread; the receipt comes back once the sale is safely in the outbox. If the
+        // pipeline is full the event thread does not wait for room: the cashier tries again.
+        boolean accepted = checkoutPipeline.offer(shoppingCart, pricedCart.lineTotalsById(),
+                receipt -> SwingUtilities.invokeLater(() -> showReceipt(receipt)));
+        if (!accepted) {
+            JOptionPane.showMessageDialog(mainFrame, "Checkout is busy saving earlier sales. Please try again.",
+                    "Error", JOptionPane.ERROR_MESSAGE);
         }
-
-        return grandTotal;
     }
 
-    private void updateStockAfterCheckout() {
-        try {
-            // Update the stock count of each product in the inventory based on the items in the shopping cart
-            for (Product product : shoppingCart.keySet()) {
-                int quantity = shoppingCart.get(product);
-                int currentStock = product.getProductStock();
-                if (currentStock >= quantity) {
-                    // Sufficient stock available, update the stock count
-                    product.setProductStock(currentStock - quantity);
-                } else {
-                    // Insufficient stock, display a warning (this can be customized based on your requirements)
-                    JOptionPane.showMessageDialog(mainFrame, "Warning: Insufficient stock for product " + product.getProductName());
-                }
-            }
-
-            // Write the updated inventory to the file
-            writeInventoryToFile(inventory, "products.txt");
-        } catch (Exception e) {
-            e.printStackTrace();
+    private void showReceipt(CheckoutPipeline.Receipt receipt) {
+        if (receipt.getFailure() != null) {
+            JOptionPane.showMessageDialog(mainFrame, "The sale failed and nothing was sold: "
+                    + receipt.getFailure().getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+            return;
         }
-    }
-
-    private static void writeInventoryToFile(ArrayList<Product> inventory, String filename) {
-        SimpleDateFormat dateFormat = new SimpleDateFormat("dd-MMM-yyyy");
-
-        try (BufferedWriter writer = new BufferedWriter(new FileWriter(filename))) {
-            for (Product product : inventory) {
-                // Call toFileString with the SimpleDateFormat instance
-                String line = product.toFileString(dateFormat);
-                writer.write(line);
-                writer.newLine();
-            }
-            // Add the flush to ensure all data is written immediately
-            writer.flush();
-        } catch (IOException e) {
-            e.printStackTrace();
-            // Handle the IO exception as needed
+        for (String problem : receipt.getProblems()) {
+            JOptionPane.showMessageDialog(mainFrame, "Warning: " + problem);
+        }
+        if (receipt.getSale() != null) {
+            // Display a message with the grand total of what was actually sold
+            JOptionPane.showMessageDialog(mainFrame, "Thank you for shopping! Grand Total: $" + String.format("%.2f", receipt.getTotal()));
+            StartupTimer.mark("first sale");
         }
     }
 
     public static void main(String[] args) {
+        EdtMonitor.install(200);
+        Metrics.exportOnExit();
+
         SwingUtilities.invokeLater(() -> {
             try {
                 // Define custom colors
@@ -414,17 +490,17 @@ public class PointOfSales {
                 UIManager.put("Button.foreground", Color.BLACK);
                 UIManager.put("Button.font", customFont);
 
-                // Read products from the "products.txt" file
-                ArrayList<Product> products = readProductsFromFile("products.txt");
+                // Open the catalog (products.txt unless another store is configured)
+                Catalog catalog = Catalog.open();
 
-                // Print the contents of the "products.txt" file for testing
-                System.out.println("Products Read from File:");
-                for (Product product : products) {
+                // Print the contents of the catalog for testing
+                System.out.println("Products Read from " + catalog.getStore().describe() + ":");
+                for (Product product : catalog.getProducts()) {
                     System.out.println(product);
                 }
                 System.out.println();
 
-                PointOfSales pos = new PointOfSales(products);
+                PointOfSales pos = new PointOfSales(catalog);
                 pos.mainFrame.setVisible(true);
             } catch (Exception e) {
                 e.printStackTrace();
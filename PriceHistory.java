@@ -0,0 +1,403 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Every price a product has had: its usual price, discount and discount end date, each
+// version with the time from which it was in effect. Listens to the catalog and adds a
+// version whenever one of those fields changes (an edit in the inventory screen, an
+// external edit, a new product). Stock changes, which reach every listener on the
+// checkout path under the catalog's lock, only cost a lock-free map lookup and a
+// comparison with the latest version; nothing is allocated and no lock is taken.
+// Products present when the history is first created get a version effective from 0,
+// meaning "since before the history began". The current price is still read from the
+// Product itself, so checkout never touches this class.
+//
+// Per product the versions are held in parallel arrays sorted by time, so the version
+// in effect at a given time is a binary search. On disk the history is one append-only
+// file, price-history.log, of records
+//   varint product index, then the product ID (modified UTF-8) if the index is new
+//   varint time, price in cents, discount and discount end date (epoch millis), each
+//          zig-zag encoded as the difference from the product's previous version
+// so a typical price change costs 6-10 bytes. A torn last record is cut off on open,
+// except by openReadOnly(), which writes nothing and does not record.
+class PriceHistory implements CatalogListener {
+    // One price of a product and the time from which it applied
+    static final class Version {
+        final long effectiveFrom;
+        final double usualPrice;
+        final int discount;
+        final Date discountEndDate;
+
+        Version(long effectiveFrom, double usualPrice, int discount, Date discountEndDate) {
+            this.effectiveFrom = effectiveFrom;
+            this.usualPrice = usualPrice;
+            this.discount = discount;
+            this.discountEndDate = discountEndDate;
+        }
+
+        // Same rule as Product.getProductSellingPrice
+        double sellingPrice() {
+            return usualPrice - (usualPrice * discount / 100);
+        }
+    }
+
+    // The versions of one product, oldest first; each field is relative to the previous
+    // version only on disk, in memory they are absolute
+    private static class Versions {
+        final int index;
+        int size;
+        long[] times = new long[2];
+        long[] cents = new long[2];
+        int[] discounts = new int[2];
+        long[] endTimes = new long[2];
+        // The latest version as {time, cents, discount, end date}; read without the lock
+        volatile long[] latest;
+
+        Versions(int index) {
+            this.index = index;
+        }
+
+        void add(long time, long priceCents, int discount, long endTime) {
+            if (size == times.length) {
+                times = Arrays.copyOf(times, size * 2);
+                cents = Arrays.copyOf(cents, size * 2);
+                discounts = Arrays.copyOf(discounts, size * 2);
+                endTimes = Arrays.copyOf(endTimes, size * 2);
+            }
+            times[size] = time;
+            cents[size] = priceCents;
+            discounts[size] = discount;
+            endTimes[size] = endTime;
+            size++;
+            latest = new long[]{times[size - 1], priceCents, discount, endTime};
+        }
+
+        // Index of the last version with a time <= the given one, or -1
+        int indexAt(long time) {
+            int low = 0;
+            int high = size - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                if (times[mid] <= time) {
+                    low = mid + 1;
+                } else {
+                    high = mid - 1;
+                }
+            }
+            return high;
+        }
+
+        Version get(int i) {
+            return new Version(times[i], cents[i] / 100.0, discounts[i], new Date(endTimes[i]));
+        }
+    }
+
+    private final Path file;
+    private final Map<String, Versions> versions = new ConcurrentHashMap<>();
+    private int versionCount;
+    private volatile long fileBytes;
+    private final boolean readOnly;
+
+    public PriceHistory(String fileName) throws IOException {
+        this(fileName, false);
+    }
+
+    private PriceHistory(String fileName, boolean readOnly) throws IOException {
+        this.file = Paths.get(fileName);
+        this.readOnly = readOnly;
+        load();
+        String metricPrefix = StoreChain.metricPrefix(file.toAbsolutePath().getParent());
+        Metrics.gauge(metricPrefix + "prices.versions", this::getVersionCount);
+        Metrics.gauge(metricPrefix + "prices.bytes", () -> fileBytes);
+        MemoryFootprint.register(metricPrefix + "prices", this::estimateBytes);
+    }
+
+    // Opens the till's price history, records the catalog's current prices where they
+    // differ from the last recorded ones and keeps recording the catalog's changes
+    public static PriceHistory open(Catalog catalog) throws IOException {
+        return open(catalog, StoreChain.tillDirectory());
+    }
+
+    // Same as open(catalog) for the history kept in the given directory
+    public static PriceHistory open(Catalog catalog, String directory) throws IOException {
+        PriceHistory history = new PriceHistory(Paths.get(directory, "price-history.log").toString());
+        boolean created = history.versions.isEmpty();
+        // Listen first, so no change made while catching up is missed; recording is idempotent
+        catalog.addListener(history);
+        history.record(catalog.getProducts(), created ? 0 : System.currentTimeMillis());
+        return history;
+    }
+
+    // Loads the history kept in the given directory without writing to it; it records nothing
+    public static PriceHistory openReadOnly(String directory) throws IOException {
+        return new PriceHistory(Paths.get(directory, "price-history.log").toString(), true);
+    }
+
+    // The price in effect at the given time, or null if the product had no recorded price then
+    public synchronized Version at(String productId, long time) {
+        Versions list = versions.get(productId);
+        if (list == null) {
+            return null;
+        }
+        int i = list.indexAt(time);
+        return i < 0 ? null : list.get(i);
+    }
+
+    // Every recorded price of a product, oldest first
+    public synchronized List<Version> versionsOf(String productId) {
+        List<Version> result = new ArrayList<>();
+        Versions list = versions.get(productId);
+        if (list != null) {
+            for (int i = 0; i < list.size; i++) {
+                result.add(list.get(i));
+            }
+        }
+        return result;
+    }
+
+    // Estimated heap held by the version arrays and the map of them, IDs included
+    public synchronized long estimateBytes() {
+        long bytes = MemoryFootprint.hashMap(versions.size());
+        for (Map.Entry<String, Versions> entry : versions.entrySet()) {
+            int capacity = entry.getValue().times.length;
+            bytes += MemoryFootprint.string(entry.getKey()) + MemoryFootprint.object(5, 8)
+                    + 3 * MemoryFootprint.array(capacity, 8) + MemoryFootprint.array(capacity, 4)
+                    + MemoryFootprint.array(4, 8);
+        }
+        return bytes;
+    }
+
+    public synchronized long getVersionCount() {
+        return versionCount;
+    }
+
+    @Override
+    public void productChanged(Product product) {
+        Versions list = versions.get(product.getProductId());
+        long[] last = list == null ? null : list.latest;
+        if (last != null && last[1] == Math.round(product.getProductUsualPrice() * 100)
+                && last[2] == product.getProductDiscount() && last[3] == product.getDiscountEndDate().getTime()) {
+            return;
+        }
+        try {
+            record(Collections.singletonList(product), System.currentTimeMillis());
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    public void productRemoved(String productId) {
+        // The history of a removed product is kept, for its old receipts
+    }
+
+    // Appends a version, effective at the given time, for every product whose price
+    // differs from its last recorded one, in a single write
+    synchronized void record(List<Product> products, long time) throws IOException {
+        if (readOnly) {
+            throw new IOException("Price history " + file + " is open read-only");
+        }
+        ByteArrayOutputStream bytes = null;
+        DataOutputStream out = null;
+        Map<String, Versions> added = new HashMap<>();
+        List<long[]> records = new ArrayList<>();
+        List<Versions> targets = new ArrayList<>();
+        Map<Versions, long[]> latest = new IdentityHashMap<>();
+        int nextIndex = versions.size();
+        for (Product product : products) {
+            long priceCents = Math.round(product.getProductUsualPrice() * 100);
+            int discount = product.getProductDiscount();
+            long endTime = product.getDiscountEndDate().getTime();
+            String id = product.getProductId();
+            Versions list = versions.get(id);
+            if (list == null) {
+                list = added.get(id);
+            }
+            long[] last = latest.containsKey(list) ? latest.get(list) : lastOf(list);
+            if (last != null && last[1] == priceCents && last[2] == discount && last[3] == endTime) {
+                continue;
+            }
+            if (out == null) {
+                bytes = new ByteArrayOutputStream();
+                out = new DataOutputStream(bytes);
+            }
+            if (list == null) {
+                list = new Versions(nextIndex++);
+                added.put(id, list);
+                writeVarLong(out, list.index);
+                out.writeUTF(id);
+            } else {
+                writeVarLong(out, list.index);
+            }
+            long recordTime = last == null ? time : Math.max(time, last[0]);
+            long[] record = {recordTime, priceCents, discount, endTime};
+            writeDelta(out, record, last);
+            records.add(record);
+            targets.add(list);
+            latest.put(list, record);
+        }
+        if (out == null) {
+            return;
+        }
+        out.flush();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(false);
+        }
+        fileBytes += bytes.size();
+
+        // Only once written do the new versions become visible
+        for (Map.Entry<String, Versions> entry : added.entrySet()) {
+            versions.put(entry.getKey(), entry.getValue());
+        }
+        for (int i = 0; i < records.size(); i++) {
+            long[] record = records.get(i);
+            targets.get(i).add(record[0], record[1], (int) record[2], record[3]);
+        }
+        versionCount += records.size();
+    }
+
+    // The latest version in memory as {time, cents, discount, end date}, or null
+    private static long[] lastOf(Versions list) {
+        return list == null ? null : list.latest;
+    }
+
+    private static void writeDelta(DataOutputStream out, long[] record, long[] last) throws IOException {
+        for (int field = 0; field < record.length; field++) {
+            writeVarLong(out, zigZag(record[field] - (last == null ? 0 : last[field])));
+        }
+    }
+
+    // Reads the whole file, cutting off a torn last record
+    private void load() throws IOException {
+        if (!Files.exists(file)) {
+            return;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(file));
+        List<Versions> byIndex = new ArrayList<>();
+        int complete = 0;
+        try {
+            while (buffer.hasRemaining()) {
+                int index = (int) readVarLong(buffer);
+                Versions list;
+                if (index == byIndex.size()) {
+                    list = new Versions(index);
+                    byIndex.add(list);
+                    versions.put(readUtf(buffer), list);
+                } else if (index < byIndex.size()) {
+                    list = byIndex.get(index);
+                } else {
+                    throw new IOException("Corrupt price history record at byte " + complete + " of " + file);
+                }
+                long[] last = lastOf(list);
+                long[] record = new long[4];
+                for (int field = 0; field < record.length; field++) {
+                    record[field] = unZigZag(readVarLong(buffer)) + (last == null ? 0 : last[field]);
+                }
+                list.add(record[0], record[1], (int) record[2], record[3]);
+                versionCount++;
+                complete = buffer.position();
+            }
+        } catch (BufferUnderflowException e) {
+            // Torn last record: drop it, and any product it was the first record of
+            if (byIndex.size() > 0 && byIndex.get(byIndex.size() - 1).size == 0) {
+                Versions torn = byIndex.remove(byIndex.size() - 1);
+                versions.values().remove(torn);
+            }
+            if (!readOnly) {
+                try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                    channel.truncate(complete);
+                }
+            }
+        }
+        fileBytes = complete;
+    }
+
+    private static String readUtf(ByteBuffer buffer) {
+        int length = buffer.getShort() & 0xFFFF;
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        // writeUTF's modified UTF-8 only differs from UTF-8 for NUL and supplementary characters
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static long zigZag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unZigZag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static void writeVarLong(DataOutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    private static long readVarLong(ByteBuffer buffer) {
+        long value = 0;
+        int shift = 0;
+        while (true) {
+            int b = buffer.get() & 0xFF;
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+            shift += 7;
+        }
+    }
+
+    // Command-line lookup: PriceHistory <productId> [dd-MMM-yyyy] prints the price in
+    // effect at the start of that day, or every recorded price without a date
+    public static void main(String[] args) throws IOException, ParseException {
+        if (args.length < 1 || args.length > 2) {
+            System.out.println("Usage: PriceHistory <productId> [dd-MMM-yyyy]");
+            return;
+        }
+        SimpleDateFormat dateFormat = new SimpleDateFormat("dd-MMM-yyyy");
+        PriceHistory history = new PriceHistory(Paths.get(StoreChain.tillDirectory(), "price-history.log").toString());
+        List<Version> shown = new ArrayList<>();
+        if (args.length == 2) {
+            Version version = history.at(args[0], dateFormat.parse(args[1]).getTime());
+            if (version == null) {
+                System.out.println("No price recorded for " + args[0] + " on " + args[1]);
+                return;
+            }
+            shown.add(version);
+        } else {
+            shown.addAll(history.versionsOf(args[0]));
+        }
+        SimpleDateFormat timeFormat = new SimpleDateFormat("dd-MMM-yyyy HH:mm");
+        for (Version version : shown) {
+            System.out.println((version.effectiveFrom == 0 ? "(initial)" : timeFormat.format(new Date(version.effectiveFrom)))
+                    + String.format("  usual %.2f  discount %d%% until %s  selling %.2f", version.usualPrice,
+                    version.discount, dateFormat.format(version.discountEndDate), version.sellingPrice()));
+        }
+    }
+}
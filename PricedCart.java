@@ -0,0 +1,85 @@
+import java.util.HashMap;
+import java.util.Map;
+
+// Keeps the promotional price of every cart line and a running subtotal, so that a
+// quantity change only re-prices the line that changed. The whole cart is re-priced
+// only when the promotion engine's active rule set changes (a rule starts or ends).
+class PricedCart {
+    private final PromotionEngine engine;
+    private final Map<Product, Integer> quantities = new HashMap<>();
+    private final Map<Product, Double> lineTotals = new HashMap<>();
+    private double subtotal;
+    private int generation = -1;
+
+    public PricedCart(PromotionEngine engine) {
+        this.engine = engine;
+    }
+
+    // Estimated heap held by the line maps (the products belong to the catalog)
+    public long estimateBytes() {
+        return MemoryFootprint.hashMap(quantities.size()) + quantities.size() * MemoryFootprint.object(0, 4)
+                + MemoryFootprint.hashMap(lineTotals.size()) + lineTotals.size() * MemoryFootprint.object(0, 8);
+    }
+
+    // Sets the quantity of a line (0 removes it) and re-prices just that line
+    public void setQuantity(Product product, int quantity) {
+        refresh();
+        Double previous = lineTotals.remove(product);
+        if (previous != null) {
+            subtotal -= previous;
+        }
+        if (quantity <= 0) {
+            quantities.remove(product);
+            return;
+        }
+        double lineTotal = engine.priceLine(product, quantity);
+        quantities.put(product, quantity);
+        lineTotals.put(product, lineTotal);
+        subtotal += lineTotal;
+    }
+
+    public double getLineTotal(Product product) {
+        refresh();
+        Double lineTotal = lineTotals.get(product);
+        return lineTotal == null ? 0.0 : lineTotal;
+    }
+
+    public double getSubtotal() {
+        refresh();
+        return subtotal;
+    }
+
+    public double getBasketDiscount() {
+        double current = getSubtotal();
+        return current * engine.basketPercentFor(current) / 100;
+    }
+
+    public double getGrandTotal() {
+        return getSubtotal() - getBasketDiscount();
+    }
+
+    // A copy of every line's total keyed by product ID, priced with the promotions active now
+    public Map<String, Double> lineTotalsById() {
+        refresh();
+        Map<String, Double> byId = new HashMap<>();
+        for (Map.Entry<Product, Double> entry : lineTotals.entrySet()) {
+            byId.merge(entry.getKey().getProductId(), entry.getValue(), Double::sum);
+        }
+        return byId;
+    }
+
+    // Re-prices every line if the active promotions changed since the last call
+    private void refresh() {
+        int current = engine.ensureCurrent(System.currentTimeMillis());
+        if (current == generation) {
+            return;
+        }
+        generation = current;
+        subtotal = 0.0;
+        for (Map.Entry<Product, Integer> entry : quantities.entrySet()) {
+            double lineTotal = engine.priceLine(entry.getKey(), entry.getValue());
+            lineTotals.put(entry.getKey(), lineTotal);
+            subtotal += lineTotal;
+        }
+    }
+}
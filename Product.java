@@ -6,15 +6,21 @@ class Product {
     private String productId;
     private String productName;
     private String productCategory;
-    private int productStock;
+    private volatile int productStock;
     private double productUsualPrice;
     private Date discountEndDate;
     private int productDiscount;
     private String productStatus;
-    public void setProductStock(int newStock) {
+    public synchronized void setProductStock(int newStock) {
         this.productStock = newStock;
     }
 
+    // Adds a (possibly negative) number of units and returns the new stock
+    public synchronized int adjustStock(int units) {
+        productStock += units;
+        return productStock;
+    }
+
 
     // Constructor to initialize an inventory product
     public Product(String productId, String productName, String productCategory,
@@ -43,9 +49,7 @@ class Product {
 
     // Converts inventory product data to a string for saving to a file
     public String toFileString(SimpleDateFormat appDateFormat) {
-        return String.format("%s, %s, %s, %d, %.2f, %s, %d, %s",
-                productId, productName, productCategory, productStock, productUsualPrice,
-                appDateFormat.format(discountEndDate), productDiscount, productStatus);
+        return new ProductEncoder(appDateFormat).encode(this);
     }
 
 
@@ -85,6 +89,12 @@ class Product {
         return productUsualPrice - (productUsualPrice * productDiscount / 100);
     }
 
+    // Returns a copy of this product with a different stock count
+    public Product withStock(int newStock) {
+        return new Product(productId, productName, productCategory, newStock, productUsualPrice,
+                discountEndDate, productDiscount, productStatus);
+    }
+
 
     // Converts a string from the file back into an Product object
     public static Product fromString(String data) throws ParseException {
@@ -0,0 +1,67 @@
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+// Writes products in the products.txt line format ("id, name, category, stock, price,
+// dd-MMM-yyyy, discount, status") without String.format, which parses its format string
+// and boxes every argument on each call. Prices are written as whole cents; the rare
+// price that lies within rounding noise of half a cent goes through String.format so
+// the output stays identical to "%.2f". Products mostly share a handful of discount
+// end dates, so formatted dates are cached (up to DATE_CACHE_SIZE of them). Not
+// thread-safe: use one per thread.
+class ProductEncoder {
+    private static final int DATE_CACHE_SIZE = 256;
+
+    private final SimpleDateFormat dateFormat;
+    private final Map<Long, String> dates = new HashMap<>();
+
+    ProductEncoder(SimpleDateFormat dateFormat) {
+        this.dateFormat = dateFormat;
+    }
+
+    public String encode(Product product) {
+        return append(new StringBuilder(96), product).toString();
+    }
+
+    public StringBuilder append(StringBuilder sb, Product product) {
+        sb.append(product.getProductId()).append(", ")
+                .append(product.getProductName()).append(", ")
+                .append(product.getProductCategory()).append(", ")
+                .append(product.getProductStock()).append(", ");
+        appendPrice(sb, product.getProductUsualPrice());
+        sb.append(", ");
+        appendDate(sb, product.getDiscountEndDate());
+        return sb.append(", ")
+                .append(product.getProductDiscount()).append(", ")
+                .append(product.getProductStatus());
+    }
+
+    private static void appendPrice(StringBuilder sb, double price) {
+        double scaled = Math.abs(price) * 100;
+        double fraction = scaled - Math.floor(scaled);
+        if (Double.isNaN(price) || Double.isInfinite(price) || scaled > 1e15 || Math.abs(fraction - 0.5) < 1e-6) {
+            sb.append(String.format("%.2f", price));
+            return;
+        }
+        long cents = Math.round(scaled);
+        if (price < 0 && cents != 0) {
+            sb.append('-');
+        }
+        sb.append(cents / 100).append('.');
+        long remainder = cents % 100;
+        sb.append((char) ('0' + remainder / 10)).append((char) ('0' + remainder % 10));
+    }
+
+    private void appendDate(StringBuilder sb, Date date) {
+        String text = dates.get(date.getTime());
+        if (text == null) {
+            text = dateFormat.format(date);
+            if (dates.size() >= DATE_CACHE_SIZE) {
+                dates.clear();
+            }
+            dates.put(date.getTime(), text);
+        }
+        sb.append(text);
+    }
+}
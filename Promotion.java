@@ -0,0 +1,82 @@
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+// A single promotion rule as stored in promotions.txt. One line per rule:
+//   type, target, value1, value2, startDate, endDate
+// where type is one of
+//   MULTI_BUY   target = product ID, buy value1 pay for value2 (e.g. 3 for 2)
+//   PERCENT     target = product ID, value1 % off
+//   CATEGORY    target = category,   value1 % off every product in the category
+//   BASKET      target = -,          value1 % off the basket when it reaches value2 dollars
+// and the rule is active from startDate (inclusive) until endDate (exclusive).
+class Promotion {
+    public enum Type { MULTI_BUY, PERCENT, CATEGORY, BASKET }
+
+    private final Type type;
+    private final String target;
+    private final double value1;
+    private final double value2;
+    private final Date startDate;
+    private final Date endDate;
+
+    public Promotion(Type type, String target, double value1, double value2, Date startDate, Date endDate) {
+        this.type = type;
+        this.target = target;
+        this.value1 = value1;
+        this.value2 = value2;
+        this.startDate = startDate;
+        this.endDate = endDate;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public String getTarget() {
+        return target;
+    }
+
+    public double getValue1() {
+        return value1;
+    }
+
+    public double getValue2() {
+        return value2;
+    }
+
+    public Date getStartDate() {
+        return startDate;
+    }
+
+    public Date getEndDate() {
+        return endDate;
+    }
+
+    // Converts a line of promotions.txt into a Promotion
+    public static Promotion fromString(String data) throws ParseException {
+        String[] components = data.split(",");
+        if (components.length != 6) {
+            throw new ParseException("Invalid promotion format: " + data, 0);
+        }
+        try {
+            SimpleDateFormat dateFormat = new SimpleDateFormat("dd-MMM-yyyy");
+            Type type = Type.valueOf(components[0].trim().toUpperCase());
+            String target = components[1].trim();
+            double value1 = Double.parseDouble(components[2].trim());
+            double value2 = Double.parseDouble(components[3].trim());
+            Date startDate = dateFormat.parse(components[4].trim());
+            Date endDate = dateFormat.parse(components[5].trim());
+
+            if (type == Type.MULTI_BUY && (value1 != Math.rint(value1) || value2 != Math.rint(value2))) {
+                throw new ParseException("Multi-buy quantities must be whole numbers: " + data, 0);
+            }
+            if (type == Type.MULTI_BUY && (value1 < 1 || value2 < 0 || value2 >= value1)) {
+                throw new ParseException("Multi-buy must pay for fewer items than it buys: " + data, 0);
+            }
+            return new Promotion(type, target, value1, value2, startDate, endDate);
+        } catch (IllegalArgumentException e) {
+            throw new ParseException("Error parsing promotion: " + data, 0);
+        }
+    }
+}
@@ -0,0 +1,266 @@
+import java.io.BufferedReader;
+import java.io.FileNotFoundException;
+import java.io.FileReader;
+import java.io.IOException;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+// Compiles the promotions that are active at a given moment into lookup tables so a
+// cart line can be priced without scanning the rule list:
+//   - per product ID: the best flat percentage and the multi-buy (buy, pay) pairs
+//   - per category:   the best flat percentage
+//   - basket:         thresholds sorted ascending with the best percentage reachable at each
+// The tables are rebuilt only when the active set changes, i.e. when the clock passes
+// the next start or end date of any rule.
+class PromotionEngine {
+    private static final int[] NO_MULTI_BUY = new int[0];
+
+    private final List<Promotion> promotions;
+    private Map<String, SkuRules> skuRules = new HashMap<>();
+    private Map<String, Double> categoryPercent = new HashMap<>();
+    private double[] basketThresholds = new double[0];
+    private double[] basketPercent = new double[0];
+    private long compiledAt = Long.MIN_VALUE;
+    private long validUntil = Long.MIN_VALUE;
+    private int generation;
+
+    private static class SkuRules {
+        double percent;
+        int[] buy = NO_MULTI_BUY;
+        int[] pay = NO_MULTI_BUY;
+    }
+
+    public PromotionEngine(List<Promotion> promotions) {
+        this.promotions = new ArrayList<>(promotions);
+    }
+
+    // Reads the promotions file; a missing file just means no promotions
+    public static PromotionEngine load(String fileName) {
+        ArrayList<Promotion> promotions = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new FileReader(fileName))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.trim().isEmpty()) {
+                    continue;
+                }
+                try {
+                    promotions.add(Promotion.fromString(line));
+                } catch (ParseException e) {
+                    e.printStackTrace();
+                }
+            }
+        } catch (FileNotFoundException e) {
+            // No promotions configured
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return new PromotionEngine(promotions);
+    }
+
+    // Recompiles the tables if the active rule set differs at the given time.
+    // Returns the generation number, which changes every time the tables change.
+    public synchronized int ensureCurrent(long now) {
+        if (now >= compiledAt && now < validUntil) {
+            return generation;
+        }
+        compile(now);
+        return generation;
+    }
+
+    private void compile(long now) {
+        Map<String, SkuRules> newSkuRules = new HashMap<>();
+        Map<String, Double> newCategoryPercent = new HashMap<>();
+        ArrayList<Promotion> basket = new ArrayList<>();
+        long nextChange = Long.MAX_VALUE;
+
+        for (Promotion promotion : promotions) {
+            long start = promotion.getStartDate().getTime();
+            long end = promotion.getEndDate().getTime();
+            if (start > now) {
+                nextChange = Math.min(nextChange, start);
+                continue;
+            }
+            if (end <= now) {
+                continue;
+            }
+            nextChange = Math.min(nextChange, end);
+
+            switch (promotion.getType()) {
+                case PERCENT: {
+                    SkuRules rules = newSkuRules.computeIfAbsent(promotion.getTarget(), k -> new SkuRules());
+                    rules.percent = Math.max(rules.percent, promotion.getValue1());
+                    break;
+                }
+                case MULTI_BUY: {
+                    SkuRules rules = newSkuRules.computeIfAbsent(promotion.getTarget(), k -> new SkuRules());
+                    rules.buy = Arrays.copyOf(rules.buy, rules.buy.length + 1);
+                    rules.pay = Arrays.copyOf(rules.pay, rules.pay.length + 1);
+                    rules.buy[rules.buy.length - 1] = (int) promotion.getValue1();
+                    rules.pay[rules.pay.length - 1] = (int) promotion.getValue2();
+                    break;
+                }
+                case CATEGORY:
+                    newCategoryPercent.merge(promotion.getTarget().toLowerCase(),
+                            promotion.getValue1(), Math::max);
+                    break;
+                case BASKET:
+                    basket.add(promotion);
+                    break;
+            }
+        }
+
+        basket.sort((a, b) -> Double.compare(a.getValue2(), b.getValue2()));
+        double[] thresholds = new double[basket.size()];
+        double[] percents = new double[basket.size()];
+        double best = 0;
+        for (int i = 0; i < basket.size(); i++) {
+            thresholds[i] = basket.get(i).getValue2();
+            best = Math.max(best, basket.get(i).getValue1());
+            percents[i] = best;
+        }
+
+        skuRules = newSkuRules;
+        categoryPercent = newCategoryPercent;
+        basketThresholds = thresholds;
+        basketPercent = percents;
+        compiledAt = now;
+        validUntil = nextChange;
+        generation++;
+    }
+
+    // Prices one cart line with the best single applicable promotion (rules do not stack)
+    public synchronized double priceLine(Product product, int quantity) {
+        double unitPrice = product.getProductSellingPrice();
+        double best = unitPrice * quantity;
+
+        double percent = 0;
+        Double category = categoryPercent.get(product.getProductCategory().toLowerCase());
+        if (category != null) {
+            percent = category;
+        }
+        SkuRules rules = skuRules.get(product.getProductId());
+        if (rules != null) {
+            percent = Math.max(percent, rules.percent);
+            for (int i = 0; i < rules.buy.length; i++) {
+                int charged = quantity / rules.buy[i] * rules.pay[i] + quantity % rules.buy[i];
+                best = Math.min(best, unitPrice * charged);
+            }
+        }
+        if (percent > 0) {
+            best = Math.min(best, unitPrice * quantity * (100 - Math.min(percent, 100)) / 100);
+        }
+        return best;
+    }
+
+    // Basket percentage earned by the given subtotal, found by binary search over the thresholds
+    public synchronized double basketPercentFor(double subtotal) {
+        int index = Arrays.binarySearch(basketThresholds, subtotal);
+        if (index < 0) {
+            index = -index - 2;
+        } else {
+            // Several rules may share a threshold; take the last one
+            while (index + 1 < basketThresholds.length && basketThresholds[index + 1] == subtotal) {
+                index++;
+            }
+        }
+        return index < 0 ? 0 : basketPercent[index];
+    }
+
+    // Measures cart pricing with many active rules: fills baskets of `lines` lines one line
+    // at a time through a PricedCart, then changes one quantity at a time, and prints the
+    // percentiles of a full basket and of a single line change. The first half of the
+    // baskets warm up the JIT and are not counted.
+    // Usage: PromotionEngine [--rules N] [--lines N] [--baskets N]
+    public static void main(String[] args) {
+        int ruleCount = 5000;
+        int lines = 200;
+        int baskets = 30000;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--rules":
+                    ruleCount = Integer.parseInt(args[++i]);
+                    break;
+                case "--lines":
+                    lines = Integer.parseInt(args[++i]);
+                    break;
+                case "--baskets":
+                    baskets = Integer.parseInt(args[++i]);
+                    break;
+                default:
+                    System.out.println("Usage: PromotionEngine [--rules N] [--lines N] [--baskets N]");
+                    return;
+            }
+        }
+
+        int skus = Math.max(lines * 10, ruleCount);
+        Date start = new Date(System.currentTimeMillis() - 86400000L);
+        Date end = new Date(System.currentTimeMillis() + 86400000L);
+        List<Product> products = new ArrayList<>();
+        for (int i = 0; i < skus; i++) {
+            products.add(new Product(String.format("B%06d", i), "Item " + i, "Category " + i % 100, 1000,
+                    1 + i % 50, end, i % 7 == 0 ? 10 : 0, "Active"));
+        }
+        List<Promotion> promotions = new ArrayList<>();
+        Random random = new Random(1);
+        for (int i = 0; i < ruleCount; i++) {
+            String sku = products.get(random.nextInt(skus)).getProductId();
+            switch (i % 4) {
+                case 0:
+                    promotions.add(new Promotion(Promotion.Type.PERCENT, sku, 5 + random.nextInt(40) / 2.0, 0, start, end));
+                    break;
+                case 1:
+                    promotions.add(new Promotion(Promotion.Type.MULTI_BUY, sku, 3, 2, start, end));
+                    break;
+                case 2:
+                    promotions.add(new Promotion(Promotion.Type.CATEGORY, "Category " + random.nextInt(100),
+                            2.5 + random.nextInt(10), 0, start, end));
+                    break;
+                default:
+                    promotions.add(new Promotion(Promotion.Type.BASKET, "-", 1 + random.nextInt(10),
+                            50 + random.nextInt(5000), start, end));
+                    break;
+            }
+        }
+        PromotionEngine engine = new PromotionEngine(promotions);
+        long compileStarted = System.nanoTime();
+        engine.ensureCurrent(System.currentTimeMillis());
+        long compileMicros = (System.nanoTime() - compileStarted) / 1000;
+
+        LatencyHistogram basketLatency = new LatencyHistogram("promotions.basket");
+        LatencyHistogram lineLatency = new LatencyHistogram("promotions.lineChange");
+        double checksum = 0;
+        for (int b = 0; b < baskets; b++) {
+            PricedCart cart = new PricedCart(engine);
+            Product[] basket = new Product[lines];
+            long started = System.nanoTime();
+            for (int i = 0; i < lines; i++) {
+                basket[i] = products.get(random.nextInt(skus));
+                cart.setQuantity(basket[i], 1 + random.nextInt(6));
+            }
+            checksum += cart.getGrandTotal();
+            boolean counted = b >= baskets / 2;
+            if (counted) {
+                basketLatency.recordNanos(System.nanoTime() - started);
+            }
+            for (int i = 0; i < 20; i++) {
+                started = System.nanoTime();
+                cart.setQuantity(basket[random.nextInt(lines)], 1 + random.nextInt(6));
+                checksum += cart.getGrandTotal();
+                if (counted) {
+                    lineLatency.recordNanos(System.nanoTime() - started);
+                }
+            }
+        }
+        System.out.println(ruleCount + " active rules over " + skus + " SKUs compiled in " + compileMicros + " us");
+        System.out.println(String.format("%d-line basket: p50 %d us, p99 %d us, max %d us", lines,
+                basketLatency.percentileMicros(50), basketLatency.percentileMicros(99), basketLatency.getMaxMicros()));
+        System.out.println(String.format("Line change:    p50 %d us, p99 %d us, max %d us (checksum %.0f)",
+                lineLatency.percentileMicros(50), lineLatency.percentileMicros(99), lineLatency.getMaxMicros(), checksum));
+    }
+}
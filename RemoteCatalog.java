@@ -0,0 +1,20 @@
+import java.io.IOException;
+
+// A product catalog shared by several tills and reached over the network: every fetch is
+// a round trip. The store publishes a change feed, so a till can keep a near cache (see
+// NearCache) and drop entries as soon as they change. Stock moves with every sale at
+// every till, so it is never cached and the feed leaves it out.
+interface RemoteCatalog {
+
+    // Receives change notifications, on a thread of the remote catalog's choosing
+    interface ChangeFeed {
+        // Something other than the stock of the product was changed at the store at the
+        // given time (epoch millis), or the product was removed
+        void productChanged(String productId, long changedAt);
+    }
+
+    // The product as the store holds it now, or null if there is none
+    Product fetch(String productId) throws IOException;
+
+    void subscribe(ChangeFeed feed);
+}
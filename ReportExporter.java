@@ -0,0 +1,169 @@
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Calendar;
+import java.util.List;
+
+// The exportable reports. Each one streams its rows into a ReportWriter as it produces
+// them: catalog reports walk a snapshot of the catalog (which is in memory anyway), the
+// sales report visits the sales history segment by segment, so exporting millions of
+// sold items never holds more than one row at a time.
+class ReportExporter {
+
+    enum Report {
+        VALUATION("Inventory valuation"),
+        LOW_STOCK("Low stock"),
+        SALES("Sales by period");
+
+        private final String title;
+
+        Report(String title) {
+            this.title = title;
+        }
+
+        @Override
+        public String toString() {
+            return title;
+        }
+    }
+
+    private final Catalog catalog;
+    private final SalesHistory history;
+
+    // The history may be null, in which case the sales report is unavailable
+    public ReportExporter(Catalog catalog, SalesHistory history) {
+        this.catalog = catalog;
+        this.history = history;
+    }
+
+    public boolean hasSalesHistory() {
+        return history != null;
+    }
+
+    // Writes a report to the file; from/to bound the sales report and are ignored by the
+    // others. Returns the number of rows written.
+    public long export(Report report, ReportWriter.Format format, Path path, long from, long to) throws IOException {
+        try (ReportWriter writer = ReportWriter.open(path, format)) {
+            switch (report) {
+                case VALUATION:
+                    writeValuation(writer);
+                    break;
+                case LOW_STOCK:
+                    writeLowStock(writer);
+                    break;
+                default:
+                    writeSales(writer, from, to);
+            }
+            return writer.getRowCount();
+        }
+    }
+
+    // Every active product with its stock value at the current selling price, in ID order
+    private void writeValuation(ReportWriter writer) throws IOException {
+        writer.columns(new String[]{"ID", "Name", "Category", "Stock", "Selling Price", "Value"},
+                new ReportWriter.Type[]{ReportWriter.Type.TEXT, ReportWriter.Type.TEXT, ReportWriter.Type.TEXT,
+                        ReportWriter.Type.INTEGER, ReportWriter.Type.AMOUNT, ReportWriter.Type.AMOUNT});
+        for (Product product : CatalogQuery.of(catalog.getProducts()).active().rows()) {
+            double price = product.getProductSellingPrice();
+            writer.text(product.getProductId());
+            writer.text(product.getProductName());
+            writer.text(product.getProductCategory());
+            writer.integer(product.getProductStock());
+            writer.amount(price);
+            writer.amount(product.getProductStock() * price);
+            writer.endRow();
+        }
+    }
+
+    // Active products at or below their reorder point, lowest stock first
+    private void writeLowStock(ReportWriter writer) throws IOException {
+        SalesVelocity velocity = catalog.getVelocity();
+        writer.columns(new String[]{"ID", "Name", "Category", "Stock", "Reorder Point", "Order Up To"},
+                new ReportWriter.Type[]{ReportWriter.Type.TEXT, ReportWriter.Type.TEXT, ReportWriter.Type.TEXT,
+                        ReportWriter.Type.INTEGER, ReportWriter.Type.INTEGER, ReportWriter.Type.INTEGER});
+        List<Product> low = CatalogQuery.of(catalog.getProducts())
+                .active()
+                .orderBy(CatalogQuery.Column.STOCK, false)
+                .rows();
+        for (Product product : low) {
+            int reorderPoint = velocity.reorderPoint(product.getProductId());
+            if (product.getProductStock() > reorderPoint) {
+                continue;
+            }
+            writer.text(product.getProductId());
+            writer.text(product.getProductName());
+            writer.text(product.getProductCategory());
+            writer.integer(product.getProductStock());
+            writer.integer(reorderPoint);
+            writer.integer(velocity.orderUpTo(product.getProductId()));
+            writer.endRow();
+        }
+    }
+
+    // Every item sold with from <= time < to, in the order it was recorded
+    private void writeSales(ReportWriter writer, long from, long to) throws IOException {
+        if (history == null) {
+            throw new IOException("No sales history is available for this report");
+        }
+        writer.columns(new String[]{"Time", "Product ID", "Quantity"},
+                new ReportWriter.Type[]{ReportWriter.Type.TIME, ReportWriter.Type.TEXT, ReportWriter.Type.INTEGER});
+        IOException[] failure = new IOException[1];
+        history.scan(from, to, (timestamp, productId, quantity) -> {
+            if (failure[0] != null) {
+                return;
+            }
+            try {
+                writer.time(timestamp);
+                writer.text(productId);
+                writer.integer(quantity);
+                writer.endRow();
+            } catch (IOException e) {
+                failure[0] = e;
+            }
+        });
+        if (failure[0] != null) {
+            throw failure[0];
+        }
+    }
+
+    // Command-line export: ReportExporter <valuation|low_stock|sales> <csv|binary> <file>
+    // [fromDate toDate] with dates as dd-MMM-yyyy (the end date is inclusive). Also
+    // ReportExporter to-csv <binaryFile> <csvFile> to convert a binary report. Opens the
+    // till's data read-only, so it can run while the till is open.
+    public static void main(String[] args) throws IOException, ParseException {
+        if (args.length == 3 && args[0].equals("to-csv")) {
+            long rows = ReportWriter.binaryToCsv(Paths.get(args[1]), Paths.get(args[2]));
+            System.out.println("Converted " + rows + " rows to " + args[2]);
+            return;
+        }
+        if (args.length != 3 && args.length != 5) {
+            System.out.println("Usage: ReportExporter <valuation|low_stock|sales> <csv|binary> <file> [fromDate toDate]");
+            System.out.println("       ReportExporter to-csv <binaryFile> <csvFile>");
+            return;
+        }
+        Report report = Report.valueOf(args[0].toUpperCase());
+        ReportWriter.Format format = ReportWriter.Format.valueOf(args[1].toUpperCase());
+        long from = 0;
+        long to = Long.MAX_VALUE;
+        if (args.length == 5) {
+            SimpleDateFormat dateFormat = new SimpleDateFormat("dd-MMM-yyyy");
+            from = dateFormat.parse(args[3]).getTime();
+            Calendar end = Calendar.getInstance();
+            end.setTime(dateFormat.parse(args[4]));
+            end.add(Calendar.DAY_OF_MONTH, 1);
+            to = end.getTimeInMillis();
+        }
+
+        String directory = StoreChain.tillDirectory();
+        Catalog catalog = Catalog.openReadOnly(directory);
+        SalesHistory history = SalesHistory.openReadOnly(Paths.get(directory, "sales-history").toString());
+        catalog.getVelocity().seedLazily(history);
+        long started = System.nanoTime();
+        long rows = new ReportExporter(catalog, history).export(report, format, Paths.get(args[2]), from, to);
+        System.out.println("Wrote " + rows + " rows to " + args[2] + " in "
+                + (System.nanoTime() - started) / 1000000 + " ms");
+        catalog.getStore().close();
+    }
+}
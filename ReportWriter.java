@@ -0,0 +1,376 @@
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.text.SimpleDateFormat;
+import java.util.Calendar;
+import java.util.TimeZone;
+
+// Writes report rows straight into a fixed-size buffer that is flushed to a file channel
+// whenever it fills, so an export uses the same small amount of memory however many rows
+// it has. Numbers are written digit by digit and ASCII text byte by byte, without
+// building a String per field.
+//
+// Every report declares its columns once (text, integer, 2-decimal amount or time) and
+// then writes rows as a sequence of fields. Two formats:
+//   CSV     header line, then one line per row; text is quoted when it needs to be and
+//           times are written as yyyy-MM-dd HH:mm:ss
+//   binary  "PRPT", version, column count, then (type, name) per column; after that
+//           each field as a varint: length + UTF-8 bytes for text, zig-zag value for
+//           integers, zig-zag cents for amounts, zig-zag milliseconds since the previous
+//           time written (the first one since 0) for times
+abstract class ReportWriter implements Closeable {
+    private static final int BUFFER_BYTES = 64 * 1024;
+    private static final int BINARY_MAGIC = 0x50525054;
+    private static final int BINARY_VERSION = 1;
+
+    enum Format { CSV, BINARY }
+
+    enum Type { TEXT, INTEGER, AMOUNT, TIME }
+
+    private final FileChannel channel;
+    protected final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_BYTES);
+    private long rows;
+
+    protected ReportWriter(Path path) throws IOException {
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
+    public static ReportWriter open(Path path, Format format) throws IOException {
+        return format == Format.CSV ? new Csv(path) : new Binary(path);
+    }
+
+    // Declares the columns; must be called once, before the first row
+    public abstract void columns(String[] names, Type[] types) throws IOException;
+
+    public abstract void text(String value) throws IOException;
+
+    public abstract void integer(long value) throws IOException;
+
+    // A money amount, rounded to cents
+    public abstract void amount(double value) throws IOException;
+
+    // A point in time, in milliseconds since the epoch
+    public abstract void time(long millis) throws IOException;
+
+    public void endRow() throws IOException {
+        rows++;
+    }
+
+    public long getRowCount() {
+        return rows;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+            channel.force(false);
+        } finally {
+            channel.close();
+        }
+    }
+
+    protected void put(byte b) throws IOException {
+        if (!buffer.hasRemaining()) {
+            flush();
+        }
+        buffer.put(b);
+    }
+
+    private void flush() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    // Comma-separated values, one row per line
+    private static class Csv extends ReportWriter {
+        private final byte[] digits = new byte[20];
+        private final TimeFormatter times = new TimeFormatter();
+        private boolean firstField = true;
+
+        Csv(Path path) throws IOException {
+            super(path);
+        }
+
+        @Override
+        public void columns(String[] names, Type[] types) throws IOException {
+            for (String name : names) {
+                text(name);
+            }
+            put((byte) '\n');
+            firstField = true;
+        }
+
+        @Override
+        public void text(String value) throws IOException {
+            separator();
+            boolean quote = false;
+            for (int i = 0; i < value.length() && !quote; i++) {
+                char c = value.charAt(i);
+                quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+            }
+            if (quote) {
+                put((byte) '"');
+            }
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                if (c == '"') {
+                    put((byte) '"');
+                }
+                if (c < 0x80) {
+                    put((byte) c);
+                } else {
+                    // Rare: encode the rest of the value the slow way
+                    for (byte b : value.substring(i).replace("\"", "\"\"").getBytes(StandardCharsets.UTF_8)) {
+                        put(b);
+                    }
+                    break;
+                }
+            }
+            if (quote) {
+                put((byte) '"');
+            }
+        }
+
+        @Override
+        public void integer(long value) throws IOException {
+            separator();
+            writeLong(value);
+        }
+
+        @Override
+        public void amount(double value) throws IOException {
+            separator();
+            long cents = Math.round(value * 100);
+            if (cents < 0) {
+                put((byte) '-');
+                cents = -cents;
+            }
+            writeLong(cents / 100);
+            put((byte) '.');
+            long fraction = cents % 100;
+            put((byte) ('0' + fraction / 10));
+            put((byte) ('0' + fraction % 10));
+        }
+
+        @Override
+        public void time(long millis) throws IOException {
+            text(times.format(millis));
+        }
+
+        @Override
+        public void endRow() throws IOException {
+            put((byte) '\n');
+            firstField = true;
+            super.endRow();
+        }
+
+        private void separator() throws IOException {
+            if (!firstField) {
+                put((byte) ',');
+            }
+            firstField = false;
+        }
+
+        private void writeLong(long value) throws IOException {
+            if (value == Long.MIN_VALUE) {
+                for (byte b : Long.toString(value).getBytes(StandardCharsets.US_ASCII)) {
+                    put(b);
+                }
+                return;
+            }
+            if (value < 0) {
+                put((byte) '-');
+                value = -value;
+            }
+            int length = 0;
+            do {
+                digits[length++] = (byte) ('0' + value % 10);
+                value /= 10;
+            } while (value != 0);
+            while (length > 0) {
+                put(digits[--length]);
+            }
+        }
+    }
+
+    // Varint-encoded fields, typically 1-3 bytes per number
+    private static class Binary extends ReportWriter {
+        private long previousTime;
+
+        Binary(Path path) throws IOException {
+            super(path);
+        }
+
+        @Override
+        public void columns(String[] names, Type[] types) throws IOException {
+            writeInt(BINARY_MAGIC);
+            writeVarLong(BINARY_VERSION);
+            writeVarLong(names.length);
+            for (int i = 0; i < names.length; i++) {
+                writeVarLong(types[i].ordinal());
+                text(names[i]);
+            }
+        }
+
+        @Override
+        public void text(String value) throws IOException {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            writeVarLong(bytes.length);
+            for (byte b : bytes) {
+                put(b);
+            }
+        }
+
+        @Override
+        public void integer(long value) throws IOException {
+            writeVarLong((value << 1) ^ (value >> 63));
+        }
+
+        @Override
+        public void amount(double value) throws IOException {
+            integer(Math.round(value * 100));
+        }
+
+        @Override
+        public void time(long millis) throws IOException {
+            integer(millis - previousTime);
+            previousTime = millis;
+        }
+
+        private void writeInt(int value) throws IOException {
+            put((byte) (value >>> 24));
+            put((byte) (value >>> 16));
+            put((byte) (value >>> 8));
+            put((byte) value);
+        }
+
+        private void writeVarLong(long value) throws IOException {
+            while ((value & ~0x7FL) != 0) {
+                put((byte) ((value & 0x7F) | 0x80));
+                value >>>= 7;
+            }
+            put((byte) value);
+        }
+    }
+
+    // Converts a binary report to CSV, streaming row by row
+    public static long binaryToCsv(Path binary, Path csv) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(binary), BUFFER_BYTES));
+             ReportWriter out = new Csv(csv)) {
+            if (in.readInt() != BINARY_MAGIC || readVarLong(in) != BINARY_VERSION) {
+                throw new IOException("Not a binary report: " + binary);
+            }
+            int count = (int) readVarLong(in);
+            String[] names = new String[count];
+            Type[] types = new Type[count];
+            for (int i = 0; i < count; i++) {
+                types[i] = Type.values()[(int) readVarLong(in)];
+                names[i] = readText(in);
+            }
+            out.columns(names, types);
+            long time = 0;
+            while (true) {
+                for (int i = 0; i < count; i++) {
+                    long first;
+                    try {
+                        first = readVarLong(in);
+                    } catch (EOFException e) {
+                        if (i == 0) {
+                            return out.getRowCount();
+                        }
+                        throw e;
+                    }
+                    if (types[i] == Type.TEXT) {
+                        byte[] bytes = new byte[(int) first];
+                        in.readFully(bytes);
+                        out.text(new String(bytes, StandardCharsets.UTF_8));
+                    } else {
+                        long value = (first >>> 1) ^ -(first & 1);
+                        if (types[i] == Type.INTEGER) {
+                            out.integer(value);
+                        } else if (types[i] == Type.TIME) {
+                            time += value;
+                            out.time(time);
+                        } else {
+                            out.amount(value / 100.0);
+                        }
+                    }
+                }
+                out.endRow();
+            }
+        }
+    }
+
+    private static String readText(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[(int) readVarLong(in)];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static long readVarLong(DataInputStream in) throws IOException {
+        long value = 0;
+        int shift = 0;
+        while (true) {
+            int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+            shift += 7;
+        }
+    }
+
+    // Formats times as yyyy-MM-dd HH:mm:ss, reusing the date part while it stays the same
+    // day, since consecutive sales almost always fall on the same day. The time of day comes
+    // from the zone offset at that instant rather than the time since midnight, which is an
+    // hour out after a daylight saving change.
+    private static class TimeFormatter {
+        private static final long DAY_MILLIS = 24L * 60 * 60 * 1000;
+
+        private final TimeZone zone = TimeZone.getDefault();
+        private final SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd ");
+        private final Calendar calendar = Calendar.getInstance(zone);
+        private final StringBuilder sb = new StringBuilder(19);
+        private long dayStart = Long.MAX_VALUE;
+        private long dayEnd = Long.MIN_VALUE;
+        private String datePart;
+
+        String format(long timestamp) {
+            if (timestamp < dayStart || timestamp >= dayEnd) {
+                calendar.setTimeInMillis(timestamp);
+                calendar.set(Calendar.HOUR_OF_DAY, 0);
+                calendar.set(Calendar.MINUTE, 0);
+                calendar.set(Calendar.SECOND, 0);
+                calendar.set(Calendar.MILLISECOND, 0);
+                dayStart = calendar.getTimeInMillis();
+                calendar.add(Calendar.DAY_OF_MONTH, 1);
+                dayEnd = calendar.getTimeInMillis();
+                datePart = dateFormat.format(dayStart);
+            }
+            int seconds = (int) (Math.floorMod(timestamp + zone.getOffset(timestamp), DAY_MILLIS) / 1000);
+            sb.setLength(0);
+            sb.append(datePart);
+            twoDigits(seconds / 3600).append(':');
+            twoDigits(seconds / 60 % 60).append(':');
+            twoDigits(seconds % 60);
+            return sb.toString();
+        }
+
+        private StringBuilder twoDigits(int value) {
+            return sb.append((char) ('0' + value / 10)).append((char) ('0' + value % 10));
+        }
+    }
+}
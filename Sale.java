@@ -0,0 +1,65 @@
+import java.text.ParseException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// A completed sale: a till-unique, increasing sale ID, the time it was rung up and
+// the quantity sold per product ID. Stored one per line as
+//   saleId, timestamp, productId:quantity productId:quantity ...
+class Sale {
+    private final long saleId;
+    private final long timestamp;
+    private final Map<String, Integer> lines;
+
+    public Sale(long saleId, long timestamp, Map<String, Integer> lines) {
+        this.saleId = saleId;
+        this.timestamp = timestamp;
+        this.lines = Collections.unmodifiableMap(new LinkedHashMap<>(lines));
+    }
+
+    public long getSaleId() {
+        return saleId;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public Map<String, Integer> getLines() {
+        return lines;
+    }
+
+    public String toFileString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(saleId).append(", ").append(timestamp).append(',');
+        for (Map.Entry<String, Integer> line : lines.entrySet()) {
+            sb.append(' ').append(line.getKey()).append(':').append(line.getValue());
+        }
+        return sb.toString();
+    }
+
+    public static Sale fromString(String data) throws ParseException {
+        String[] components = data.split(",");
+        if (components.length != 3) {
+            throw new ParseException("Invalid sale format: " + data, 0);
+        }
+        try {
+            long saleId = Long.parseLong(components[0].trim());
+            long timestamp = Long.parseLong(components[1].trim());
+            Map<String, Integer> lines = new LinkedHashMap<>();
+            for (String item : components[2].trim().split(" ")) {
+                if (item.isEmpty()) {
+                    continue;
+                }
+                int colon = item.lastIndexOf(':');
+                if (colon <= 0) {
+                    throw new ParseException("Invalid sale line: " + data, 0);
+                }
+                lines.merge(item.substring(0, colon), Integer.parseInt(item.substring(colon + 1)), Integer::sum);
+            }
+            return new Sale(saleId, timestamp, lines);
+        } catch (NumberFormatException e) {
+            throw new ParseException("Error parsing sale: " + data, 0);
+        }
+    }
+}
@@ -0,0 +1,300 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// Durable local outbox of completed sales. Checkout appends the sale (and forces it to
+// disk) and returns straight away; the stock decrements are written to the catalog store
+// later, in batches, by a background thread. A batch applies every pending sale as one
+// store write, so a text catalog is locked and rewritten once per batch.
+//
+// Replay is idempotent: sale IDs increase and the store records the highest applied ID
+// atomically with the stock change, so sales at or below it are never applied again.
+// Replayed sales are also appended to the sales history, which tracks its own highest
+// sale ID; a sale leaves the outbox only once both the store and the history have it.
+//
+// A sale is only in the outbox once its whole line, newline included, is on disk. A torn
+// last line left by a crash mid-append is cut off when the outbox is opened (and a write
+// that fails is cut off straight away), so the next sale never lands on a fragment. Any
+// other line that does not parse is corruption and stops the outbox rather than being
+// skipped.
+//
+// openReadOnly() is for tools that run next to a till: it writes nothing (a last line
+// still being appended is ignored rather than cut off), never replays, and refuses to
+// record sales.
+class SaleOutbox {
+    private static final long RETRY_SECONDS = 5;
+
+    private final Path outboxFile;
+    private final Catalog catalog;
+    private final SalesHistory history;
+    private final ScheduledExecutorService replayer;
+    private final boolean readOnly;
+    private long lastSaleId;
+    private boolean retryScheduled;
+
+    public SaleOutbox(String outboxFileName, Catalog catalog, SalesHistory history) throws IOException {
+        this(outboxFileName, catalog, history, false);
+    }
+
+    private SaleOutbox(String outboxFileName, Catalog catalog, SalesHistory history, boolean readOnly) throws IOException {
+        this.readOnly = readOnly;
+        this.outboxFile = Paths.get(outboxFileName);
+        this.catalog = catalog;
+        this.history = history;
+        this.replayer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "outbox-replay");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        if (!readOnly) {
+            truncateTornTail();
+        }
+
+        // Sales left over from a previous run are already sold as far as the screens are concerned
+        long applied = catalog.getStore().getAppliedSequence();
+        long highest = Math.max(applied, history.getLastSaleId());
+        for (Sale sale : readPending(Math.min(applied, history.getLastSaleId()))) {
+            if (sale.getSaleId() > applied) {
+                catalog.markPending(sale);
+            }
+            highest = Math.max(highest, sale.getSaleId());
+        }
+        this.lastSaleId = highest;
+        Metrics.gauge(catalog.getMetricPrefix() + "outbox.pending", this::pendingCount);
+    }
+
+    // Opens the till's outbox and sales history, has the catalog's sales velocity seeded
+    // from the history on first use and starts applying any sales left over from a
+    // previous run
+    public static SaleOutbox open(Catalog catalog) throws IOException {
+        return open(catalog, StoreChain.tillDirectory());
+    }
+
+    // Same as open(catalog) for the outbox and history kept in the given directory
+    public static SaleOutbox open(Catalog catalog, String directory) throws IOException {
+        SalesHistory history = new SalesHistory(Paths.get(directory, "sales-history").toString());
+        catalog.getVelocity().seedLazily(history);
+        SaleOutbox outbox = new SaleOutbox(Paths.get(directory, "sales.outbox").toString(), catalog, history);
+        outbox.replayAsync();
+        return outbox;
+    }
+
+    // Opens the outbox and history in the given directory without writing to either; sales
+    // left over from a previous run are marked pending in the catalog and left for the till
+    public static SaleOutbox openReadOnly(Catalog catalog, String directory) throws IOException {
+        SalesHistory history = SalesHistory.openReadOnly(Paths.get(directory, "sales-history").toString());
+        catalog.getVelocity().seedLazily(history);
+        return new SaleOutbox(Paths.get(directory, "sales.outbox").toString(), catalog, history, true);
+    }
+
+    public SalesHistory getHistory() {
+        return history;
+    }
+
+    // Takes the sold units off the in-memory catalog, appends the sale to the outbox and
+    // forces it to disk. Lines the catalog no longer has enough stock for are dropped.
+    // Returns the recorded sale; if nothing could be sold it has no lines, sale ID 0 (real
+    // IDs start at 1) and is not written.
+    public synchronized Sale record(Map<Product, Integer> cart) throws IOException {
+        Map<String, Integer> lines = new LinkedHashMap<>();
+        for (Map.Entry<Product, Integer> entry : cart.entrySet()) {
+            if (entry.getValue() > 0) {
+                lines.merge(entry.getKey().getProductId(), entry.getValue(), Integer::sum);
+            }
+        }
+        Map<String, Integer> taken = catalog.reserve(lines);
+        if (taken.isEmpty()) {
+            return new Sale(0, System.currentTimeMillis(), taken);
+        }
+        return commit(Collections.singletonList(taken)).get(0);
+    }
+
+    // Appends one sale per set of lines already reserved in the catalog, with a single
+    // write and a single force for all of them. If that fails, every reservation is
+    // released and no sale is recorded.
+    public synchronized List<Sale> commit(List<Map<String, Integer>> reserved) throws IOException {
+        if (readOnly) {
+            for (Map<String, Integer> lines : reserved) {
+                catalog.release(lines);
+            }
+            throw new IOException("Outbox " + outboxFile + " is open read-only");
+        }
+        List<Sale> sales = new ArrayList<>(reserved.size());
+        StringBuilder sb = new StringBuilder();
+        long now = System.currentTimeMillis();
+        long saleId = lastSaleId;
+        for (Map<String, Integer> lines : reserved) {
+            Sale sale = new Sale(++saleId, now, lines);
+            sales.add(sale);
+            sb.append(sale.toFileString()).append(System.lineSeparator());
+        }
+
+        ByteBuffer buffer = ByteBuffer.wrap(sb.toString().getBytes(StandardCharsets.UTF_8));
+        try (FileChannel channel = FileChannel.open(outboxFile, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            long sizeBefore = channel.size();
+            try {
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                channel.force(false);
+            } catch (IOException e) {
+                // Cut off whatever part of the batch made it to the file
+                try {
+                    channel.truncate(sizeBefore);
+                } catch (IOException truncateFailed) {
+                    e.addSuppressed(truncateFailed);
+                }
+                throw e;
+            }
+        } catch (IOException e) {
+            for (Map<String, Integer> lines : reserved) {
+                catalog.release(lines);
+            }
+            throw e;
+        }
+        lastSaleId = saleId;
+        for (Sale sale : sales) {
+            catalog.getVelocity().record(sale);
+        }
+        return sales;
+    }
+
+    // Schedules a replay on the background thread
+    public void replayAsync() {
+        if (readOnly) {
+            return;
+        }
+        replayer.execute(this::replayOrRetry);
+    }
+
+    private void replayOrRetry() {
+        boolean done;
+        try {
+            replay();
+            done = true;
+        } catch (IOException e) {
+            // Store locked or unavailable; the sales stay in the outbox until the next attempt
+            System.err.println("Outbox replay deferred: " + e.getMessage());
+            done = false;
+        }
+        synchronized (this) {
+            if (!done && !retryScheduled) {
+                retryScheduled = true;
+                replayer.schedule(() -> {
+                    synchronized (this) {
+                        retryScheduled = false;
+                    }
+                    replayOrRetry();
+                }, RETRY_SECONDS, TimeUnit.SECONDS);
+            }
+        }
+    }
+
+    // Applies every pending sale to the store in one batch and records it in the history
+    public void replay() throws IOException {
+        if (readOnly) {
+            throw new IOException("Outbox " + outboxFile + " is open read-only");
+        }
+        List<Sale> pending = readPending(watermark());
+        if (pending.isEmpty()) {
+            return;
+        }
+        catalog.applySales(pending);
+        history.append(pending);
+        compact(watermark());
+    }
+
+    // Highest sale ID that both the store and the history already hold
+    private long watermark() throws IOException {
+        return Math.min(catalog.getStore().getAppliedSequence(), history.getLastSaleId());
+    }
+
+    public int pendingCount() {
+        try {
+            return readPending(watermark()).size();
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    // Drops applied sales from the outbox file
+    private synchronized void compact(long watermark) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        for (Sale sale : readPending(watermark)) {
+            sb.append(sale.toFileString()).append(System.lineSeparator());
+        }
+        AtomicFiles.write(outboxFile, sb.toString());
+    }
+
+    private synchronized List<Sale> readPending(long watermark) throws IOException {
+        List<Sale> sales = new ArrayList<>();
+        if (!Files.exists(outboxFile)) {
+            return sales;
+        }
+        // Only complete lines: a read-only outbox may see a sale while the till appends it
+        byte[] data = Files.readAllBytes(outboxFile);
+        int complete = data.length;
+        while (complete > 0 && data[complete - 1] != '\n') {
+            complete--;
+        }
+        try (BufferedReader reader = new BufferedReader(new StringReader(new String(data, 0, complete, StandardCharsets.UTF_8)))) {
+            String line;
+            int lineNumber = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                try {
+                    Sale sale = Sale.fromString(line);
+                    if (sale.getSaleId() > watermark) {
+                        sales.add(sale);
+                    }
+                } catch (ParseException e) {
+                    throw new IOException("Corrupt sale at line " + lineNumber + " of " + outboxFile + ": " + line, e);
+                }
+            }
+        }
+        return sales;
+    }
+
+    // Cuts the file back to the end of its last complete line
+    private void truncateTornTail() throws IOException {
+        if (!Files.exists(outboxFile)) {
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(outboxFile, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long size = channel.size();
+            long complete = size;
+            ByteBuffer one = ByteBuffer.allocate(1);
+            while (complete > 0) {
+                one.clear();
+                channel.read(one, complete - 1);
+                if (one.get(0) == '\n') {
+                    break;
+                }
+                complete--;
+            }
+            if (complete < size) {
+                System.err.println("Outbox " + outboxFile + ": cut off a torn last line (" + (size - complete) + " bytes)");
+                channel.truncate(complete);
+                channel.force(false);
+            }
+        }
+    }
+}
@@ -0,0 +1,424 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Compact, append-only history of sold line items (time, product ID, quantity) kept in
+// its own directory. New items go to tail.log and are sealed into an immutable segment
+// once SEGMENT_RECORDS have accumulated. A segment file is
+//   header   magic, record count, min time, max time, highest sale ID
+//   dict     number of distinct product IDs, then each ID once
+//   records  varint time delta from the previous record (zig-zag, starting from min time),
+//            varint dictionary index, varint quantity (zig-zag)
+// which is typically 3-5 bytes per item instead of 25-30 for a text line. The min/max
+// times of every segment are held in memory, so a range query opens only the segments
+// that overlap the range.
+//
+// tail.log holds one "saleId,time,productId,quantity" line per item and ends every sale
+// with a "saleId,end,lineCount" marker. A sale counts as recorded only once its marker is
+// on disk: items after the last complete marker (a sale torn by a crash, or a line cut
+// off mid-number) are ignored, and the writer cuts them off when it opens the history, so
+// the outbox keeps such a sale and replays it.
+//
+// openReadOnly() is for tools that run next to a till: it writes nothing, so a sale the
+// till is appending at that moment is simply not seen yet, and append() fails.
+class SalesHistory {
+    private static final int SEGMENT_RECORDS = 8192;
+    private static final int SEGMENT_MAGIC = 0x53484931;
+    private static final int HEADER_BYTES = 32;
+
+    // Receives the line items of a range query
+    public interface Visitor {
+        void accept(long timestamp, String productId, int quantity);
+    }
+
+    private static class SegmentInfo {
+        final Path path;
+        final int count;
+        final long minTime;
+        final long maxTime;
+        final long maxSaleId;
+
+        SegmentInfo(Path path, int count, long minTime, long maxTime, long maxSaleId) {
+            this.path = path;
+            this.count = count;
+            this.minTime = minTime;
+            this.maxTime = maxTime;
+            this.maxSaleId = maxSaleId;
+        }
+    }
+
+    private final Path directory;
+    private final Path tailFile;
+    private final List<SegmentInfo> segments = new ArrayList<>();
+    private final List<long[]> tailRecords = new ArrayList<>();
+    private final List<String> tailIds = new ArrayList<>();
+    private final boolean readOnly;
+    private long lastSaleId;
+    private int nextSegment = 1;
+
+    // Opens the history for appending, creating the directory if needed
+    public SalesHistory(String directoryName) throws IOException {
+        this(directoryName, false);
+    }
+
+    private SalesHistory(String directoryName, boolean readOnly) throws IOException {
+        this.directory = Paths.get(directoryName);
+        this.tailFile = directory.resolve("tail.log");
+        this.readOnly = readOnly;
+        if (readOnly) {
+            // The writer may seal the tail into a new segment between the two reads; if the
+            // segments changed meanwhile, read both again
+            List<Path> listed;
+            do {
+                listed = readSegments();
+                readTail();
+            } while (!listed.equals(listSegments()));
+        } else {
+            Files.createDirectories(directory);
+            readSegments();
+            readTail();
+        }
+
+        String metricPrefix = StoreChain.metricPrefix(directory.toAbsolutePath().getParent());
+        Metrics.gauge(metricPrefix + "history.segments", () -> segments.size());
+        Metrics.gauge(metricPrefix + "history.bytes", this::diskBytes);
+    }
+
+    // Opens the history without writing anything, not even to repair it; a missing
+    // directory is an empty history
+    public static SalesHistory openReadOnly(String directoryName) throws IOException {
+        return new SalesHistory(directoryName, true);
+    }
+
+    // Highest sale ID already in the history
+    public synchronized long getLastSaleId() {
+        return lastSaleId;
+    }
+
+    // Time of the latest line item in the history, or 0 if it is empty
+    public synchronized long getLastSaleTime() {
+        long last = 0;
+        for (SegmentInfo info : segments) {
+            last = Math.max(last, info.maxTime);
+        }
+        for (long[] record : tailRecords) {
+            last = Math.max(last, record[1]);
+        }
+        return last;
+    }
+
+    // Appends the line items of the given sales, skipping sales that are already recorded
+    public synchronized void append(List<Sale> sales) throws IOException {
+        if (readOnly) {
+            throw new IOException("Sales history " + directory + " is open read-only");
+        }
+        StringBuilder sb = new StringBuilder();
+        List<long[]> records = new ArrayList<>();
+        List<String> ids = new ArrayList<>();
+        long newLastSaleId = lastSaleId;
+        for (Sale sale : sales) {
+            if (sale.getSaleId() <= newLastSaleId) {
+                continue;
+            }
+            for (Map.Entry<String, Integer> line : sale.getLines().entrySet()) {
+                records.add(new long[]{sale.getSaleId(), sale.getTimestamp(), line.getValue()});
+                ids.add(line.getKey());
+            }
+            appendTailLines(sb, sale.getSaleId(), records, ids, records.size() - sale.getLines().size());
+            newLastSaleId = sale.getSaleId();
+        }
+        if (newLastSaleId == lastSaleId) {
+            return;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(sb.toString().getBytes(StandardCharsets.UTF_8));
+        try (FileChannel channel = FileChannel.open(tailFile, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            long sizeBefore = channel.size();
+            try {
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                channel.force(false);
+            } catch (IOException e) {
+                // Cut off whatever part of the sales made it to the file
+                try {
+                    channel.truncate(sizeBefore);
+                } catch (IOException truncateFailed) {
+                    e.addSuppressed(truncateFailed);
+                }
+                throw e;
+            }
+        }
+        tailRecords.addAll(records);
+        tailIds.addAll(ids);
+        lastSaleId = newLastSaleId;
+
+        if (tailRecords.size() >= SEGMENT_RECORDS) {
+            sealTail();
+        }
+    }
+
+    // Visits every line item with from <= time < to, reading only overlapping segments
+    public synchronized void scan(long from, long to, Visitor visitor) throws IOException {
+        for (SegmentInfo info : segments) {
+            if (info.maxTime >= from && info.minTime < to) {
+                readSegment(info, from, to, visitor);
+            }
+        }
+        for (int i = 0; i < tailRecords.size(); i++) {
+            long[] record = tailRecords.get(i);
+            if (record[1] >= from && record[1] < to) {
+                visitor.accept(record[1], tailIds.get(i), (int) record[2]);
+            }
+        }
+    }
+
+    // Units of one product sold with from <= time < to
+    public long unitsSold(String productId, long from, long to) throws IOException {
+        long[] total = new long[1];
+        scan(from, to, (timestamp, id, quantity) -> {
+            if (id.equals(productId)) {
+                total[0] += quantity;
+            }
+        });
+        return total[0];
+    }
+
+    public synchronized long diskBytes() {
+        long bytes = 0;
+        try {
+            for (SegmentInfo info : segments) {
+                bytes += Files.size(info.path);
+            }
+            if (Files.exists(tailFile)) {
+                bytes += Files.size(tailFile);
+            }
+        } catch (IOException e) {
+            return -1;
+        }
+        return bytes;
+    }
+
+    // Loads the unsealed items and (unless read-only) cuts off anything after the last
+    // complete sale; items
+    // already in a segment (a crash between writing the segment and emptying the tail)
+    // are skipped
+    private void readTail() throws IOException {
+        if (!Files.exists(tailFile)) {
+            return;
+        }
+        byte[] data = Files.readAllBytes(tailFile);
+        List<String> lines = new ArrayList<>();
+        List<Integer> lineEnds = new ArrayList<>();
+        int start = 0;
+        for (int i = 0; i < data.length; i++) {
+            if (data[i] == '\n') {
+                String line = new String(data, start, i - start, StandardCharsets.UTF_8);
+                lines.add(line);
+                lineEnds.add(i + 1);
+                start = i + 1;
+            }
+        }
+
+        long sealedSaleId = lastSaleId;
+        List<long[]> saleRecords = new ArrayList<>();
+        List<String> saleIds = new ArrayList<>();
+        int complete = 0;
+        for (int i = 0; i < lines.size(); i++) {
+            String[] parts = lines.get(i).split(",");
+            try {
+                if (parts.length == 3 && parts[1].equals("end")) {
+                    long saleId = Long.parseLong(parts[0]);
+                    if (saleRecords.size() != Integer.parseInt(parts[2])
+                            || !saleRecords.isEmpty() && saleRecords.get(0)[0] != saleId) {
+                        throw new IOException("Sale " + saleId + " does not match its items at line " + (i + 1)
+                                + " of " + tailFile);
+                    }
+                    if (saleId > sealedSaleId) {
+                        tailRecords.addAll(saleRecords);
+                        tailIds.addAll(saleIds);
+                        lastSaleId = Math.max(lastSaleId, saleId);
+                    }
+                    saleRecords.clear();
+                    saleIds.clear();
+                    complete = lineEnds.get(i);
+                } else if (parts.length == 4) {
+                    long saleId = Long.parseLong(parts[0]);
+                    if (!saleRecords.isEmpty() && saleRecords.get(0)[0] != saleId) {
+                        throw new IOException("Sale " + saleRecords.get(0)[0] + " has no end marker before line "
+                                + (i + 1) + " of " + tailFile);
+                    }
+                    saleRecords.add(new long[]{saleId, Long.parseLong(parts[1]), Integer.parseInt(parts[3])});
+                    saleIds.add(parts[2]);
+                } else {
+                    throw new IOException("Corrupt sales history line " + (i + 1) + " of " + tailFile + ": " + lines.get(i));
+                }
+            } catch (NumberFormatException e) {
+                throw new IOException("Corrupt sales history line " + (i + 1) + " of " + tailFile + ": " + lines.get(i), e);
+            }
+        }
+        if (complete < data.length && !readOnly) {
+            // An incomplete last sale or a torn line; the outbox still has that sale
+            System.err.println("Sales history " + tailFile + ": cut off an incomplete last sale ("
+                    + (data.length - complete) + " bytes)");
+            try (FileChannel channel = FileChannel.open(tailFile, StandardOpenOption.WRITE)) {
+                channel.truncate(complete);
+                channel.force(false);
+            }
+        }
+    }
+
+    // Writes the items records[from..] (all of one sale) and the sale's end marker
+    private static void appendTailLines(StringBuilder sb, long saleId, List<long[]> records, List<String> ids, int from) {
+        for (int i = from; i < records.size(); i++) {
+            long[] record = records.get(i);
+            sb.append(saleId).append(',').append(record[1]).append(',')
+                    .append(ids.get(i)).append(',').append(record[2]).append('\n');
+        }
+        sb.append(saleId).append(",end,").append(records.size() - from).append('\n');
+    }
+
+    // Writes the tail out as a new segment and empties it
+    private void sealTail() throws IOException {
+        Map<String, Integer> dictionary = new HashMap<>();
+        List<String> ids = new ArrayList<>();
+        long minTime = Long.MAX_VALUE;
+        long maxTime = Long.MIN_VALUE;
+        long maxSaleId = 0;
+        for (int i = 0; i < tailRecords.size(); i++) {
+            long[] record = tailRecords.get(i);
+            minTime = Math.min(minTime, record[1]);
+            maxTime = Math.max(maxTime, record[1]);
+            maxSaleId = Math.max(maxSaleId, record[0]);
+            if (dictionary.putIfAbsent(tailIds.get(i), ids.size()) == null) {
+                ids.add(tailIds.get(i));
+            }
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(SEGMENT_MAGIC);
+        out.writeInt(tailRecords.size());
+        out.writeLong(minTime);
+        out.writeLong(maxTime);
+        out.writeLong(maxSaleId);
+        out.writeInt(ids.size());
+        for (String id : ids) {
+            out.writeUTF(id);
+        }
+        long previous = minTime;
+        for (int i = 0; i < tailRecords.size(); i++) {
+            long[] record = tailRecords.get(i);
+            writeVarLong(out, zigZag(record[1] - previous));
+            writeVarLong(out, dictionary.get(tailIds.get(i)));
+            writeVarLong(out, zigZag(record[2]));
+            previous = record[1];
+        }
+        out.flush();
+
+        Path path = directory.resolve(String.format("seg-%06d.hist", nextSegment++));
+        AtomicFiles.write(path, bytes.toByteArray());
+        segments.add(new SegmentInfo(path, tailRecords.size(), minTime, maxTime, maxSaleId));
+        AtomicFiles.write(tailFile, new byte[0]);
+        tailRecords.clear();
+        tailIds.clear();
+    }
+
+    // Reads the headers of every segment; returns their paths in order
+    private List<Path> readSegments() throws IOException {
+        segments.clear();
+        tailRecords.clear();
+        tailIds.clear();
+        lastSaleId = 0;
+        List<Path> paths = listSegments();
+        for (Path path : paths) {
+            SegmentInfo info = readHeader(path);
+            segments.add(info);
+            lastSaleId = Math.max(lastSaleId, info.maxSaleId);
+            String name = path.getFileName().toString();
+            nextSegment = Math.max(nextSegment, Integer.parseInt(name.substring(4, name.length() - 5)) + 1);
+        }
+        return paths;
+    }
+
+    private List<Path> listSegments() throws IOException {
+        List<Path> paths = new ArrayList<>();
+        if (!Files.isDirectory(directory)) {
+            return paths;
+        }
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "seg-*.hist")) {
+            for (Path path : files) {
+                paths.add(path);
+            }
+        }
+        paths.sort((a, b) -> a.getFileName().compareTo(b.getFileName()));
+        return paths;
+    }
+
+    private static SegmentInfo readHeader(Path path) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path), HEADER_BYTES))) {
+            if (in.readInt() != SEGMENT_MAGIC) {
+                throw new IOException("Not a sales history segment: " + path);
+            }
+            return new SegmentInfo(path, in.readInt(), in.readLong(), in.readLong(), in.readLong());
+        }
+    }
+
+    private static void readSegment(SegmentInfo info, long from, long to, Visitor visitor) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(info.path)))) {
+            in.skipBytes(HEADER_BYTES);
+            String[] ids = new String[in.readInt()];
+            for (int i = 0; i < ids.length; i++) {
+                ids[i] = in.readUTF();
+            }
+            long time = info.minTime;
+            for (int i = 0; i < info.count; i++) {
+                time += unZigZag(readVarLong(in));
+                String id = ids[(int) readVarLong(in)];
+                int quantity = (int) unZigZag(readVarLong(in));
+                if (time >= from && time < to) {
+                    visitor.accept(time, id, quantity);
+                }
+            }
+        }
+    }
+
+    private static long zigZag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unZigZag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static void writeVarLong(DataOutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    private static long readVarLong(DataInputStream in) throws IOException {
+        long value = 0;
+        int shift = 0;
+        while (true) {
+            int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+            shift += 7;
+        }
+    }
+}
@@ -0,0 +1,188 @@
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+// Per-product sales velocity as an exponentially decayed rate (units per day), updated in
+// O(1) per sold line: on each sale the stored rate is decayed by exp(-elapsed / TAU) and the
+// new units are added. Rates live in primitive arrays indexed by a slot per product, so
+// recomputing reorder points for every product is one pass over flat arrays.
+//
+// From the rate r (units/day) and the supplier lead time L (days):
+//   reorder point  = r * L + z * sqrt(r * L)        expected lead-time demand plus safety stock
+//   order-up-to    = reorder point + r * REVIEW_DAYS
+// Products with no sales yet keep the old fixed threshold of 10 and refill level of 100.
+//
+// The rates are seeded from the sales history on first use rather than when the history is
+// opened, so opening a till's data (or a tool that never asks for reorder levels) does not
+// read weeks of sales up front.
+class SalesVelocity {
+    private static final double DAY_MILLIS = 24 * 60 * 60 * 1000.0;
+    private static final double TAU_DAYS = 14;
+    private static final double LEAD_TIME_DAYS = 3;
+    private static final double REVIEW_DAYS = 7;
+    private static final double SERVICE_Z = 1.65;
+    private static final int DEFAULT_REORDER_POINT = 10;
+    private static final int DEFAULT_ORDER_UP_TO = 100;
+
+    private final Map<String, Integer> slots = new HashMap<>();
+    private double[] rates = new double[64];
+    private long[] updatedAt = new long[64];
+    private int[] reorderPoints = new int[64];
+    private int[] orderUpTo = new int[64];
+    private long computedAt;
+    // History still to be read on first use, and the end of the range to read from it
+    private SalesHistory seedHistory;
+    private long seedTo;
+
+    // Adds units sold at the given time to a product's rate
+    public synchronized void record(String productId, int quantity, long time) {
+        int slot = slotFor(productId);
+        long last = updatedAt[slot];
+        double units = quantity / TAU_DAYS;
+        if (last == 0) {
+            rates[slot] = units;
+            updatedAt[slot] = time;
+        } else if (time >= last) {
+            rates[slot] = rates[slot] * Math.exp(-(time - last) / DAY_MILLIS / TAU_DAYS) + units;
+            updatedAt[slot] = time;
+        } else {
+            // A late sale contributes as if it had been decayed since it happened
+            rates[slot] += units * Math.exp(-(last - time) / DAY_MILLIS / TAU_DAYS);
+        }
+        computeSlot(slot, Math.max(time, computedAt));
+    }
+
+    // Estimated heap held by the slot map and the rate arrays (the IDs belong to the catalog)
+    public synchronized long estimateBytes() {
+        return MemoryFootprint.hashMap(slots.size()) + slots.size() * MemoryFootprint.object(0, 4)
+                + MemoryFootprint.array(rates.length, 8) + MemoryFootprint.array(updatedAt.length, 8)
+                + MemoryFootprint.array(reorderPoints.length, 4) + MemoryFootprint.array(orderUpTo.length, 4);
+    }
+
+    public void record(Sale sale) {
+        for (Map.Entry<String, Integer> line : sale.getLines().entrySet()) {
+            record(line.getKey(), line.getValue(), sale.getTimestamp());
+        }
+    }
+
+    // Has the rates seeded from the history on first use. Only the sales in it now are
+    // read then: the ones appended later (left-over outbox sales, new sales) are recorded
+    // here as they happen and must not be counted twice.
+    public synchronized void seedLazily(SalesHistory history) {
+        seedHistory = history;
+        seedTo = history.getLastSaleTime() + 1;
+    }
+
+    // Reads the recent history if seedLazily() asked for it. Sales older than a few time
+    // constants no longer carry weight, so only that window is read, not the whole history.
+    private void ensureSeeded() {
+        if (seedHistory == null) {
+            return;
+        }
+        SalesHistory history = seedHistory;
+        seedHistory = null;
+        long now = System.currentTimeMillis();
+        long from = now - (long) (4 * TAU_DAYS * DAY_MILLIS);
+        try {
+            history.scan(from, seedTo, (timestamp, productId, quantity) -> record(productId, quantity, timestamp));
+        } catch (IOException e) {
+            System.err.println("Sales velocity not seeded from the history: " + e.getMessage());
+        }
+        recomputeAll(now);
+    }
+
+    // Moves a product's rate to its new ID when the product is renamed. If the new ID
+    // already has a rate of its own the two are added, and the old ID keeps an empty slot.
+    public synchronized void rename(String oldId, String newId) {
+        ensureSeeded();
+        Integer slot = slots.get(oldId);
+        if (slot == null || oldId.equals(newId)) {
+            return;
+        }
+        Integer target = slots.get(newId);
+        if (target == null) {
+            slots.remove(oldId);
+            slots.put(newId, slot);
+            return;
+        }
+        long time = Math.max(updatedAt[slot], updatedAt[target]);
+        rates[target] = decayedRate(target, time) + decayedRate(slot, time);
+        updatedAt[target] = time;
+        rates[slot] = 0;
+        updatedAt[slot] = 0;
+        computeSlot(target, Math.max(time, computedAt));
+        computeSlot(slot, computedAt);
+    }
+
+    // Units per day for a product as of the given time
+    public synchronized double rate(String productId, long now) {
+        ensureSeeded();
+        Integer slot = slots.get(productId);
+        if (slot == null) {
+            return 0.0;
+        }
+        return decayedRate(slot, now);
+    }
+
+    // Recomputes every reorder point and order-up-to level as of the given time
+    public synchronized void recomputeAll(long now) {
+        ensureSeeded();
+        for (int slot = 0; slot < slots.size(); slot++) {
+            computeSlot(slot, now);
+        }
+        computedAt = now;
+    }
+
+    public synchronized int reorderPoint(String productId) {
+        ensureSeeded();
+        Integer slot = slots.get(productId);
+        return slot == null ? DEFAULT_REORDER_POINT : reorderPoints[slot];
+    }
+
+    public synchronized int orderUpTo(String productId) {
+        ensureSeeded();
+        Integer slot = slots.get(productId);
+        return slot == null ? DEFAULT_ORDER_UP_TO : orderUpTo[slot];
+    }
+
+    public synchronized int size() {
+        ensureSeeded();
+        return slots.size();
+    }
+
+    private double decayedRate(int slot, long now) {
+        long elapsed = Math.max(0, now - updatedAt[slot]);
+        return rates[slot] * Math.exp(-elapsed / DAY_MILLIS / TAU_DAYS);
+    }
+
+    private void computeSlot(int slot, long now) {
+        double rate = decayedRate(slot, now);
+        if (rate <= 0) {
+            reorderPoints[slot] = DEFAULT_REORDER_POINT;
+            orderUpTo[slot] = DEFAULT_ORDER_UP_TO;
+            return;
+        }
+        double leadTimeDemand = rate * LEAD_TIME_DAYS;
+        int reorderPoint = (int) Math.ceil(leadTimeDemand + SERVICE_Z * Math.sqrt(leadTimeDemand));
+        reorderPoints[slot] = reorderPoint;
+        orderUpTo[slot] = Math.max(reorderPoint + 1, (int) Math.ceil(reorderPoint + rate * REVIEW_DAYS));
+    }
+
+    private int slotFor(String productId) {
+        Integer slot = slots.get(productId);
+        if (slot != null) {
+            return slot;
+        }
+        int newSlot = slots.size();
+        if (newSlot == rates.length) {
+            int capacity = rates.length * 2;
+            rates = Arrays.copyOf(rates, capacity);
+            updatedAt = Arrays.copyOf(updatedAt, capacity);
+            reorderPoints = Arrays.copyOf(reorderPoints, capacity);
+            orderUpTo = Arrays.copyOf(orderUpTo, capacity);
+        }
+        slots.put(productId, newSlot);
+        return newSlot;
+    }
+}
@@ -0,0 +1,414 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+// Catalog store split into a fixed number of shards by hash of the product ID, kept in its
+// own directory:
+//   shard-SS-GGGGGG.txt  the products of shard SS in products.txt format, as written at
+//                        generation GGGGGG
+//   MANIFEST             generation, applied sequence, shard count and the file of every shard
+// The whole catalog is also held in memory, so reads never touch the disk. A batch
+// rewrites only the shards it touches ("dirty" shards), each into a new file, encoding
+// and writing them in parallel; the manifest naming the new files is then replaced
+// atomically, which is the commit point. Files not named by the manifest (from an
+// interrupted batch, or superseded) are deleted. The store holds an exclusive lock on
+// its directory while open, since its in-memory copy must be the only writer.
+//
+// openReadOnly() loads the same files without the lock and without deleting anything, so
+// a tool can read the shards while a till has them open; if the till replaces a shard
+// file during the load, the load starts again from the new manifest.
+//
+// Products are mutable (their stock), so the store keeps its own copies: it copies what
+// it is given and hands out copies of what it holds.
+class ShardedCatalogStore implements CatalogStore {
+    private static final int DEFAULT_SHARDS = 8;
+    private static final int MAX_LOAD_ATTEMPTS = 10;
+
+    private final Path directory;
+    private final Path manifestFile;
+    private final FileChannel lockChannel;
+    private final FileLock lock;
+    private final boolean readOnly;
+    private final ExecutorService writers;
+    private List<TreeMap<String, Product>> shards = new ArrayList<>();
+    private String[] shardFiles;
+    private long generation;
+    private long appliedSequence;
+
+    // Opens the store, creating it with the number of shards in the "pos.shards" system
+    // property (default 8) if it does not exist yet
+    public ShardedCatalogStore(String directoryName) throws IOException {
+        this(directoryName, false);
+    }
+
+    private ShardedCatalogStore(String directoryName, boolean readOnly) throws IOException {
+        this.directory = Paths.get(directoryName);
+        this.manifestFile = directory.resolve("MANIFEST");
+        this.readOnly = readOnly;
+        if (readOnly) {
+            this.lockChannel = null;
+            this.lock = null;
+        } else {
+            Files.createDirectories(directory);
+            this.lockChannel = FileChannel.open(directory.resolve("LOCK"), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            FileLock acquired;
+            try {
+                acquired = lockChannel.tryLock();
+            } catch (OverlappingFileLockException e) {
+                acquired = null;
+            }
+            if (acquired == null) {
+                lockChannel.close();
+                throw new IOException("Catalog shards are in use by another process: " + directory);
+            }
+            this.lock = acquired;
+        }
+
+        this.writers = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), r -> {
+            Thread thread = new Thread(r, "catalog-shard-writer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        for (int attempt = 1; ; attempt++) {
+            int shardCount = Integer.getInteger("pos.shards", DEFAULT_SHARDS);
+            if (Files.exists(manifestFile)) {
+                shardCount = readManifest();
+            } else {
+                generation = 0;
+                appliedSequence = 0;
+                shardFiles = new String[shardCount];
+            }
+            try {
+                loadShards(shardCount);
+                break;
+            } catch (IOException e) {
+                // Read-only: a writer replaced a shard after we read the manifest
+                if (!readOnly || attempt == MAX_LOAD_ATTEMPTS || !(e.getCause() instanceof NoSuchFileException)) {
+                    throw e;
+                }
+            }
+        }
+        if (!readOnly) {
+            deleteUnreferencedFiles();
+        }
+        MemoryFootprint.register(StoreChain.metricPrefix(directory.toAbsolutePath().getParent()) + "store.shards", this::estimateBytes);
+    }
+
+    // Opens the store for reading only: no lock, nothing created or deleted, every write fails
+    public static ShardedCatalogStore openReadOnly(String directoryName) throws IOException {
+        return new ShardedCatalogStore(directoryName, true);
+    }
+
+    // Estimated heap held by the in-memory copy of every shard
+    public synchronized long estimateBytes() {
+        long bytes = MemoryFootprint.arrayList(shards.size());
+        for (TreeMap<String, Product> shard : shards) {
+            bytes += MemoryFootprint.treeMap(shard.size()) + MemoryFootprint.products(shard.values());
+        }
+        return bytes;
+    }
+
+    // True if nothing has ever been written to this store
+    @Override
+    public synchronized boolean isEmpty() {
+        return generation == 0;
+    }
+
+    public synchronized int getShardCount() {
+        return shards.size();
+    }
+
+    @Override
+    public synchronized Product get(String productId) {
+        Product product = shards.get(shardOf(productId)).get(productId);
+        return product == null ? null : copyOf(product);
+    }
+
+    @Override
+    public synchronized List<Product> scan(String fromId, String toId) {
+        TreeMap<String, Product> merged = new TreeMap<>();
+        for (TreeMap<String, Product> shard : shards) {
+            merged.putAll(range(shard, fromId, toId));
+        }
+        List<Product> products = new ArrayList<>(merged.size());
+        for (Product product : merged.values()) {
+            products.add(copyOf(product));
+        }
+        return products;
+    }
+
+    @Override
+    public synchronized void put(Product product) throws IOException {
+        List<Product> puts = new ArrayList<>();
+        puts.add(product);
+        writeBatch(puts, new ArrayList<>(), appliedSequence);
+    }
+
+    @Override
+    public synchronized void delete(String productId) throws IOException {
+        List<String> deletes = new ArrayList<>();
+        deletes.add(productId);
+        writeBatch(new ArrayList<>(), deletes, appliedSequence);
+    }
+
+    @Override
+    public synchronized void writeBatch(List<Product> puts, List<String> deletes, long sequence) throws IOException {
+        if (readOnly) {
+            throw new IOException("Catalog shards are open read-only: " + directory);
+        }
+        // Copy the dirty shards and apply the batch to the copies
+        Map<Integer, TreeMap<String, Product>> dirty = new TreeMap<>();
+        for (Product product : puts) {
+            dirtyCopy(dirty, shardOf(product.getProductId())).put(product.getProductId(), copyOf(product));
+        }
+        for (String productId : deletes) {
+            int shard = shardOf(productId);
+            if (dirty.containsKey(shard) || shards.get(shard).containsKey(productId)) {
+                dirtyCopy(dirty, shard).remove(productId);
+            }
+        }
+
+        long newGeneration = generation + 1;
+        String[] newFiles = shardFiles.clone();
+        List<Future<?>> writes = new ArrayList<>();
+        for (Map.Entry<Integer, TreeMap<String, Product>> entry : dirty.entrySet()) {
+            String fileName = String.format("shard-%02d-%06d.txt", entry.getKey(), newGeneration);
+            newFiles[entry.getKey()] = fileName;
+            TreeMap<String, Product> contents = entry.getValue();
+            writes.add(writers.submit(() -> {
+                writeShard(directory.resolve(fileName), contents);
+                return null;
+            }));
+        }
+        waitFor(writes);
+
+        // Commit point: the manifest now names the new shard files
+        writeManifest(newGeneration, sequence, newFiles);
+        String[] oldFiles = shardFiles;
+        List<TreeMap<String, Product>> newShards = new ArrayList<>(shards);
+        for (Map.Entry<Integer, TreeMap<String, Product>> entry : dirty.entrySet()) {
+            newShards.set(entry.getKey(), entry.getValue());
+        }
+        shards = newShards;
+        shardFiles = newFiles;
+        generation = newGeneration;
+        appliedSequence = sequence;
+
+        for (int i = 0; i < oldFiles.length; i++) {
+            if (oldFiles[i] != null && !oldFiles[i].equals(newFiles[i])) {
+                Files.deleteIfExists(directory.resolve(oldFiles[i]));
+            }
+        }
+    }
+
+    @Override
+    public synchronized long getAppliedSequence() {
+        return appliedSequence;
+    }
+
+    @Override
+    public String describe() {
+        return "sharded store " + directory + " (" + shards.size() + " shards)";
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        writers.shutdown();
+        if (lock != null) {
+            lock.release();
+            lockChannel.close();
+        }
+    }
+
+    private int shardOf(String productId) {
+        // Spread the bits of String.hashCode, whose low bits are poor for sequential IDs
+        int hash = productId.hashCode();
+        hash ^= hash >>> 16;
+        hash *= 0x45d9f3b;
+        hash ^= hash >>> 16;
+        return Math.floorMod(hash, shards.size());
+    }
+
+    private static Product copyOf(Product product) {
+        return product.withStock(product.getProductStock());
+    }
+
+    private TreeMap<String, Product> dirtyCopy(Map<Integer, TreeMap<String, Product>> dirty, int shard) {
+        return dirty.computeIfAbsent(shard, s -> new TreeMap<>(shards.get(s)));
+    }
+
+    private static void writeShard(Path path, TreeMap<String, Product> products) throws IOException {
+        ProductEncoder encoder = new ProductEncoder(new SimpleDateFormat("dd-MMM-yyyy"));
+        StringBuilder sb = new StringBuilder(products.size() * 80);
+        for (Product product : products.values()) {
+            encoder.append(sb, product).append('\n');
+        }
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.wrap(sb.toString().getBytes(StandardCharsets.UTF_8));
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(true);
+        }
+    }
+
+    // Reads every shard in parallel
+    private void loadShards(int shardCount) throws IOException {
+        List<Future<TreeMap<String, Product>>> reads = new ArrayList<>();
+        for (int i = 0; i < shardCount; i++) {
+            String fileName = shardFiles[i];
+            reads.add(writers.submit(() -> fileName == null ? new TreeMap<>() : readShard(directory.resolve(fileName))));
+        }
+        List<TreeMap<String, Product>> loaded = new ArrayList<>();
+        for (Future<TreeMap<String, Product>> read : reads) {
+            try {
+                loaded.add(read.get());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while loading catalog shards", e);
+            } catch (ExecutionException e) {
+                throw new IOException("Could not load a catalog shard", e.getCause());
+            }
+        }
+        shards = loaded;
+    }
+
+    private static TreeMap<String, Product> readShard(Path path) throws IOException {
+        TreeMap<String, Product> products = new TreeMap<>();
+        try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                try {
+                    Product product = Product.fromString(line);
+                    products.put(product.getProductId(), product);
+                } catch (ParseException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+        return products;
+    }
+
+    private static void waitFor(List<Future<?>> writes) throws IOException {
+        IOException failure = null;
+        for (Future<?> write : writes) {
+            try {
+                write.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                failure = new IOException("Interrupted while writing catalog shards", e);
+            } catch (ExecutionException e) {
+                if (failure == null) {
+                    failure = e.getCause() instanceof IOException ? (IOException) e.getCause()
+                            : new IOException("Could not write a catalog shard", e.getCause());
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private void writeManifest(long newGeneration, long sequence, String[] files) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        sb.append("generation ").append(newGeneration).append('\n');
+        sb.append("sequence ").append(sequence).append('\n');
+        sb.append("shards ").append(files.length).append('\n');
+        for (int i = 0; i < files.length; i++) {
+            if (files[i] != null) {
+                sb.append("shard ").append(i).append(' ').append(files[i]).append('\n');
+            }
+        }
+        AtomicFiles.write(manifestFile, sb.toString());
+    }
+
+    // Reads the manifest and returns the shard count
+    private int readManifest() throws IOException {
+        String contents = new String(Files.readAllBytes(manifestFile), StandardCharsets.UTF_8);
+        int shardCount = 0;
+        Map<Integer, String> files = new HashMap<>();
+        try (BufferedReader reader = new BufferedReader(new StringReader(contents))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] parts = line.split(" ");
+                switch (parts[0]) {
+                    case "generation":
+                        generation = Long.parseLong(parts[1]);
+                        break;
+                    case "sequence":
+                        appliedSequence = Long.parseLong(parts[1]);
+                        break;
+                    case "shards":
+                        shardCount = Integer.parseInt(parts[1]);
+                        break;
+                    case "shard":
+                        files.put(Integer.parseInt(parts[1]), parts[2]);
+                        break;
+                    default:
+                        throw new IOException("Bad line in " + manifestFile + ": " + line);
+                }
+            }
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            throw new IOException("Corrupt manifest " + manifestFile, e);
+        }
+        shardFiles = new String[shardCount];
+        for (Map.Entry<Integer, String> entry : files.entrySet()) {
+            shardFiles[entry.getKey()] = entry.getValue();
+        }
+        return shardCount;
+    }
+
+    private void deleteUnreferencedFiles() throws IOException {
+        Set<String> live = new HashSet<>();
+        for (String file : shardFiles) {
+            if (file != null) {
+                live.add(file);
+            }
+        }
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "shard-*.txt")) {
+            for (Path path : files) {
+                if (!live.contains(path.getFileName().toString())) {
+                    Files.delete(path);
+                }
+            }
+        }
+    }
+
+    private static Map<String, Product> range(TreeMap<String, Product> map, String fromId, String toId) {
+        if (fromId == null && toId == null) {
+            return map;
+        }
+        if (fromId == null) {
+            return map.headMap(toId);
+        }
+        if (toId == null) {
+            return map.tailMap(fromId);
+        }
+        return map.subMap(fromId, toId);
+    }
+}
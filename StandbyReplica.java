@@ -0,0 +1,176 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+// The standby side of log shipping: polls the shared directory a LogShipper writes to and
+// applies each batch, in sequence order, to its own catalog store as one write. The
+// highest applied sequence is kept in replica.position next to the store (and copied to
+// the shared directory so the primary can report how far behind the standby is); applied
+// files are deleted. A snapshot supersedes everything before it, so older files are
+// skipped. Since records are full product states, re-applying a file after a crash
+// between the store write and the position update gives the same result. The primary
+// deletes files a snapshot has superseded (see LogShipper); when a listed file is gone,
+// the pass stops and the next one starts from that snapshot.
+//
+// Usage: StandbyReplica <shipDirectory> <standbyDirectory> [--takeover]
+// With --takeover the standby applies whatever has been shipped, marks the shared
+// directory so the old primary refuses to ship to it again, and exits; a till started on
+// the standby directory then carries on from there.
+public class StandbyReplica {
+    static final String APPLIED_FILE = "standby.applied";
+    static final String PROMOTED_FILE = "standby.promoted";
+    private static final long POLL_MILLIS = 100;
+    private static final long STATUS_MILLIS = 10000;
+
+    private final Path shipDirectory;
+    private final Path positionFile;
+    private final CatalogStore store;
+    private long position;
+    private volatile long lagMillis;
+
+    public StandbyReplica(String shipDirectory, String standbyDirectory) throws IOException {
+        this.shipDirectory = Paths.get(shipDirectory);
+        this.positionFile = Paths.get(standbyDirectory, "replica.position");
+        Files.createDirectories(Paths.get(standbyDirectory));
+        this.store = Catalog.openStore(standbyDirectory);
+        this.position = AtomicFiles.readLong(positionFile);
+
+        Metrics.gauge("replica.position", () -> position);
+        Metrics.gauge("replica.lag.ms", () -> lagMillis);
+    }
+
+    public long getPosition() {
+        return position;
+    }
+
+    // Age of the last applied batch when it was applied
+    public long getLagMillis() {
+        return lagMillis;
+    }
+
+    // Applies every file shipped since the last call; returns how many were applied
+    public int applyPending() throws IOException {
+        List<Path> files = new ArrayList<>();
+        long latestSnapshot = 0;
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(shipDirectory, "{batch,snapshot}-*.log")) {
+            for (Path path : stream) {
+                long sequence = LogShipper.sequenceOf(path);
+                if (sequence < 0) {
+                    continue;
+                }
+                files.add(path);
+                if (path.getFileName().toString().startsWith("snapshot-")) {
+                    latestSnapshot = Math.max(latestSnapshot, sequence);
+                }
+            }
+        }
+        files.sort((a, b) -> Long.compare(LogShipper.sequenceOf(a), LogShipper.sequenceOf(b)));
+
+        int applied = 0;
+        for (Path path : files) {
+            long sequence = LogShipper.sequenceOf(path);
+            if (sequence > position && sequence >= latestSnapshot) {
+                try {
+                    apply(path, sequence);
+                } catch (NoSuchFileException e) {
+                    return applied;
+                }
+                applied++;
+            }
+            Files.deleteIfExists(path);
+        }
+        return applied;
+    }
+
+    private void apply(Path path, long sequence) throws IOException {
+        boolean snapshot = path.getFileName().toString().startsWith("snapshot-");
+        List<Product> puts = new ArrayList<>();
+        List<String> deletes = new ArrayList<>();
+        long shippedAt = System.currentTimeMillis();
+        try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith("# ")) {
+                    String[] header = line.split(" ");
+                    shippedAt = Long.parseLong(header[2]);
+                } else if (line.startsWith("P ")) {
+                    try {
+                        puts.add(Product.fromString(line.substring(2)));
+                    } catch (ParseException e) {
+                        System.err.println("Skipping bad record in " + path.getFileName() + ": " + line);
+                    }
+                } else if (line.startsWith("D ")) {
+                    deletes.add(line.substring(2));
+                }
+            }
+        }
+
+        if (snapshot) {
+            // Anything the standby has that the snapshot does not was removed on the primary
+            Set<String> shipped = new HashSet<>();
+            for (Product product : puts) {
+                shipped.add(product.getProductId());
+            }
+            for (Product product : store.loadAll()) {
+                if (!shipped.contains(product.getProductId())) {
+                    deletes.add(product.getProductId());
+                }
+            }
+        }
+        store.writeBatch(puts, deletes, store.getAppliedSequence());
+
+        position = sequence;
+        AtomicFiles.write(positionFile, Long.toString(sequence));
+        AtomicFiles.write(shipDirectory.resolve(APPLIED_FILE), Long.toString(sequence));
+        lagMillis = Math.max(0, System.currentTimeMillis() - shippedAt);
+    }
+
+    // Applies shipped files as they arrive until the process is stopped
+    public void follow() throws IOException, InterruptedException {
+        long lastStatus = 0;
+        while (true) {
+            int applied = applyPending();
+            long now = System.currentTimeMillis();
+            if (applied > 0 && now - lastStatus >= STATUS_MILLIS) {
+                System.out.println("Standby at sequence " + position + ", lag " + lagMillis + " ms");
+                lastStatus = now;
+            }
+            Thread.sleep(POLL_MILLIS);
+        }
+    }
+
+    // Applies the rest of the log and fences off the old primary
+    public void takeOver() throws IOException {
+        applyPending();
+        AtomicFiles.write(shipDirectory.resolve(PROMOTED_FILE), Long.toString(position));
+        store.close();
+        System.out.println("Standby took over at sequence " + position
+                + "; start the till on the standby directory to continue");
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length < 2) {
+            System.out.println("Usage: StandbyReplica <shipDirectory> <standbyDirectory> [--takeover]");
+            return;
+        }
+        Metrics.exportOnExit();
+        StandbyReplica replica = new StandbyReplica(args[0], args[1]);
+        if (args.length > 2 && args[2].equals("--takeover")) {
+            replica.takeOver();
+        } else {
+            System.out.println("Standby following " + args[0] + " from sequence " + replica.getPosition());
+            replica.follow();
+        }
+    }
+}
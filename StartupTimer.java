@@ -0,0 +1,25 @@
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.Map;
+
+// Records how long after JVM start the application reaches each startup milestone
+// ("first paint", "catalog ready", "first sale"). Only the first occurrence of a milestone
+// counts. Each one is printed as it happens and exported as a "startup.<name>" gauge in
+// milliseconds, so a slower cold start shows up in the metrics report.
+final class StartupTimer {
+    private static final long jvmStart = ManagementFactory.getRuntimeMXBean().getStartTime();
+    private static final Map<String, Long> milestones = new HashMap<>();
+
+    private StartupTimer() {
+    }
+
+    public static synchronized void mark(String milestone) {
+        if (milestones.containsKey(milestone)) {
+            return;
+        }
+        long elapsed = System.currentTimeMillis() - jvmStart;
+        milestones.put(milestone, elapsed);
+        Metrics.gauge("startup." + milestone.replace(' ', '_') + ".ms", () -> elapsed);
+        System.out.println("Startup: " + milestone + " after " + elapsed + " ms");
+    }
+}
@@ -0,0 +1,347 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+// Hammers one catalog and sale outbox from many threads with checkouts, edits, deletes,
+// re-adds, refills and outbox replays, and then checks the stock invariants:
+//   - no product's stock is ever negative, in memory or in the store
+//   - for every product, final stock = starting stock + units replenished + stock
+//     corrections made in edits - units sold; no sale, refill or edit is lost
+//   - once the outbox is replayed the store holds exactly the in-memory stock and the
+//     sales history holds exactly the units sold
+//
+// Each worker draws its operations from its own Random seeded from the run seed. In the
+// default deterministic mode a scheduler, also seeded, picks which worker runs the next
+// operation and waits for it, so every operation runs on its worker's own thread but the
+// interleaving, and therefore the final state, is the same on every run with the same
+// seed (the printed digest makes this easy to compare). With --free the workers run at
+// the same time and the operating system picks the interleaving.
+//
+// Usage: StockStressHarness [--seed N] [--threads N] [--ops N] [--products N]
+//                           [--free] [--store text|lsm]
+public class StockStressHarness {
+    private static final int START_STOCK = 30;
+    private static final int REFILL_LEVEL = 40;
+
+    // What the harness did to one product since it was (re)added
+    private static class Ledger {
+        final AtomicLong start = new AtomicLong();
+        final AtomicLong sold = new AtomicLong();
+        final AtomicLong replenished = new AtomicLong();
+        final AtomicLong corrected = new AtomicLong();
+        final AtomicLong soldEver = new AtomicLong();
+    }
+
+    private final long seed;
+    private final int threads;
+    private final int opsPerThread;
+    private final boolean free;
+    private final Catalog catalog;
+    private final SaleOutbox outbox;
+    private final SalesHistory history;
+    private final List<String> productIds = new ArrayList<>();
+    private final Map<String, Ledger> ledgers = new HashMap<>();
+    // Held shared by every operation and exclusively by delete / re-add, which reset a
+    // product's ledger; it is only taken by the harness, never by the catalog
+    private final ReadWriteLock ledgerLock = new ReentrantReadWriteLock();
+    private final AtomicInteger violations = new AtomicInteger();
+    private final AtomicLong[] operationCounts = new AtomicLong[6];
+
+    StockStressHarness(long seed, int threads, int opsPerThread, int products, boolean free, Path directory)
+            throws IOException {
+        this.seed = seed;
+        this.threads = threads;
+        this.opsPerThread = opsPerThread;
+        this.free = free;
+        this.catalog = Catalog.open(directory.toString());
+        this.history = new SalesHistory(directory.resolve("sales-history").toString());
+        // Built directly rather than through SaleOutbox.open, which would start replaying in the background
+        this.outbox = new SaleOutbox(directory.resolve("sales.outbox").toString(), catalog, history);
+        for (int i = 0; i < operationCounts.length; i++) {
+            operationCounts[i] = new AtomicLong();
+        }
+        for (int i = 0; i < products; i++) {
+            String id = String.format("S%04d", i);
+            productIds.add(id);
+            ledgers.put(id, new Ledger());
+            addProduct(id);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        long seed = 1;
+        int threads = 8;
+        int ops = 2000;
+        int products = 12;
+        boolean free = false;
+        String store = "lsm";
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--seed":
+                    seed = Long.parseLong(args[++i]);
+                    break;
+                case "--threads":
+                    threads = Integer.parseInt(args[++i]);
+                    break;
+                case "--ops":
+                    ops = Integer.parseInt(args[++i]);
+                    break;
+                case "--products":
+                    products = Integer.parseInt(args[++i]);
+                    break;
+                case "--free":
+                    free = true;
+                    break;
+                case "--store":
+                    store = args[++i];
+                    break;
+                default:
+                    System.out.println("Usage: StockStressHarness [--seed N] [--threads N] [--ops N] [--products N] [--free] [--store text|lsm]");
+                    return;
+            }
+        }
+        System.setProperty("pos.store", store);
+
+        Path directory = Files.createTempDirectory("pos-stress");
+        StockStressHarness harness = new StockStressHarness(seed, threads, ops, products, free, directory);
+        long started = System.nanoTime();
+        harness.run();
+        boolean passed = harness.verify();
+        System.out.println((free ? "Free" : "Deterministic") + " run, seed " + seed + ", " + threads + " threads x "
+                + ops + " ops on " + store + " store in " + (System.nanoTime() - started) / 1000000 + " ms");
+        System.out.println("Operations: " + harness.operationSummary());
+        System.out.println("Digest: " + harness.digest());
+        System.out.println(passed ? "PASSED" : "FAILED with " + harness.violations.get() + " violation(s)");
+        harness.catalog.getStore().close();
+        System.exit(passed ? 0 : 1);
+    }
+
+    void run() throws InterruptedException, ExecutionException {
+        List<Random> randoms = new ArrayList<>();
+        List<ExecutorService> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            randoms.add(new Random(seed * 1000003 + t));
+            int index = t;
+            workers.add(Executors.newSingleThreadExecutor(r -> new Thread(r, "stress-worker-" + index)));
+        }
+
+        if (free) {
+            CountDownLatch start = new CountDownLatch(1);
+            List<Future<?>> running = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                Random random = randoms.get(t);
+                running.add(workers.get(t).submit(() -> {
+                    start.await();
+                    for (int op = 0; op < opsPerThread; op++) {
+                        step(random);
+                    }
+                    return null;
+                }));
+            }
+            start.countDown();
+            for (Future<?> future : running) {
+                future.get();
+            }
+        } else {
+            Random scheduler = new Random(seed);
+            int[] remaining = new int[threads];
+            Arrays.fill(remaining, opsPerThread);
+            int left = threads * opsPerThread;
+            while (left > 0) {
+                int t = scheduler.nextInt(threads);
+                while (remaining[t] == 0) {
+                    t = (t + 1) % threads;
+                }
+                Random random = randoms.get(t);
+                workers.get(t).submit(() -> {
+                    step(random);
+                    return null;
+                }).get();
+                remaining[t]--;
+                left--;
+            }
+        }
+        for (ExecutorService worker : workers) {
+            worker.shutdown();
+        }
+    }
+
+    // One randomly chosen operation, checked for negative stock afterwards
+    private void step(Random random) throws IOException {
+        String id = productIds.get(random.nextInt(productIds.size()));
+        int choice = random.nextInt(100);
+        if (choice < 82) {
+            ledgerLock.readLock().lock();
+            try {
+                if (choice < 55) {
+                    checkout(random);
+                } else if (choice < 70) {
+                    replenish(id);
+                } else {
+                    edit(id, random);
+                }
+            } finally {
+                ledgerLock.readLock().unlock();
+            }
+        } else if (choice < 85) {
+            ledgerLock.writeLock().lock();
+            try {
+                deleteOrAdd(id);
+            } finally {
+                ledgerLock.writeLock().unlock();
+            }
+        } else {
+            operationCounts[5].incrementAndGet();
+            outbox.replay();
+        }
+        for (Product product : catalog.getProducts()) {
+            if (product.getProductStock() < 0) {
+                violation("negative stock " + product.getProductStock() + " for " + product.getProductId());
+            }
+        }
+    }
+
+    // A cart of one to three products, sold through the outbox like the Sales screen does
+    private void checkout(Random random) throws IOException {
+        operationCounts[0].incrementAndGet();
+        Map<Product, Integer> cart = new HashMap<>();
+        int lines = 1 + random.nextInt(3);
+        for (int i = 0; i < lines; i++) {
+            Product product = catalog.get(productIds.get(random.nextInt(productIds.size())));
+            if (product != null) {
+                cart.put(product, 1 + random.nextInt(5));
+            }
+        }
+        Sale sale = outbox.record(cart);
+        for (Map.Entry<String, Integer> line : sale.getLines().entrySet()) {
+            ledgers.get(line.getKey()).sold.addAndGet(line.getValue());
+            ledgers.get(line.getKey()).soldEver.addAndGet(line.getValue());
+        }
+    }
+
+    private void replenish(String id) throws IOException {
+        operationCounts[1].incrementAndGet();
+        ledgers.get(id).replenished.addAndGet(catalog.replenishTo(id, REFILL_LEVEL));
+    }
+
+    // An Inventory-screen style edit: change the price and add a few units to the stock
+    // shown. Corrections are never negative, so the catalog never has to clamp them at zero
+    // and the ledger knows exactly what was applied.
+    private void edit(String id, Random random) throws IOException {
+        operationCounts[2].incrementAndGet();
+        Product shown = catalog.get(id);
+        if (shown == null) {
+            return;
+        }
+        int shownStock = shown.getProductStock();
+        int correction = random.nextInt(3);
+        Product edited = new Product(id, shown.getProductName(), shown.getProductCategory(), shownStock + correction,
+                1 + random.nextInt(1000) / 100.0, shown.getDiscountEndDate(), shown.getProductDiscount(),
+                shown.getProductStatus());
+        // Simulates the dialog having been open while other tills kept selling
+        Thread.yield();
+        if (catalog.edit(id, edited, shownStock) != null) {
+            ledgers.get(id).corrected.addAndGet(correction);
+        }
+    }
+
+    private void deleteOrAdd(String id) throws IOException {
+        if (catalog.get(id) != null) {
+            operationCounts[3].incrementAndGet();
+            catalog.remove(id);
+        } else {
+            operationCounts[4].incrementAndGet();
+            addProduct(id);
+        }
+    }
+
+    private void addProduct(String id) throws IOException {
+        Ledger ledger = ledgers.get(id);
+        ledger.start.set(START_STOCK);
+        ledger.sold.set(0);
+        ledger.replenished.set(0);
+        ledger.corrected.set(0);
+        catalog.put(new Product(id, "Stress " + id, "Stress", START_STOCK, 2.0, new Date(0), 0, "Active"));
+    }
+
+    boolean verify() throws IOException {
+        outbox.replay();
+        if (outbox.pendingCount() != 0) {
+            violation(outbox.pendingCount() + " sale(s) still pending after replay");
+        }
+        Map<String, Product> stored = new HashMap<>();
+        for (Product product : catalog.getStore().loadAll()) {
+            stored.put(product.getProductId(), product);
+        }
+        for (String id : productIds) {
+            Product product = catalog.get(id);
+            Ledger ledger = ledgers.get(id);
+            long sold = history.unitsSold(id, 0, Long.MAX_VALUE);
+            if (sold != ledger.soldEver.get()) {
+                violation(id + ": history has " + sold + " units sold, expected " + ledger.soldEver.get());
+            }
+            if (product == null) {
+                if (stored.containsKey(id)) {
+                    violation(id + " was deleted but is still in the store");
+                }
+                continue;
+            }
+            long expected = ledger.start.get() + ledger.replenished.get() + ledger.corrected.get() - ledger.sold.get();
+            if (product.getProductStock() != expected) {
+                violation(id + ": stock " + product.getProductStock() + ", expected " + expected
+                        + " (lost update)");
+            }
+            Product inStore = stored.get(id);
+            if (inStore == null || inStore.getProductStock() != product.getProductStock()) {
+                violation(id + ": store has " + (inStore == null ? "nothing" : inStore.getProductStock())
+                        + ", memory has " + product.getProductStock());
+            }
+            if (product.getProductStock() < 0) {
+                violation(id + ": negative stock " + product.getProductStock());
+            }
+        }
+        return violations.get() == 0;
+    }
+
+    private String operationSummary() {
+        String[] names = {"checkouts", "refills", "edits", "deletes", "re-adds", "replays"};
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < names.length; i++) {
+            sb.append(i == 0 ? "" : ", ").append(operationCounts[i].get()).append(' ').append(names[i]);
+        }
+        return sb.toString();
+    }
+
+    // Hash of every product's final stock and price; equal for equal deterministic runs
+    private String digest() {
+        List<String> state = new ArrayList<>();
+        for (Product product : catalog.getProducts()) {
+            state.add(product.getProductId() + ":" + product.getProductStock() + ":" + product.getProductUsualPrice());
+        }
+        Collections.sort(state);
+        return Integer.toHexString(state.hashCode());
+    }
+
+    private void violation(String message) {
+        if (violations.incrementAndGet() <= 20) {
+            System.out.println("VIOLATION: " + message);
+        }
+    }
+}
@@ -0,0 +1,260 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+// A stock-take that runs while the tills keep selling. begin() copies every product's
+// stock at one instant (the snapshot) and from then on follows every change to it: sales,
+// refills, edits, sales from other tills. Staff count the shelves while the store stays
+// open and enter the counts in bulk. reconcile() compares each count with what the stock
+// should have been when that count's line was read, the snapshot plus the movement up to
+// then; the difference is the shrinkage or surplus, and it is added to the stock as it is
+// at the end. The stock is never simply set to the count: sales made after a product's
+// line was read have already come off the stock and must stay off. All adjustments go to
+// the store as one batch.
+//
+// Counts are read on the caller's thread into an array parallel to the snapshot (found by
+// binary search), so a count of a million products holds the catalog's lock only for the
+// snapshot copy and the final batch. Products removed since the snapshot are skipped; a
+// product counted on several lines (several shelves) gets the sum of its counts, compared
+// with the stock expected at its first line; products that were not counted are left alone.
+class StockTake implements CatalogListener {
+    private static final int MAX_PROBLEMS_LISTED = 20;
+
+    // Product IDs in ID order and their stock at takenAt
+    static final class Snapshot {
+        final String[] ids;
+        final int[] stock;
+        final long takenAt;
+
+        Snapshot(String[] ids, int[] stock, long takenAt) {
+            this.ids = ids;
+            this.stock = stock;
+            this.takenAt = takenAt;
+        }
+
+        int size() {
+            return ids.length;
+        }
+    }
+
+    // What reconcile() did
+    static final class Result {
+        int linesRead;
+        int counted;
+        int adjusted;
+        long unitsAdded;
+        long unitsRemoved;
+        int notCounted;
+        int skipped;
+        final List<String> problems = new ArrayList<>();
+
+        void problem(String message) {
+            skipped++;
+            if (problems.size() < MAX_PROBLEMS_LISTED) {
+                problems.add(message);
+            }
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append(counted).append(" product(s) counted, ").append(adjusted).append(" adjusted (+")
+                    .append(unitsAdded).append(" / -").append(unitsRemoved).append(" units), ")
+                    .append(notCounted).append(" not counted");
+            if (skipped > 0) {
+                sb.append(", ").append(skipped).append(" line(s) skipped");
+                for (String problem : problems) {
+                    sb.append(System.lineSeparator()).append("  ").append(problem);
+                }
+                if (skipped > problems.size()) {
+                    sb.append(System.lineSeparator()).append("  ...");
+                }
+            }
+            return sb.toString();
+        }
+    }
+
+    private final Catalog catalog;
+    private final Snapshot snapshot;
+    private final Set<String> removed = ConcurrentHashMap.newKeySet();
+    // Latest stock of every product that changed since the snapshot
+    private final Map<String, Integer> moved = new ConcurrentHashMap<>();
+    private boolean finished;
+
+    private StockTake(Catalog catalog) {
+        this.catalog = catalog;
+        // Listen before copying, so no removal after the snapshot can be missed
+        catalog.addListener(this);
+        this.snapshot = catalog.snapshotStock();
+    }
+
+    // Takes the snapshot a stock-take counts against
+    public static StockTake begin(Catalog catalog) {
+        long started = System.nanoTime();
+        StockTake stockTake = new StockTake(catalog);
+        Metrics.histogram(catalog.getMetricPrefix() + "stocktake.snapshot").recordNanos(System.nanoTime() - started);
+        return stockTake;
+    }
+
+    public Snapshot getSnapshot() {
+        return snapshot;
+    }
+
+    // True once the counts have been applied or the stock-take was cancelled
+    public synchronized boolean isFinished() {
+        return finished;
+    }
+
+    // Abandons the stock-take without changing anything
+    public synchronized void cancel() {
+        finished = true;
+        catalog.removeListener(this);
+    }
+
+    // Reads counts, one "productId, quantity" per line (a tab or spaces also separate the
+    // two; blank lines and lines starting with # are skipped), and applies the differences
+    // from the stock expected when each line was read to the current stock. If report is
+    // not null, writes one row per counted product to it. Can be called once.
+    public synchronized Result reconcile(Reader counts, ReportWriter report) throws IOException {
+        if (finished) {
+            throw new IllegalStateException("This stock-take is already finished");
+        }
+        long started = System.nanoTime();
+        Result result = new Result();
+        int[] counted = new int[snapshot.size()];
+        Arrays.fill(counted, -1);
+        // The stock each product should have had when its first count line was read
+        int[] expected = new int[counted.length];
+
+        BufferedReader reader = new BufferedReader(counts);
+        String line;
+        while ((line = reader.readLine()) != null) {
+            result.linesRead++;
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            String[] parts = line.split("[,\\t ]+");
+            if (parts.length != 2) {
+                result.problem("Line " + result.linesRead + ": expected \"productId, quantity\": " + line);
+                continue;
+            }
+            int quantity;
+            try {
+                quantity = Integer.parseInt(parts[1]);
+            } catch (NumberFormatException e) {
+                quantity = -1;
+            }
+            if (quantity < 0) {
+                result.problem("Line " + result.linesRead + ": invalid quantity: " + line);
+                continue;
+            }
+            int index = Arrays.binarySearch(snapshot.ids, parts[0]);
+            if (index < 0 || removed.contains(parts[0])) {
+                result.problem("Line " + result.linesRead + ": unknown or removed product " + parts[0]);
+                continue;
+            }
+            if (counted[index] < 0) {
+                expected[index] = moved.getOrDefault(parts[0], snapshot.stock[index]);
+                counted[index] = quantity;
+            } else {
+                counted[index] += quantity;
+            }
+        }
+
+        Map<String, Integer> deltas = new LinkedHashMap<>();
+        for (int i = 0; i < counted.length; i++) {
+            if (counted[i] < 0) {
+                result.notCounted++;
+                continue;
+            }
+            result.counted++;
+            int variance = counted[i] - expected[i];
+            if (variance != 0 && !removed.contains(snapshot.ids[i])) {
+                deltas.put(snapshot.ids[i], variance);
+            }
+        }
+
+        Map<String, Integer> newStock = catalog.adjustStock(deltas);
+        finished = true;
+        catalog.removeListener(this);
+
+        // The stock after the adjustments, copied in one go rather than looked up per product
+        Snapshot current = report == null ? null : catalog.snapshotStock();
+        if (report != null) {
+            report.columns(new String[]{"ID", "Snapshot", "Since Snapshot", "Counted", "Variance", "Stock After"},
+                    new ReportWriter.Type[]{ReportWriter.Type.TEXT, ReportWriter.Type.INTEGER, ReportWriter.Type.INTEGER,
+                            ReportWriter.Type.INTEGER, ReportWriter.Type.INTEGER, ReportWriter.Type.INTEGER});
+        }
+        for (int i = 0; i < counted.length; i++) {
+            if (counted[i] < 0) {
+                continue;
+            }
+            int variance = counted[i] - expected[i];
+            Integer after = newStock.get(snapshot.ids[i]);
+            if (after != null) {
+                result.adjusted++;
+                if (variance > 0) {
+                    result.unitsAdded += variance;
+                } else {
+                    result.unitsRemoved -= variance;
+                }
+            }
+            if (report != null) {
+                report.text(snapshot.ids[i]);
+                report.integer(snapshot.stock[i]);
+                report.integer(expected[i] - snapshot.stock[i]);
+                report.integer(counted[i]);
+                report.integer(variance);
+                int index = Arrays.binarySearch(current.ids, snapshot.ids[i]);
+                report.integer(index < 0 ? 0 : current.stock[index]);
+                report.endRow();
+            }
+        }
+        Metrics.histogram(catalog.getMetricPrefix() + "stocktake.reconcile").recordNanos(System.nanoTime() - started);
+        return result;
+    }
+
+    @Override
+    public void productChanged(Product product) {
+        // Called under the catalog's lock, so this is always the stock as of the last change
+        moved.put(product.getProductId(), product.getProductStock());
+    }
+
+    @Override
+    public void productRemoved(String productId) {
+        removed.add(productId);
+    }
+
+    // Command-line stock-take against this till's catalog: StockTake <countsFile> [reportFile].
+    // The counts are compared with the stock as it is when they are read. It writes stock,
+    // so it opens the catalog as a till does: an lsm or sharded store that a till has
+    // open is locked and the stock-take fails rather than writing alongside it.
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1 || args.length > 2) {
+            System.out.println("Usage: StockTake <countsFile> [reportFile.csv]");
+            return;
+        }
+        Catalog catalog = Catalog.open();
+        SaleOutbox outbox = SaleOutbox.open(catalog);
+        StockTake stockTake = begin(catalog);
+        Result result;
+        try (Reader counts = Files.newBufferedReader(Paths.get(args[0]), StandardCharsets.UTF_8);
+             ReportWriter report = args.length == 2 ? ReportWriter.open(Paths.get(args[1]), ReportWriter.Format.CSV) : null) {
+            result = stockTake.reconcile(counts, report);
+        }
+        System.out.println("Stock-take of " + stockTake.getSnapshot().size() + " products: " + result);
+        outbox.replay();
+        catalog.getStore().close();
+    }
+}
@@ -0,0 +1,232 @@
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.BiFunction;
+
+// The catalogs of every store in the chain, partitioned by store ID. Each store lives in
+// its own directory, stores/<storeId>/, with its own products file (or embedded store),
+// outbox and sales history, and a till only ever opens the partition of its own store.
+// Since every partition is a separate Catalog with its own lock, checkout in one store
+// never waits on another. Cross-store questions fan out to all partitions in parallel and
+// the per-store answers are merged here.
+public class StoreChain {
+    private static final String STORES_DIRECTORY = "stores";
+
+    // One store's catalog and a product in it, as returned by cross-store queries
+    public static class StoreStock {
+        private final String storeId;
+        private final Product product;
+        private final int surplus;
+
+        StoreStock(String storeId, Product product, int surplus) {
+            this.storeId = storeId;
+            this.product = product;
+            this.surplus = surplus;
+        }
+
+        public String getStoreId() {
+            return storeId;
+        }
+
+        public Product getProduct() {
+            return product;
+        }
+
+        // Units above the store's reorder point, i.e. what it could give away
+        public int getSurplus() {
+            return surplus;
+        }
+
+        @Override
+        public String toString() {
+            return storeId + ": " + product.getProductId() + " " + product.getProductName()
+                    + " stock " + product.getProductStock() + " surplus " + surplus;
+        }
+    }
+
+    private final Map<String, Catalog> partitions = new TreeMap<>();
+    private final ExecutorService pool;
+
+    public StoreChain(Map<String, Catalog> partitions) {
+        this.partitions.putAll(partitions);
+        this.pool = Executors.newFixedThreadPool(
+                Math.max(1, Math.min(partitions.size(), Runtime.getRuntime().availableProcessors())), r -> {
+                    Thread thread = new Thread(r, "store-chain-query");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+    }
+
+    // Directory holding this till's data: stores/<pos.storeId>, or the working directory
+    public static String tillDirectory() {
+        String storeId = System.getProperty("pos.storeId");
+        if (storeId == null || storeId.isEmpty()) {
+            return ".";
+        }
+        return Paths.get(STORES_DIRECTORY, storeId).toString();
+    }
+
+    // Prefix for the metric and memory footprint names of the store kept in the given
+    // directory: "stores.<storeId>." for a partition under stores/, so the partitions
+    // opened in one process do not replace each other's entries, and "" otherwise
+    public static String metricPrefix(Path directory) {
+        Path absolute = directory.toAbsolutePath().normalize();
+        Path parent = absolute.getParent();
+        if (parent == null || parent.getFileName() == null || !parent.getFileName().toString().equals(STORES_DIRECTORY)) {
+            return "";
+        }
+        return STORES_DIRECTORY + "." + absolute.getFileName() + ".";
+    }
+
+    // Opens every store under stores/ read-only, loading the partitions in parallel; the
+    // tills may have their stores open meanwhile, and nothing is imported or written
+    public static StoreChain open() throws IOException {
+        List<String> storeIds = new ArrayList<>();
+        Path root = Paths.get(STORES_DIRECTORY);
+        if (Files.isDirectory(root)) {
+            try (DirectoryStream<Path> stores = Files.newDirectoryStream(root, Files::isDirectory)) {
+                for (Path store : stores) {
+                    storeIds.add(store.getFileName().toString());
+                }
+            }
+        }
+
+        Map<String, CompletableFuture<Catalog>> loading = new TreeMap<>();
+        for (String storeId : storeIds) {
+            loading.put(storeId, CompletableFuture.supplyAsync(() -> {
+                try {
+                    Path directory = Paths.get(STORES_DIRECTORY, storeId);
+                    Catalog catalog = Catalog.openReadOnly(directory.toString());
+                    Path history = directory.resolve("sales-history");
+                    if (Files.isDirectory(history)) {
+                        // Reorder points for the cross-store queries come from each store's own sales
+                        catalog.getVelocity().seedLazily(SalesHistory.openReadOnly(history.toString()));
+                    }
+                    return catalog;
+                } catch (IOException e) {
+                    throw new RuntimeException("Could not open store " + storeId, e);
+                }
+            }));
+        }
+        Map<String, Catalog> partitions = new TreeMap<>();
+        for (Map.Entry<String, CompletableFuture<Catalog>> entry : loading.entrySet()) {
+            partitions.put(entry.getKey(), entry.getValue().join());
+        }
+        return new StoreChain(partitions);
+    }
+
+    public List<String> getStoreIds() {
+        return new ArrayList<>(partitions.keySet());
+    }
+
+    public Catalog getCatalog(String storeId) {
+        return partitions.get(storeId);
+    }
+
+    // Total stock of a product across all stores
+    public int totalStock(String productId) {
+        int total = 0;
+        for (List<StoreStock> stocks : fanOut((storeId, catalog) -> stockOf(storeId, catalog, productId)).values()) {
+            for (StoreStock stock : stocks) {
+                total += stock.getProduct().getProductStock();
+            }
+        }
+        return total;
+    }
+
+    // Stores other than the given one that have surplus of a product, most surplus first
+    public List<StoreStock> transferSources(String productId, String toStoreId) {
+        List<StoreStock> sources = new ArrayList<>();
+        for (Map.Entry<String, List<StoreStock>> entry : fanOut((storeId, catalog) -> stockOf(storeId, catalog, productId)).entrySet()) {
+            if (entry.getKey().equals(toStoreId)) {
+                continue;
+            }
+            for (StoreStock stock : entry.getValue()) {
+                if (stock.getSurplus() > 0) {
+                    sources.add(stock);
+                }
+            }
+        }
+        sources.sort(Comparator.comparingInt(StoreStock::getSurplus).reversed());
+        return sources;
+    }
+
+    // Every active product at or below its store's reorder point, across the chain
+    public List<StoreStock> lowStock() {
+        List<StoreStock> low = new ArrayList<>();
+        for (List<StoreStock> stocks : fanOut(StoreChain::lowStockOf).values()) {
+            low.addAll(stocks);
+        }
+        low.sort(Comparator.comparing((StoreStock s) -> s.getProduct().getProductId()).thenComparing(StoreStock::getStoreId));
+        return low;
+    }
+
+    // Runs a per-store query on every partition in parallel and collects the results by store ID
+    private Map<String, List<StoreStock>> fanOut(BiFunction<String, Catalog, List<StoreStock>> query) {
+        Map<String, CompletableFuture<List<StoreStock>>> running = new TreeMap<>();
+        for (Map.Entry<String, Catalog> partition : partitions.entrySet()) {
+            String storeId = partition.getKey();
+            Catalog catalog = partition.getValue();
+            running.put(storeId, CompletableFuture.supplyAsync(() -> query.apply(storeId, catalog), pool));
+        }
+        Map<String, List<StoreStock>> results = new TreeMap<>();
+        for (Map.Entry<String, CompletableFuture<List<StoreStock>>> entry : running.entrySet()) {
+            results.put(entry.getKey(), entry.getValue().join());
+        }
+        return results;
+    }
+
+    private static List<StoreStock> stockOf(String storeId, Catalog catalog, String productId) {
+        List<StoreStock> results = new ArrayList<>();
+        Product product = catalog.get(productId);
+        if (product != null) {
+            int reorderPoint = catalog.getVelocity().reorderPoint(productId);
+            results.add(new StoreStock(storeId, product, product.getProductStock() - reorderPoint));
+        }
+        return results;
+    }
+
+    private static List<StoreStock> lowStockOf(String storeId, Catalog catalog) {
+        List<StoreStock> results = new ArrayList<>();
+        SalesVelocity velocity = catalog.getVelocity();
+        for (Product product : catalog.getProducts()) {
+            int reorderPoint = velocity.reorderPoint(product.getProductId());
+            if (product.isActive() && product.getProductStock() <= reorderPoint) {
+                results.add(new StoreStock(storeId, product, product.getProductStock() - reorderPoint));
+            }
+        }
+        return results;
+    }
+
+    // Command-line access to the cross-store queries:
+    //   StoreChain total <productId>
+    //   StoreChain transfer <productId> <toStoreId>
+    //   StoreChain low
+    public static void main(String[] args) throws IOException {
+        StoreChain chain = StoreChain.open();
+        System.out.println("Stores: " + chain.getStoreIds());
+        if (args.length == 2 && args[0].equals("total")) {
+            System.out.println("Total stock of " + args[1] + ": " + chain.totalStock(args[1]));
+        } else if (args.length == 3 && args[0].equals("transfer")) {
+            for (StoreStock source : chain.transferSources(args[1], args[2])) {
+                System.out.println(source);
+            }
+        } else if (args.length == 1 && args[0].equals("low")) {
+            for (StoreStock stock : chain.lowStock()) {
+                System.out.println(stock);
+            }
+        } else {
+            System.out.println("Usage: StoreChain total <productId> | transfer <productId> <toStoreId> | low");
+        }
+    }
+}
@@ -0,0 +1,219 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// The original products.txt format behind the CatalogStore interface. Every change
+// rewrites the whole file, so this backend is O(n) per update; it stays the default
+// because the file is also edited by hand and by other tools.
+//
+// A batch is made atomic with a small redo record next to the file:
+//   1. write <file>.tmp with the new contents
+//   2. write <file>.commit holding the new applied sequence   (commit point)
+//   3. rename <file>.tmp over <file>
+//   4. write <file>.applied with the sequence and delete the commit record
+// All writers take an exclusive lock on <file>.lock; if another process holds it the
+// write fails with an IOException instead of waiting. Reads take no lock: the file is
+// only ever replaced by a rename. openReadOnly() gives a store that refuses writes.
+class TextFileCatalogStore implements CatalogStore {
+    private final Path file;
+    private final Path tempFile;
+    private final Path commitFile;
+    private final Path appliedFile;
+    private final Path lockFile;
+    private final boolean readOnly;
+
+    public TextFileCatalogStore(String fileName) {
+        this(fileName, false);
+    }
+
+    private TextFileCatalogStore(String fileName, boolean readOnly) {
+        this.readOnly = readOnly;
+        this.file = Paths.get(fileName);
+        this.tempFile = Paths.get(fileName + ".tmp");
+        this.commitFile = Paths.get(fileName + ".commit");
+        this.appliedFile = Paths.get(fileName + ".applied");
+        this.lockFile = Paths.get(fileName + ".lock");
+    }
+
+    // Opens the file for reading only; every write fails
+    public static TextFileCatalogStore openReadOnly(String fileName) {
+        return new TextFileCatalogStore(fileName, true);
+    }
+
+    @Override
+    public Product get(String productId) throws IOException {
+        return readProducts().get(productId);
+    }
+
+    @Override
+    public Map<String, Product> getAll(Collection<String> productIds) throws IOException {
+        Map<String, Product> products = readProducts();
+        products.keySet().retainAll(new HashSet<>(productIds));
+        return products;
+    }
+
+    @Override
+    public List<Product> scan(String fromId, String toId) throws IOException {
+        List<Product> products = new ArrayList<>();
+        for (Product product : readProducts().values()) {
+            String id = product.getProductId();
+            if ((fromId == null || id.compareTo(fromId) >= 0) && (toId == null || id.compareTo(toId) < 0)) {
+                products.add(product);
+            }
+        }
+        products.sort((a, b) -> a.getProductId().compareTo(b.getProductId()));
+        return products;
+    }
+
+    @Override
+    public void put(Product product) throws IOException {
+        List<Product> puts = new ArrayList<>();
+        puts.add(product);
+        writeBatch(puts, new ArrayList<>(), getAppliedSequence());
+    }
+
+    @Override
+    public void delete(String productId) throws IOException {
+        List<String> deletes = new ArrayList<>();
+        deletes.add(productId);
+        writeBatch(new ArrayList<>(), deletes, getAppliedSequence());
+    }
+
+    @Override
+    public void writeBatch(List<Product> puts, List<String> deletes, long appliedSequence) throws IOException {
+        if (readOnly) {
+            throw new IOException("Catalog file is open read-only: " + file);
+        }
+        try (FileChannel lockChannel = FileChannel.open(lockFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            FileLock lock;
+            try {
+                lock = lockChannel.tryLock();
+            } catch (OverlappingFileLockException e) {
+                lock = null;
+            }
+            if (lock == null) {
+                throw new IOException("Catalog file is locked: " + file);
+            }
+            try {
+                recoverCommit();
+                writeTempFile(puts, deletes);
+                AtomicFiles.write(commitFile, Long.toString(appliedSequence));
+                recoverCommit();
+            } finally {
+                lock.release();
+            }
+        }
+    }
+
+    @Override
+    public long getAppliedSequence() {
+        if (Files.exists(commitFile)) {
+            return AtomicFiles.readLong(commitFile);
+        }
+        return AtomicFiles.readLong(appliedFile);
+    }
+
+    @Override
+    public String describe() {
+        return "text file " + file;
+    }
+
+    @Override
+    public void close() {
+    }
+
+    public Path getFile() {
+        return file;
+    }
+
+    // Products keyed by ID, in file order
+    private Map<String, Product> readProducts() throws IOException {
+        Map<String, Product> products = new LinkedHashMap<>();
+        if (!Files.exists(file)) {
+            return products;
+        }
+        for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+            try {
+                Product product = Product.fromString(line);
+                products.put(product.getProductId(), product);
+            } catch (ParseException e) {
+                e.printStackTrace();
+            }
+        }
+        return products;
+    }
+
+    // Rewrites the file into <file>.tmp, replacing changed lines in place, dropping deleted
+    // ones and appending new products. Lines that cannot be parsed are kept as they are.
+    private void writeTempFile(Collection<Product> puts, Collection<String> deletes) throws IOException {
+        Map<String, Product> pending = new LinkedHashMap<>();
+        for (Product product : puts) {
+            pending.put(product.getProductId(), product);
+        }
+        Set<String> deleted = new HashSet<>(deletes);
+        Set<String> written = new HashSet<>();
+        ProductEncoder encoder = new ProductEncoder(new SimpleDateFormat("dd-MMM-yyyy"));
+
+        List<String> lines = Files.exists(file) ? Files.readAllLines(file, StandardCharsets.UTF_8) : new ArrayList<>();
+        try (BufferedWriter writer = Files.newBufferedWriter(tempFile, StandardCharsets.UTF_8)) {
+            for (String line : lines) {
+                String output = line;
+                try {
+                    String id = Product.fromString(line).getProductId();
+                    if (deleted.contains(id) || written.contains(id)) {
+                        continue;
+                    }
+                    Product replacement = pending.get(id);
+                    if (replacement != null) {
+                        output = encoder.encode(replacement);
+                        written.add(id);
+                    }
+                } catch (ParseException e) {
+                    // Keep lines we cannot parse exactly as they were
+                }
+                writer.write(output);
+                writer.newLine();
+            }
+            for (Product product : pending.values()) {
+                if (!written.contains(product.getProductId()) && !deleted.contains(product.getProductId())) {
+                    writer.write(encoder.encode(product));
+                    writer.newLine();
+                }
+            }
+        }
+        try (FileChannel channel = FileChannel.open(tempFile, StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+    }
+
+    // Finishes a batch whose commit record was written (steps 3 and 4 above)
+    private void recoverCommit() throws IOException {
+        if (!Files.exists(commitFile)) {
+            Files.deleteIfExists(tempFile);
+            return;
+        }
+        long sequence = AtomicFiles.readLong(commitFile);
+        if (Files.exists(tempFile)) {
+            Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        AtomicFiles.write(appliedFile, Long.toString(sequence));
+        Files.delete(commitFile);
+    }
+}